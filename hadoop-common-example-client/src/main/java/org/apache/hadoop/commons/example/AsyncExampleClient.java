@@ -0,0 +1,54 @@
+package org.apache.hadoop.commons.example;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloRequest;
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloResponse;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.ConfigurationFactory;
+import org.apache.hadoop.io.retry.RetryPolicies;
+import org.apache.hadoop.ipc.Client;
+import org.apache.hadoop.ipc.ProtobufRpcEngine;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.net.StandardSocketFactory;
+import org.apache.hadoop.security.UserGroupInformation;
+
+public class AsyncExampleClient {
+  public static void main(String[] args) throws Exception {
+    new AsyncExampleClient().run();
+  }
+
+  private void run() throws Exception {
+
+    Configuration conf = ConfigurationFactory.newInstance();
+
+    RPC.setProtocolEngine(conf, HelloWorldServicePB.class,
+        ProtobufRpcEngine.class);
+
+    final HelloWorldServiceAsyncPB proxy = ProtobufRpcEngine.getAsyncProxy(
+        HelloWorldServiceAsyncPB.class,
+        HelloWorldServicePB.class,
+        new InetSocketAddress(1234),
+        UserGroupInformation.getCurrentUser(),
+        conf,
+        new StandardSocketFactory(),
+        Client.getRpcTimeout(conf),
+        RetryPolicies.retryUpToMaximumCountWithFixedSleep(
+            10, 1000, TimeUnit.MILLISECONDS));
+
+    // the second call is sent when the first one completes
+    final CompletableFuture<HelloResponse> test =
+        proxy.submitRequest(null, HelloRequest.newBuilder()
+            .setName("test")
+            .build())
+        .thenCompose(response -> proxy.submitRequest(null,
+            HelloRequest.newBuilder()
+                .setName(response.getResponse())
+                .build()));
+
+    System.out.println(test.get());
+    RPC.stopProxy(proxy);
+  }
+}
@@ -0,0 +1,17 @@
+package org.apache.hadoop.commons.example;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloRequest;
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloResponse;
+import org.apache.hadoop.thirdparty.protobuf.RpcController;
+
+/**
+ * Async counterpart of {@link HelloWorldServicePB}, see
+ * {@link org.apache.hadoop.ipc.ProtobufRpcEngine#getAsyncProxy}.
+ */
+public interface HelloWorldServiceAsyncPB {
+
+  CompletableFuture<HelloResponse> submitRequest(RpcController controller,
+      HelloRequest request);
+}
@@ -0,0 +1,124 @@
+package org.apache.hadoop.common.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.ConfigurationFactory;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.security.GroupMappingServiceProvider;
+import org.apache.hadoop.security.Groups;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.security.authorize.AccessControlList;
+
+/**
+ * Compares checking users against an {@link AccessControlList} with
+ * thousands of groups by scanning the groups of the user, as done before
+ * the groups of a list were compiled, and by the compiled
+ * {@link Groups.GroupSet}. Most users are in none of the groups of the list,
+ * the worst case for the scan.
+ *
+ * Usage: AclBenchmark [aclGroups] [groupsPerUser] [checks]
+ */
+public class AclBenchmark {
+
+  private static final int USERS = 1000;
+  private static final int ALL_GROUPS = 100000;
+
+  /** Gives every user a fixed random set of groups. */
+  public static class RandomGroupsMapping
+      implements GroupMappingServiceProvider {
+    static int groupsPerUser;
+
+    @Override
+    public List<String> getGroups(String user) {
+      Random random = new Random(user.hashCode());
+      List<String> groups = new ArrayList<String>(groupsPerUser);
+      for (int i = 0; i < groupsPerUser; i++) {
+        groups.add("group" + random.nextInt(ALL_GROUPS));
+      }
+      return groups;
+    }
+
+    @Override
+    public void cacheGroupsRefresh() {
+    }
+
+    @Override
+    public void cacheGroupsAdd(List<String> groups) {
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int aclGroups = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    RandomGroupsMapping.groupsPerUser =
+        args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int checks = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+
+    Configuration conf = ConfigurationFactory.newInstance();
+    conf.set(CommonConfigurationKeys.HADOOP_SECURITY_GROUP_MAPPING,
+        RandomGroupsMapping.class.getName());
+    Groups groups =
+        Groups.getUserToGroupsMappingServiceWithLoadedConfiguration(conf);
+
+    StringBuilder aclGroupNames = new StringBuilder();
+    for (int i = 0; i < aclGroups; i++) {
+      aclGroupNames.append(i > 0 ? "," : "").append("acl-group").append(i);
+    }
+    AccessControlList acl =
+        new AccessControlList("", aclGroupNames.toString());
+    UserGroupInformation[] users = new UserGroupInformation[USERS];
+    for (int i = 0; i < USERS; i++) {
+      users[i] = UserGroupInformation.createRemoteUser("user" + i);
+    }
+    // a few users are members through their last group
+    for (int i = 0; i < USERS; i += 100) {
+      acl.addGroup(groups.getGroups("user" + i)
+          .get(RandomGroupsMapping.groupsPerUser - 1));
+    }
+
+    // run each check twice, the first run warms up
+    for (int run = 0; run < 2; run++) {
+      long startNanos = System.nanoTime();
+      int allowed = 0;
+      for (int i = 0; i < checks; i++) {
+        if (scan(acl, groups, users[i % USERS].getShortUserName())) {
+          allowed++;
+        }
+      }
+      report("scan", startNanos, checks, allowed);
+
+      startNanos = System.nanoTime();
+      allowed = 0;
+      for (int i = 0; i < checks; i++) {
+        if (acl.isUserInList(users[i % USERS])) {
+          allowed++;
+        }
+      }
+      report("compiled", startNanos, checks, allowed);
+    }
+  }
+
+  private static boolean scan(AccessControlList acl, Groups groups,
+      String user) throws IOException {
+    Collection<String> aclGroups = acl.getGroups();
+    for (String group : groups.getGroups(user)) {
+      if (aclGroups.contains(group)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void report(String name, long startNanos, int checks,
+      int allowed) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    System.out.printf("%-9s %d checks, %d allowed: %d ms, %.1f ns/check%n",
+        name, checks, allowed, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+        (double) elapsedNanos / checks);
+  }
+}
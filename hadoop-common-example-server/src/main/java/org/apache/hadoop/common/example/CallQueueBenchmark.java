@@ -0,0 +1,136 @@
+package org.apache.hadoop.common.example;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.ConfigurationFactory;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.ipc.FairCallQueue;
+import org.apache.hadoop.ipc.PartitionedCallQueue;
+import org.apache.hadoop.ipc.RingBufferCallQueue;
+import org.apache.hadoop.ipc.Schedulable;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Compares the throughput of the multi-level call queues with readers
+ * putting calls and handlers taking them, without any RPC around them.
+ *
+ * Usage: CallQueueBenchmark [readers] [callsPerReader] [capacity]
+ */
+public class CallQueueBenchmark {
+
+  private static final int PRIORITY_LEVELS = 4;
+  private static final int[] HANDLER_COUNTS = {16, 32, 64, 128, 256};
+
+  /** A call with a fixed priority level. */
+  private static class BenchmarkCall implements Schedulable {
+    private final int priorityLevel;
+
+    BenchmarkCall(int priorityLevel) {
+      this.priorityLevel = priorityLevel;
+    }
+
+    @Override
+    public UserGroupInformation getUserGroupInformation() {
+      return null;
+    }
+
+    @Override
+    public int getPriorityLevel() {
+      return priorityLevel;
+    }
+  }
+
+  /** Marks the end of the calls for one handler. */
+  private static final BenchmarkCall POISON = new BenchmarkCall(0);
+
+  public static void main(String[] args) throws Exception {
+    int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int calls = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+    int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 25600;
+    Configuration conf = ConfigurationFactory.newInstance();
+    // one partition per reader
+    conf.setInt("ipc.benchmark." +
+        CommonConfigurationKeys.IPC_CALLQUEUE_PARTITIONS_KEY, readers);
+
+    for (int handlers : HANDLER_COUNTS) {
+      run("FairCallQueue", new FairCallQueue<BenchmarkCall>(PRIORITY_LEVELS,
+          capacity, "ipc.benchmark", conf), readers, calls, handlers);
+      run("RingBufferCallQueue", new RingBufferCallQueue<BenchmarkCall>(
+          PRIORITY_LEVELS, capacity, "ipc.benchmark", conf),
+          readers, calls, handlers);
+      run("PartitionedCallQueue", new PartitionedCallQueue<BenchmarkCall>(
+          PRIORITY_LEVELS, capacity, "ipc.benchmark", conf),
+          readers, calls, handlers);
+    }
+  }
+
+  private static void run(String name,
+      final BlockingQueue<BenchmarkCall> queue, int readers, final int calls,
+      int handlers)
+      throws InterruptedException {
+    final BenchmarkCall[] byLevel = new BenchmarkCall[PRIORITY_LEVELS];
+    for (int i = 0; i < PRIORITY_LEVELS; i++) {
+      byLevel[i] = new BenchmarkCall(i);
+    }
+    final CountDownLatch readersDone = new CountDownLatch(readers);
+    final CountDownLatch handlersDone = new CountDownLatch(handlers);
+    for (int i = 0; i < handlers; i++) {
+      Thread handler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (queue.take() != POISON) {
+              // the call is handled
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            handlersDone.countDown();
+          }
+        }
+      });
+      handler.setDaemon(true);
+      handler.start();
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < readers; i++) {
+      final int seed = i;
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < calls; j++) {
+              queue.put(byLevel[(seed + j) % PRIORITY_LEVELS]);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            readersDone.countDown();
+          }
+        }
+      });
+      reader.setDaemon(true);
+      reader.start();
+    }
+    readersDone.await();
+    // stop the handlers only once every call was taken
+    while (!queue.isEmpty()) {
+      Thread.sleep(1);
+    }
+    for (int i = 0; i < handlers; i++) {
+      queue.put(POISON);
+    }
+    handlersDone.await();
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(
+        System.nanoTime() - start);
+    long total = (long) readers * calls;
+    System.out.printf("%-20s %3d handlers, %d readers, %d calls: "
+            + "%d ms, %.0f calls/s%n",
+        name, handlers, readers, total, elapsedMillis,
+        total * 1000.0 / Math.max(1, elapsedMillis));
+  }
+}
@@ -0,0 +1,136 @@
+package org.apache.hadoop.common.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.security.token.delegation.AbstractDelegationTokenIdentifier;
+import org.apache.hadoop.security.token.delegation.AbstractDelegationTokenSecretManager;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Measures the throughput of {@link AbstractDelegationTokenSecretManager}
+ * verifying and renewing tokens concurrently, with a large number of live
+ * tokens and the expired token remover running every second.
+ *
+ * Usage: DelegationTokenBenchmark [tokens] [verifyThreads] [renewThreads]
+ *            [seconds]
+ */
+public class DelegationTokenBenchmark {
+
+  private static final Text KIND = new Text("BENCHMARK_DELEGATION_TOKEN");
+  private static final String RENEWER = "renewer";
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  public static class BenchmarkTokenIdentifier
+      extends AbstractDelegationTokenIdentifier {
+    public BenchmarkTokenIdentifier() {
+    }
+
+    public BenchmarkTokenIdentifier(Text owner, Text renewer, Text realUser) {
+      super(owner, renewer, realUser);
+    }
+
+    @Override
+    public Text getKind() {
+      return KIND;
+    }
+  }
+
+  static class BenchmarkSecretManager extends
+      AbstractDelegationTokenSecretManager<BenchmarkTokenIdentifier> {
+    BenchmarkSecretManager() {
+      super(DAY, 7 * DAY, DAY, TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @Override
+    public BenchmarkTokenIdentifier createIdentifier() {
+      return new BenchmarkTokenIdentifier();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int tokenCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int verifyThreads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int renewThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+    // the secret manager logs every token created and renewed
+    ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
+        .setLevel(Level.WARN);
+
+    final BenchmarkSecretManager secretManager = new BenchmarkSecretManager();
+    secretManager.startThreads();
+    final List<BenchmarkTokenIdentifier> idents =
+        new ArrayList<BenchmarkTokenIdentifier>(tokenCount);
+    final List<Token<BenchmarkTokenIdentifier>> tokens =
+        new ArrayList<Token<BenchmarkTokenIdentifier>>(tokenCount);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < tokenCount; i++) {
+      BenchmarkTokenIdentifier ident = new BenchmarkTokenIdentifier(
+          new Text("user" + (i % 1000)), new Text(RENEWER), null);
+      idents.add(ident);
+      tokens.add(new Token<BenchmarkTokenIdentifier>(ident, secretManager));
+    }
+    System.out.printf("created %d tokens in %d ms%n", tokenCount,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final CountDownLatch done =
+        new CountDownLatch(verifyThreads + renewThreads);
+    final LongAdder verified = new LongAdder();
+    final LongAdder renewed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    for (int i = 0; i < verifyThreads + renewThreads; i++) {
+      final boolean renew = i >= verifyThreads;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          try {
+            while (!stop.get()) {
+              int index = random.nextInt(idents.size());
+              Token<BenchmarkTokenIdentifier> token = tokens.get(index);
+              try {
+                if (renew) {
+                  secretManager.renewToken(token, RENEWER);
+                  renewed.increment();
+                } else {
+                  secretManager.verifyToken(idents.get(index),
+                      token.getPassword());
+                  verified.increment();
+                }
+              } catch (Exception e) {
+                failed.increment();
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    stop.set(true);
+    done.await();
+    secretManager.stopThreads();
+
+    System.out.printf("%d verify threads: %.0f verifications/s%n",
+        verifyThreads, (double) verified.sum() / seconds);
+    System.out.printf("%d renew threads: %.0f renewals/s%n",
+        renewThreads, (double) renewed.sum() / seconds);
+    System.out.printf("%d failures, %d live tokens%n", failed.sum(),
+        secretManager.getCurrentTokensSize());
+  }
+}
@@ -0,0 +1,131 @@
+package org.apache.hadoop.common.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloRequest;
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloResponse;
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloWorldService;
+import org.apache.hadoop.commons.example.HelloWorldServicePB;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.ConfigurationFactory;
+import org.apache.hadoop.io.retry.RetryPolicies;
+import org.apache.hadoop.ipc.Client;
+import org.apache.hadoop.ipc.ProtobufRpcEngine;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.Server;
+import org.apache.hadoop.net.StandardSocketFactory;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.thirdparty.protobuf.RpcController;
+import org.apache.hadoop.thirdparty.protobuf.ServiceException;
+
+/**
+ * Compares the handler modes of the RPC server under a workload where every
+ * call blocks, e.g. on slow downstream I/O.
+ *
+ * Usage: HandlerModeBenchmark [clients] [callsPerClient] [blockMillis]
+ */
+public class HandlerModeBenchmark {
+
+  private static final int NUM_HANDLERS = 30;
+
+  /** HelloWorld service that sleeps before answering. */
+  private static class BlockingService
+      extends HelloWorldServiceServerSideTranslator {
+    private final long blockMillis;
+
+    BlockingService(long blockMillis) {
+      this.blockMillis = blockMillis;
+    }
+
+    @Override
+    public HelloResponse submitRequest(RpcController controller,
+        HelloRequest request) throws ServiceException {
+      try {
+        Thread.sleep(blockMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ServiceException(e);
+      }
+      return super.submitRequest(controller, request);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    int calls = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+    for (Server.HandlerMode mode : Server.HandlerMode.values()) {
+      run(mode, clients, calls, blockMillis);
+    }
+  }
+
+  private static void run(Server.HandlerMode mode, int clients,
+      final int calls, long blockMillis)
+      throws IOException, InterruptedException {
+    Configuration conf = ConfigurationFactory.newInstance();
+    RPC.setProtocolEngine(conf, HelloWorldServicePB.class,
+        ProtobufRpcEngine.class);
+
+    RPC.Server server = new RPC.Builder(conf)
+        .setProtocol(HelloWorldServicePB.class)
+        .setInstance(HelloWorldService.newReflectiveBlockingService(
+            new BlockingService(blockMillis)))
+        .setBindAddress("127.0.0.1")
+        .setPort(0)
+        .setNumHandlers(NUM_HANDLERS)
+        .setHandlerMode(mode)
+        .build();
+    server.start();
+    InetSocketAddress address = server.getListenerAddress();
+
+    final HelloWorldServicePB proxy = RPC.getProtocolProxy(
+        HelloWorldServicePB.class,
+        RPC.getProtocolVersion(HelloWorldServicePB.class),
+        address,
+        UserGroupInformation.getCurrentUser(),
+        conf,
+        new StandardSocketFactory(),
+        Client.getRpcTimeout(conf),
+        RetryPolicies.TRY_ONCE_THEN_FAIL).getProxy();
+    final AtomicLong failures = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < clients; i++) {
+        final String name = "client-" + i;
+        pool.execute(new Runnable() {
+          @Override
+          public void run() {
+            HelloRequest request =
+                HelloRequest.newBuilder().setName(name).build();
+            for (int j = 0; j < calls; j++) {
+              try {
+                proxy.submitRequest(null, request);
+              } catch (ServiceException e) {
+                failures.incrementAndGet();
+              }
+            }
+          }
+        });
+      }
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.HOURS);
+    } finally {
+      RPC.stopProxy(proxy);
+      server.stop();
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(
+        System.nanoTime() - start);
+    long total = (long) clients * calls;
+    System.out.printf("%-16s %d clients, %d calls, %d ms blocking: "
+            + "%d ms, %.1f calls/s, %d failures%n",
+        mode, clients, total, blockMillis, elapsedMillis,
+        total * 1000.0 / Math.max(1, elapsedMillis), failures.get());
+  }
+}
@@ -0,0 +1,106 @@
+package org.apache.hadoop.common.example;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.Node;
+import org.apache.hadoop.net.NodeBase;
+import org.apache.hadoop.net.SnapshotNetworkTopology;
+
+/**
+ * Compares the read throughput of {@link NetworkTopology} and
+ * {@link SnapshotNetworkTopology}, with reader threads computing distances,
+ * checking racks and choosing random nodes while a writer thread removes and
+ * adds a node back every few milliseconds.
+ *
+ * Usage: NetworkTopologyBenchmark [leaves] [racks] [readerThreads] [seconds]
+ */
+public class NetworkTopologyBenchmark {
+
+  private static final long WRITE_INTERVAL_MS = 10;
+
+  public static void main(String[] args) throws Exception {
+    int leaves = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int racks = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int readers = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+    Node[] nodes = new Node[leaves];
+    for (int i = 0; i < leaves; i++) {
+      nodes[i] = new NodeBase("host" + i, "/rack" + (i % racks));
+    }
+    // run each topology twice, the first run warms up
+    for (int run = 0; run < 2; run++) {
+      run("NetworkTopology", new NetworkTopology(), nodes, readers, seconds);
+      run("SnapshotNetworkTopology", new SnapshotNetworkTopology(), nodes,
+          readers, seconds);
+    }
+  }
+
+  private static void run(String name, final NetworkTopology topology,
+      final Node[] nodes, int readers, int seconds)
+      throws InterruptedException {
+    for (Node node : nodes) {
+      topology.add(node);
+    }
+    final AtomicBoolean stop = new AtomicBoolean();
+    final CountDownLatch done = new CountDownLatch(readers + 1);
+    final LongAdder reads = new LongAdder();
+    final LongAdder writes = new LongAdder();
+    for (int i = 0; i < readers; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          try {
+            while (!stop.get()) {
+              Node node1 = nodes[random.nextInt(nodes.length)];
+              Node node2 = nodes[random.nextInt(nodes.length)];
+              topology.getDistance(node1, node2);
+              topology.isOnSameRack(node1, node2);
+              topology.chooseRandom("~" + node1.getNetworkLocation(),
+                  Collections.singletonList(node2));
+              reads.add(3);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          while (!stop.get()) {
+            Node node = nodes[random.nextInt(nodes.length)];
+            topology.remove(node);
+            topology.add(node);
+            writes.add(2);
+            Thread.sleep(WRITE_INTERVAL_MS);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    writer.setDaemon(true);
+    writer.start();
+    Thread.sleep(seconds * 1000L);
+    stop.set(true);
+    done.await();
+
+    System.out.printf("%-23s %d readers: %.0f reads/s, %.0f writes/s%n",
+        name, readers, (double) reads.sum() / seconds,
+        (double) writes.sum() / seconds);
+  }
+}
@@ -0,0 +1,87 @@
+package org.apache.hadoop.common.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.NetworkTopologyNodeSelector;
+import org.apache.hadoop.net.Node;
+import org.apache.hadoop.net.NodeBase;
+
+/**
+ * Compares choosing random nodes off the rack of a writer with
+ * {@link NetworkTopology#chooseRandom(String, java.util.Collection)} and with
+ * a {@link NetworkTopologyNodeSelector}, with a growing number of excluded
+ * nodes, and choosing the replicas of a block in one batch.
+ *
+ * Usage: NodeSelectorBenchmark [leaves] [racks] [choices]
+ */
+public class NodeSelectorBenchmark {
+
+  private static final int REPLICAS = 3;
+
+  public static void main(String[] args) throws Exception {
+    int leaves = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int racks = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int choices = args.length > 2 ? Integer.parseInt(args[2]) : 3000;
+
+    NetworkTopology topology = new NetworkTopology();
+    List<Node> nodes = new ArrayList<Node>(leaves);
+    for (int i = 0; i < leaves; i++) {
+      Node node = new NodeBase("host" + i, "/rack" + (i % racks));
+      nodes.add(node);
+      topology.add(node);
+    }
+    NetworkTopologyNodeSelector selector =
+        new NetworkTopologyNodeSelector(topology);
+    String scope = "~" + nodes.get(0).getNetworkLocation();
+
+    // run each case twice, the first run warms up
+    for (int run = 0; run < 2; run++) {
+      for (int excludedCount : new int[] {0, leaves / 100, leaves / 2}) {
+        List<Node> shuffled = new ArrayList<Node>(nodes);
+        Collections.shuffle(shuffled, new Random(excludedCount));
+        Set<Node> excluded =
+            new HashSet<Node>(shuffled.subList(0, excludedCount));
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < choices; i++) {
+          topology.chooseRandom(scope, excluded);
+        }
+        report("NetworkTopology", excludedCount, startNanos, choices);
+
+        selector.clearExclusions();
+        selector.exclude(excluded);
+        startNanos = System.nanoTime();
+        for (int i = 0; i < choices; i++) {
+          selector.chooseRandom(scope);
+        }
+        report("selector", excludedCount, startNanos, choices);
+
+        // choose the replicas of a block, then make them choices again
+        startNanos = System.nanoTime();
+        for (int i = 0; i < choices; i += REPLICAS) {
+          for (Node node : selector.chooseRandom(scope, REPLICAS)) {
+            selector.include(node);
+          }
+        }
+        report("selector batch", excludedCount, startNanos, choices);
+      }
+    }
+  }
+
+  private static void report(String name, int excludedCount, long startNanos,
+      int choices) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    System.out.printf("%-15s %5d excluded, %d choices: %d ms, "
+            + "%.1f ns/choice%n",
+        name, excludedCount, choices,
+        TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+        (double) elapsedNanos / choices);
+  }
+}
@@ -0,0 +1,89 @@
+package org.apache.hadoop.common.example;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+import org.apache.hadoop.metrics2.util.LogLinearHistogram;
+import org.apache.hadoop.metrics2.util.QuantileEstimator;
+import org.apache.hadoop.metrics2.util.SampleQuantiles;
+
+/**
+ * Compares the cost of adding values to a {@link MutableQuantiles} backed by
+ * {@link SampleQuantiles} and by {@link LogLinearHistogram}, with as many
+ * threads adding as an RPC server has handlers.
+ *
+ * Usage: QuantilesBenchmark [threads] [valuesPerThread]
+ */
+public class QuantilesBenchmark {
+
+  // long enough for no rollover to happen during a run
+  private static final int INTERVAL_SECONDS = 3600;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int values = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+    // latencies in milliseconds, mostly small with a long tail
+    Random random = new Random(0);
+    long[] latencies = new long[1 << 16];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = (long) Math.exp(random.nextGaussian() * 1.5 + 2);
+    }
+    // run each estimator twice, the first run warms up
+    for (int run = 0; run < 2; run++) {
+      run("SampleQuantiles",
+          new SampleQuantiles(MutableQuantiles.quantiles),
+          threads, values, latencies);
+      run("LogLinearHistogram",
+          new LogLinearHistogram(MutableQuantiles.quantiles,
+              LogLinearHistogram.DEFAULT_PRECISION_BITS,
+              TimeUnit.HOURS.toMillis(1)),
+          threads, values, latencies);
+    }
+  }
+
+  private static void run(String name, QuantileEstimator estimator,
+      int threads, final int values, final long[] latencies)
+      throws InterruptedException {
+    final MutableQuantiles quantiles = new MutableQuantiles("benchmark",
+        "benchmark latency", "ops", "latency", INTERVAL_SECONDS,
+        MutableQuantiles.quantiles, estimator);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      final int seed = i;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            int mask = latencies.length - 1;
+            for (int j = 0; j < values; j++) {
+              quantiles.add(latencies[(seed * 7919 + j) & mask]);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsedNanos = System.nanoTime() - startNanos;
+    quantiles.stop();
+
+    long total = (long) threads * values;
+    System.out.printf("%-18s %d threads, %d values: %d ms, %.1f ns/add, "
+            + "%s%n",
+        name, threads, total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+        (double) elapsedNanos / total,
+        estimator.snapshot().values());
+  }
+}
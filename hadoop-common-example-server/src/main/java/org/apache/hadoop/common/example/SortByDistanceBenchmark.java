@@ -0,0 +1,80 @@
+package org.apache.hadoop.common.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.Node;
+import org.apache.hadoop.net.NodeBase;
+
+/**
+ * Measures the time and the bytes allocated per call of
+ * {@link NetworkTopology#sortByDistance(Node, Node[], int)} and
+ * {@link NetworkTopology#sortByDistanceUsingNetworkLocation(Node, Node[], int)}
+ * sorting the replicas of a block for a reader, as done for every block
+ * located.
+ *
+ * Usage: SortByDistanceBenchmark [replicas] [calls]
+ */
+public class SortByDistanceBenchmark {
+
+  private static final int LEAVES = 10000;
+  private static final int RACKS = 500;
+  private static final int DATA_CENTERS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int replicas = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    int calls = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+
+    NetworkTopology topology = new NetworkTopology();
+    Node[] nodes = new Node[LEAVES];
+    for (int i = 0; i < LEAVES; i++) {
+      int rack = i % RACKS;
+      nodes[i] = new NodeBase("host" + i,
+          "/dc" + (rack % DATA_CENTERS) + "/rack" + rack);
+      topology.add(nodes[i]);
+    }
+    // blocks with their replicas on random nodes, read by random nodes
+    Random random = new Random(0);
+    Node[][] blocks = new Node[1 << 10][];
+    Node[] readers = new Node[blocks.length];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = new Node[replicas];
+      for (int j = 0; j < replicas; j++) {
+        blocks[i][j] = nodes[random.nextInt(LEAVES)];
+      }
+      readers[i] = nodes[random.nextInt(LEAVES)];
+    }
+
+    // run each variant twice, the first run warms up
+    for (int run = 0; run < 2; run++) {
+      for (boolean networkLocation : new boolean[] {false, true}) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        int mask = blocks.length - 1;
+        for (int i = 0; i < calls; i++) {
+          Node[] block = blocks[i & mask];
+          if (networkLocation) {
+            topology.sortByDistanceUsingNetworkLocation(readers[i & mask],
+                block, replicas);
+          } else {
+            topology.sortByDistance(readers[i & mask], block, replicas);
+          }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        System.out.printf("%-34s %d replicas, %d calls: %d ms, "
+                + "%.1f ns/call, %.1f bytes/call%n",
+            networkLocation ? "sortByDistanceUsingNetworkLocation"
+                : "sortByDistance",
+            replicas, calls, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+            (double) elapsedNanos / calls, (double) bytes / calls);
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package org.apache.hadoop.common.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloRequest;
+import org.apache.hadoop.common.example.HelloWorldProtocolProto.HelloWorldService;
+import org.apache.hadoop.commons.example.HelloWorldServicePB;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.ConfigurationFactory;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.io.retry.RetryPolicies;
+import org.apache.hadoop.ipc.Client;
+import org.apache.hadoop.ipc.ProtobufRpcEngine;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.net.StandardSocketFactory;
+import org.apache.hadoop.net.unix.UnixDomainSockets;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.thirdparty.protobuf.ServiceException;
+
+/**
+ * Compares the latency and the throughput of HelloWorld calls to a local
+ * server over loopback TCP and over a UNIX domain socket. The latency is
+ * measured with one client calling sequentially, the throughput with
+ * concurrent clients sharing the connection.
+ *
+ * Usage: UnixDomainSocketBenchmark [calls] [clients] [payloadBytes]
+ */
+public class UnixDomainSocketBenchmark {
+
+  private static final int NUM_HANDLERS = 16;
+
+  public static void main(String[] args) throws Exception {
+    int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int payloadBytes = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+    if (!UnixDomainSockets.isSupported()) {
+      System.out.println("Measuring TCP only: " +
+          UnixDomainSockets.getLoadingFailureReason());
+    }
+    String address = "unix://" + new File(
+        System.getProperty("java.io.tmpdir"), "hello._PORT.sock").getPath();
+    char[] name = new char[payloadBytes];
+    Arrays.fill(name, 'x');
+    HelloRequest request =
+        HelloRequest.newBuilder().setName(new String(name)).build();
+
+    // run each transport twice, the first run warms up
+    for (int run = 0; run < 2; run++) {
+      run("TCP", "", calls, clients, request);
+      if (UnixDomainSockets.isSupported()) {
+        run("UNIX domain", address, calls, clients, request);
+      }
+    }
+  }
+
+  private static void run(String transport, String domainSocketAddress,
+      final int calls, int clients, final HelloRequest request)
+      throws IOException, InterruptedException {
+    Configuration conf = ConfigurationFactory.newInstance();
+    conf.set(CommonConfigurationKeysPublic.IPC_UNIX_DOMAIN_SOCKET_ADDRESS_KEY,
+        domainSocketAddress);
+    RPC.setProtocolEngine(conf, HelloWorldServicePB.class,
+        ProtobufRpcEngine.class);
+
+    RPC.Server server = new RPC.Builder(conf)
+        .setProtocol(HelloWorldServicePB.class)
+        .setInstance(HelloWorldService.newReflectiveBlockingService(
+            new HelloWorldServiceServerSideTranslator()))
+        // only servers bound to the wildcard address listen on the socket
+        .setBindAddress("0.0.0.0")
+        .setPort(0)
+        .setNumHandlers(NUM_HANDLERS)
+        .build();
+    server.start();
+    InetSocketAddress address = new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), server.getPort());
+
+    final HelloWorldServicePB proxy = RPC.getProtocolProxy(
+        HelloWorldServicePB.class,
+        RPC.getProtocolVersion(HelloWorldServicePB.class),
+        address,
+        UserGroupInformation.getCurrentUser(),
+        conf,
+        new StandardSocketFactory(),
+        Client.getRpcTimeout(conf),
+        RetryPolicies.TRY_ONCE_THEN_FAIL).getProxy();
+    final AtomicLong failures = new AtomicLong();
+    try {
+      // latency of sequential calls
+      long[] latencies = new long[calls];
+      long start = System.nanoTime();
+      for (int i = 0; i < calls; i++) {
+        long callStart = System.nanoTime();
+        try {
+          proxy.submitRequest(null, request);
+        } catch (ServiceException e) {
+          failures.incrementAndGet();
+        }
+        latencies[i] = System.nanoTime() - callStart;
+      }
+      long elapsedNanos = System.nanoTime() - start;
+      Arrays.sort(latencies);
+      System.out.printf("%-11s latency,    %d calls of %d bytes: "
+              + "mean %.1f us, p50 %.1f us, p99 %.1f us%n",
+          transport, calls, request.getName().length(),
+          elapsedNanos / 1000.0 / calls,
+          latencies[calls / 2] / 1000.0,
+          latencies[(int) (calls * 0.99)] / 1000.0);
+
+      // throughput of concurrent calls
+      ExecutorService pool = Executors.newFixedThreadPool(clients);
+      start = System.nanoTime();
+      for (int i = 0; i < clients; i++) {
+        pool.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = 0; j < calls; j++) {
+              try {
+                proxy.submitRequest(null, request);
+              } catch (ServiceException e) {
+                failures.incrementAndGet();
+              }
+            }
+          }
+        });
+      }
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.HOURS);
+      elapsedNanos = System.nanoTime() - start;
+      long total = (long) clients * calls;
+      // the request carries the payload and the response echoes it
+      double megabytes = 2.0 * total * request.getName().length() / 1e6;
+      double seconds = elapsedNanos / 1e9;
+      System.out.printf("%-11s throughput, %d clients, %d calls: %d ms, "
+              + "%.1f calls/s, %.1f MB/s, %d failures%n",
+          transport, clients, total,
+          TimeUnit.NANOSECONDS.toMillis(elapsedNanos), total / seconds,
+          megabytes / seconds, failures.get());
+    } finally {
+      RPC.stopProxy(proxy);
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.apache.hadoop.ipc;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the on-heap and off-heap storage of the {@link RetryCache}: the
+ * garbage collection time spent while the cache is filled and churned, the
+ * pause of a full collection with the cache live, and the latency of
+ * looking up retried calls.  It lives in the ipc package to build lookup
+ * keys the way the server does.
+ *
+ * Usage: RetryCacheBenchmark [capacity] [lookups] [clients]
+ */
+public class RetryCacheBenchmark {
+
+  private static final long EXPIRATION_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  public static void main(String[] args) {
+    int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int clients = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+    byte[][] clientIds = new byte[clients][];
+    for (int i = 0; i < clients; i++) {
+      clientIds[i] = ClientId.getClientId();
+    }
+    // run each mode twice, the first run warms up; every cache registers
+    // its metrics under its own name
+    for (int run = 0; run < 2; run++) {
+      run("on-heap", new RetryCache("BenchmarkHeap" + run, capacity,
+          EXPIRATION_NANOS, false), clientIds, capacity, lookups);
+      run("off-heap", new RetryCache("BenchmarkOffHeap" + run, capacity,
+          EXPIRATION_NANOS, true), clientIds, capacity, lookups);
+    }
+  }
+
+  private static void run(String name, RetryCache cache, byte[][] clientIds,
+      int capacity, int lookups) {
+    System.gc();
+    long gcMillis = gcMillis();
+    long start = System.nanoTime();
+    // fill the cache twice over, so that entries get evicted
+    int calls = capacity * 2;
+    for (int i = 0; i < calls; i++) {
+      cache.addCacheEntry(clientIds[i % clientIds.length], i);
+    }
+    long fillMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    gcMillis = gcMillis() - gcMillis;
+
+    long pauseStart = System.nanoTime();
+    System.gc();
+    long fullGcMillis =
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pauseStart);
+
+    // look up calls of the second half, which are still cached
+    Random random = new Random(0);
+    long[] latencies = new long[lookups];
+    int hits = 0;
+    for (int i = 0; i < lookups; i++) {
+      int callId = capacity + random.nextInt(capacity);
+      RetryCache.CacheEntry key = new RetryCache.CacheEntry(
+          clientIds[callId % clientIds.length], callId, 0);
+      long lookupStart = System.nanoTime();
+      if (cache.getCacheSet().get(key) != null) {
+        hits++;
+      }
+      latencies[i] = System.nanoTime() - lookupStart;
+    }
+    Arrays.sort(latencies);
+
+    System.out.printf("%-8s %d entries: fill %d ms, gc during fill %d ms, "
+            + "full gc %d ms, lookup p50 %d ns p99 %d ns p999 %d ns, "
+            + "%d/%d hits%n",
+        name, cache.getCacheSet().size(), fillMillis, gcMillis, fullGcMillis,
+        latencies[lookups / 2], latencies[lookups / 100 * 99],
+        latencies[lookups / 1000 * 999], hits, lookups);
+    RetryCache.clear(cache);
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+}
@@ -98,4 +98,12 @@ public interface RetryPolicy {
    */
   public RetryAction shouldRetry(Exception e, int retries, int failovers,
       boolean isIdempotentOrAtMostOnce) throws Exception;
+
+  /**
+   * @return how long, in milliseconds, the policy retries an operation from
+   *         its first attempt, 0 if the retries are not limited by time
+   */
+  default long getMaxRetryTime() {
+    return 0;
+  }
 }
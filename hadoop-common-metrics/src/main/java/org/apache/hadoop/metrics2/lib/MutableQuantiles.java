@@ -20,6 +20,8 @@ package org.apache.hadoop.metrics2.lib;
 
 import static org.apache.hadoop.metrics2.lib.Interns.info;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -52,11 +54,12 @@ public class MutableQuantiles extends MutableMetric {
       new Quantile(0.75, 0.025), new Quantile(0.90, 0.010),
       new Quantile(0.95, 0.005), new Quantile(0.99, 0.001) };
 
+  private final Quantile[] reportedQuantiles;
   private final MetricsInfo numInfo;
   private final MetricsInfo[] quantileInfos;
   private final int interval;
 
-  private QuantileEstimator estimator;
+  private volatile QuantileEstimator estimator;
   private long previousCount = 0;
   private ScheduledFuture<?> scheduledTask = null;
 
@@ -84,6 +87,34 @@ public class MutableQuantiles extends MutableMetric {
    */
   public MutableQuantiles(String name, String description, String sampleName,
       String valueName, int interval) {
+    this(name, description, sampleName, valueName, interval, quantiles,
+        new SampleQuantiles(quantiles));
+  }
+
+  /**
+   * Instantiates a new {@link MutableQuantiles} for a metric that rolls itself
+   * over on the specified time interval, reporting the given quantiles as
+   * estimated by the given estimator.
+   *
+   * @param name
+   *          of the metric
+   * @param description
+   *          long-form textual description of the metric
+   * @param sampleName
+   *          type of items in the stream (e.g., "Ops")
+   * @param valueName
+   *          type of the values
+   * @param interval
+   *          rollover interval (in seconds) of the estimator
+   * @param reportedQuantiles
+   *          the quantiles to report, which the estimator tracks
+   * @param estimator
+   *          estimator of the quantiles
+   */
+  public MutableQuantiles(String name, String description, String sampleName,
+      String valueName, int interval, Quantile[] reportedQuantiles,
+      QuantileEstimator estimator) {
+    this.reportedQuantiles = reportedQuantiles;
     String ucName = StringUtils.capitalize(name);
     String usName = StringUtils.capitalize(sampleName);
     String uvName = StringUtils.capitalize(valueName);
@@ -94,17 +125,24 @@ public class MutableQuantiles extends MutableMetric {
     numInfo = info(ucName + "Num" + usName, String.format(
         "Number of %s for %s with %ds interval", lsName, desc, interval));
     // Construct the MetricsInfos for the quantiles, converting to percentiles
-    quantileInfos = new MetricsInfo[quantiles.length];
-    String nameTemplate = ucName + "%dthPercentile" + uvName;
-    String descTemplate = "%d percentile " + lvName + " with " + interval
+    quantileInfos = new MetricsInfo[reportedQuantiles.length];
+    String nameTemplate = ucName + "%sthPercentile" + uvName;
+    String descTemplate = "%s percentile " + lvName + " with " + interval
         + " second interval for " + desc;
-    for (int i = 0; i < quantiles.length; i++) {
-      int percentile = (int) (100 * quantiles[i].quantile);
-      quantileInfos[i] = info(String.format(nameTemplate, percentile),
+    for (int i = 0; i < reportedQuantiles.length; i++) {
+      // rounded to the 15 significant digits a double holds, so that a
+      // quantile computed in binary, such as 99.9 / 100, is named after the
+      // decimal it approximates
+      String percentile = new BigDecimal(reportedQuantiles[i].quantile,
+          new MathContext(15)).movePointRight(2).stripTrailingZeros()
+          .toPlainString();
+      // 99thPercentile for the 0.99 quantile, 999thPercentile for 0.999
+      quantileInfos[i] = info(
+          String.format(nameTemplate, percentile.replace(".", "")),
           String.format(descTemplate, percentile));
     }
 
-    estimator = new SampleQuantiles(quantiles);
+    this.estimator = estimator;
 
     this.interval = interval;
     scheduledTask = scheduler.scheduleWithFixedDelay(new RolloverSample(this),
@@ -115,11 +153,11 @@ public class MutableQuantiles extends MutableMetric {
   public synchronized void snapshot(MetricsRecordBuilder builder, boolean all) {
     if (all || changed()) {
       builder.addGauge(numInfo, previousCount);
-      for (int i = 0; i < quantiles.length; i++) {
+      for (int i = 0; i < reportedQuantiles.length; i++) {
         long newValue = 0;
         // If snapshot is null, we failed to update since the window was empty
         if (previousSnapshot != null) {
-          newValue = previousSnapshot.get(quantiles[i]);
+          newValue = previousSnapshot.get(reportedQuantiles[i]);
         }
         builder.addGauge(quantileInfos[i], newValue);
       }
@@ -129,8 +167,16 @@ public class MutableQuantiles extends MutableMetric {
     }
   }
 
-  public synchronized void add(long value) {
-    estimator.insert(value);
+  public void add(long value) {
+    QuantileEstimator current = estimator;
+    if (current.isConcurrent()) {
+      current.insert(value);
+      return;
+    }
+    // keep the value out of the window being rolled over
+    synchronized (this) {
+      estimator.insert(value);
+    }
   }
 
   public int getInterval() {
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.metrics2.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * A quantile estimator that counts values in a fixed log-linear histogram,
+ * in the manner of HdrHistogram. Values below 2^precisionBits get a bucket
+ * each; above that every power of two is split into 2^precisionBits equal
+ * buckets. A quantile is reported as the middle of its bucket, so its
+ * relative error is at most 2^-(precisionBits + 1), whatever the
+ * distribution. Values above the highest trackable value are counted as
+ * that value.
+ *
+ * Unlike {@link SampleQuantiles}, inserting takes no lock and allocates
+ * nothing. Each thread counts into one of a fixed number of stripes, picked
+ * when it first inserts, and a snapshot sums up the stripes. The memory
+ * used is fixed by the precision, the highest trackable value and the
+ * number of processors. A value inserted while the estimator is cleared may
+ * be lost.
+ */
+@InterfaceAudience.Private
+public class LogLinearHistogram implements QuantileEstimator {
+
+  /** Default precision, for a relative error of at most 1/64. */
+  public static final int DEFAULT_PRECISION_BITS = 5;
+
+  private static final int MAX_STRIPES = 16;
+  private static final AtomicInteger NEXT_STRIPE = new AtomicInteger();
+  // stripe of each thread, shared by all histograms
+  private static final ThreadLocal<Integer> STRIPE =
+      new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+          return NEXT_STRIPE.getAndIncrement();
+        }
+      };
+
+  private final Quantile[] quantiles;
+  private final int precisionBits;
+  private final long highestTrackableValue;
+  private final int bucketCount;
+  private final int stripeMask;
+  // the counts of every stripe, one bucket after the other
+  private volatile AtomicLongArray counts;
+
+  /**
+   * Create a histogram with the default precision that tracks any value.
+   * @param quantiles the quantiles to report
+   */
+  public LogLinearHistogram(Quantile[] quantiles) {
+    this(quantiles, DEFAULT_PRECISION_BITS, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param quantiles the quantiles to report
+   * @param precisionBits log2 of the buckets each power of two is split into
+   * @param highestTrackableValue the highest value told apart from larger
+   *        ones
+   */
+  public LogLinearHistogram(Quantile[] quantiles, int precisionBits,
+      long highestTrackableValue) {
+    Preconditions.checkArgument(precisionBits > 0 && precisionBits <= 16,
+        "precisionBits must be between 1 and 16");
+    Preconditions.checkArgument(highestTrackableValue > 0,
+        "highestTrackableValue must be positive");
+    this.quantiles = quantiles;
+    this.precisionBits = precisionBits;
+    this.highestTrackableValue = highestTrackableValue;
+    this.bucketCount = bucketIndex(highestTrackableValue) + 1;
+    int stripes = Math.min(MAX_STRIPES,
+        Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+    this.stripeMask = stripes - 1;
+    this.counts = new AtomicLongArray(stripes * bucketCount);
+  }
+
+  @VisibleForTesting
+  int bucketIndex(long value) {
+    if (value < (1L << precisionBits)) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+    int subBucket = (int) (value >>> shift) & ((1 << precisionBits) - 1);
+    return ((shift + 1) << precisionBits) + subBucket;
+  }
+
+  /** @return the lowest value counted in the bucket */
+  @VisibleForTesting
+  long lowestValue(int index) {
+    int shift = (index >>> precisionBits) - 1;
+    if (shift < 0) {
+      return index;
+    }
+    long subBucket = index & ((1 << precisionBits) - 1);
+    return ((1L << precisionBits) + subBucket) << shift;
+  }
+
+  /** @return the value reported for the bucket, its middle */
+  private long reportedValue(int index) {
+    int shift = (index >>> precisionBits) - 1;
+    long lowest = lowestValue(index);
+    if (shift <= 0) {
+      return lowest;
+    }
+    return Math.min(highestTrackableValue, lowest + (1L << (shift - 1)));
+  }
+
+  @Override
+  public void insert(long value) {
+    int index = bucketIndex(
+        Math.max(0, Math.min(value, highestTrackableValue)));
+    int stripe = STRIPE.get() & stripeMask;
+    counts.getAndIncrement(stripe * bucketCount + index);
+  }
+
+  @Override
+  public boolean isConcurrent() {
+    return true;
+  }
+
+  /** @return the count of every bucket, summed over the stripes */
+  private long[] merge() {
+    AtomicLongArray current = counts;
+    long[] merged = new long[bucketCount];
+    for (int i = 0; i < current.length(); i++) {
+      merged[i % bucketCount] += current.get(i);
+    }
+    return merged;
+  }
+
+  @Override
+  public Map<Quantile, Long> snapshot() {
+    long[] merged = merge();
+    long total = 0;
+    for (long count : merged) {
+      total += count;
+    }
+    if (total == 0) {
+      return null;
+    }
+    Map<Quantile, Long> values = new TreeMap<Quantile, Long>();
+    for (Quantile quantile : quantiles) {
+      // the rank of the quantile, counting from 1
+      long rank = Math.max(1, (long) Math.ceil(quantile.quantile * total));
+      long seen = 0;
+      int index = 0;
+      while (index < bucketCount - 1) {
+        seen += merged[index];
+        if (seen >= rank) {
+          break;
+        }
+        index++;
+      }
+      values.put(quantile, reportedValue(index));
+    }
+    return values;
+  }
+
+  @Override
+  public long getCount() {
+    long total = 0;
+    AtomicLongArray current = counts;
+    for (int i = 0; i < current.length(); i++) {
+      total += current.get(i);
+    }
+    return total;
+  }
+
+  @Override
+  public void clear() {
+    counts = new AtomicLongArray(counts.length());
+  }
+
+  @Override
+  public String toString() {
+    Map<Quantile, Long> data = snapshot();
+    return data == null ? "[no samples]" : data.toString();
+  }
+}
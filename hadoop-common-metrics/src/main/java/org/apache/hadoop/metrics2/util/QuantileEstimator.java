@@ -29,4 +29,12 @@ public interface QuantileEstimator {
   long getCount();
 
   void clear();
+
+  /**
+   * @return true if values may be inserted concurrently, without holding
+   *         a lock shared with {@link #snapshot()} and {@link #clear()}
+   */
+  default boolean isConcurrent() {
+    return false;
+  }
 }
@@ -315,6 +315,11 @@ public class RetryPolicies {
       return constructReasonString(this.maxTime, this.timeUnit);
     }
 
+    @Override
+    public long getMaxRetryTime() {
+      return timeUnit.toMillis(maxTime);
+    }
+
     @VisibleForTesting
     public static String constructReasonString(long maxTime,
         TimeUnit timeUnit) {
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.metrics.DecayRpcSchedulerDetailedMetrics;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link CostProvider} that charges a call by what its method usually
+ * costs. It keeps an exponentially weighted moving average of the weighted
+ * processing time (see {@link WeightedTimeCostProvider}) of every method and
+ * of all calls, and charges a call the average of its method relative to the
+ * average of all calls, times a scale. With the default scale of
+ * {@value #DEFAULT_SCALE}, a call of a method twice as expensive as the
+ * average call costs 200, and every call costs at least 1. A caller sending
+ * heavy scans is thus deprioritized before a caller sending many cheap calls.
+ *
+ * <p/>The weights are configured as for {@link WeightedTimeCostProvider}; the
+ * smoothing factor of the averages, the scale and the number of methods
+ * tracked use the {@link #CONFIG_PREFIX} key, prefixed with the IPC namespace.
+ * For example:
+ * <pre>
+ *   ipc.8020.cost-provider.impl=org.apache.hadoop.ipc.AdaptiveCostProvider
+ *   ipc.8020.adaptive-cost.alpha=0.05
+ *   ipc.8020.adaptive-cost.scale=100
+ *   ipc.8020.adaptive-cost.max-methods=1024
+ * </pre>
+ * The average cost of every method is published through
+ * {@link DecayRpcSchedulerDetailedMetrics}.
+ */
+public class AdaptiveCostProvider extends WeightedTimeCostProvider {
+
+  /**
+   * The prefix used in configuration values of this provider. See the class
+   * Javadoc for more info.
+   */
+  public static final String CONFIG_PREFIX = ".adaptive-cost.";
+  public static final String ALPHA_KEY = "alpha";
+  static final double DEFAULT_ALPHA = 0.05;
+  public static final String SCALE_KEY = "scale";
+  static final int DEFAULT_SCALE = 100;
+  public static final String MAX_METHODS_KEY = "max-methods";
+  static final int DEFAULT_MAX_METHODS = 1024;
+
+  /** A moving average, updated without locking. */
+  static final class MovingAverage {
+    private final AtomicLong bits =
+        new AtomicLong(Double.doubleToLongBits(Double.NaN));
+
+    double get() {
+      return Double.longBitsToDouble(bits.get());
+    }
+
+    /** Add a sample and return the new average. */
+    double add(double sample, double alpha) {
+      for (;;) {
+        long current = bits.get();
+        double average = Double.longBitsToDouble(current);
+        double next = Double.isNaN(average)
+            ? sample : average + alpha * (sample - average);
+        if (bits.compareAndSet(current, Double.doubleToLongBits(next))) {
+          return next;
+        }
+      }
+    }
+  }
+
+  private final ConcurrentHashMap<String, MovingAverage> methodCosts =
+      new ConcurrentHashMap<String, MovingAverage>();
+  private final MovingAverage overallCost = new MovingAverage();
+  private double alpha;
+  private int scale;
+  private int maxMethods;
+  private volatile DecayRpcSchedulerDetailedMetrics metrics;
+
+  @Override
+  public void init(String namespace, Configuration conf) {
+    super.init(namespace, conf);
+    String prefix = namespace + CONFIG_PREFIX;
+    alpha = conf.getDouble(prefix + ALPHA_KEY, DEFAULT_ALPHA);
+    Preconditions.checkArgument(alpha > 0 && alpha <= 1,
+        "%s%s must be in (0, 1]", prefix, ALPHA_KEY);
+    scale = conf.getInt(prefix + SCALE_KEY, DEFAULT_SCALE);
+    Preconditions.checkArgument(scale > 0,
+        "%s%s must be positive", prefix, SCALE_KEY);
+    maxMethods = conf.getInt(prefix + MAX_METHODS_KEY, DEFAULT_MAX_METHODS);
+  }
+
+  /**
+   * Publish the average cost of every method through the given metrics.
+   * @param metrics metrics of the scheduler using this provider
+   */
+  void setMetrics(DecayRpcSchedulerDetailedMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Without the method, a call is charged by its own weighted processing
+   * time, relative to the average of all calls.
+   */
+  @Override
+  public long getCost(ProcessingDetails details) {
+    return getCost(null, details);
+  }
+
+  @Override
+  public long getCost(String methodName, ProcessingDetails details) {
+    double sample = super.getCost(details);
+    double overall = overallCost.add(sample, alpha);
+    double cost = sample;
+    MovingAverage methodCost = getMethodCost(methodName);
+    if (methodCost != null) {
+      cost = methodCost.add(sample, alpha);
+      DecayRpcSchedulerDetailedMetrics m = metrics;
+      if (m != null) {
+        m.setMethodCost(methodName, (float) cost);
+      }
+    }
+    if (overall <= 0) {
+      return scale;
+    }
+    return Math.max(1, Math.round(scale * cost / overall));
+  }
+
+  private MovingAverage getMethodCost(String methodName) {
+    if (methodName == null) {
+      return null;
+    }
+    MovingAverage methodCost = methodCosts.get(methodName);
+    if (methodCost == null && methodCosts.size() < maxMethods) {
+      methodCost = methodCosts.computeIfAbsent(methodName,
+          name -> new MovingAverage());
+    }
+    return methodCost;
+  }
+
+  /**
+   * @param methodName name of the method
+   * @return the average weighted processing time of the method, NaN if no
+   *         call of the method was seen
+   */
+  double getAverageCost(String methodName) {
+    MovingAverage methodCost = methodCosts.get(methodName);
+    return methodCost != null ? methodCost.get() : Double.NaN;
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Used by {@link Server} to decide whether a call may enter the call queue at
+ * all. A call that is not admitted is answered with a
+ * {@link org.apache.hadoop.ipc.RetriableException} before it is queued or
+ * scheduled. This is configurable using
+ * {@link org.apache.hadoop.fs.CommonConfigurationKeys#IPC_ADMISSION_CONTROLLER_KEY};
+ * by default every call is admitted.
+ */
+public interface AdmissionController {
+
+  /**
+   * Initialize this controller using the given configuration, examining only
+   * ones which fall within the provided namespace.
+   *
+   * @param namespace The namespace to use when looking up configurations.
+   * @param conf The configuration
+   */
+  void init(String namespace, Configuration conf);
+
+  /**
+   * Decide whether a call may be queued. This is called by the reader
+   * threads, so it must not block.
+   *
+   * @param call the call
+   * @param protocol name of the protocol of the call, null if unknown
+   * @return true if the call may be queued
+   */
+  boolean admit(Schedulable call, String protocol);
+
+  /**
+   * Release the resources of this controller, it is not used any more.
+   */
+  void stop();
+}
@@ -0,0 +1,358 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongToIntFunction;
+
+/**
+ * The decayed and raw call cost of each identity known to a
+ * {@link DecayRpcScheduler}, with the priority level the last decay sweep
+ * computed for it.
+ * <p>
+ * Identities are spread over striped open-addressed tables that keep the
+ * cells of all their entries in one long array, so charging a call to a
+ * known identity takes no lock and allocates nothing.  Inserts, sweeps and
+ * rehashes lock a single stripe.  When a sweep removes an entry or a rehash
+ * moves it, its costs are replaced by {@link #MOVED}; an update that runs
+ * into that looks the identity up again under the stripe lock, so no cost
+ * is lost.  A slot is never reused until its stripe is rehashed.
+ */
+final class CallCostTable {
+
+  /** Visits an entry of the table. */
+  interface Visitor {
+    void visit(Object identity, long decayedCost, long rawCost, int level);
+  }
+
+  /** Level of an entry inserted since the last decay sweep. */
+  static final int NO_LEVEL = -1;
+
+  // cost of an entry that no longer lives in this table
+  private static final long MOVED = Long.MIN_VALUE;
+  // key of a removed entry
+  private static final Object TOMBSTONE = new Object();
+
+  private static final int STRIPE_SHIFT = 6;
+  private static final int NUM_STRIPES = 1 << STRIPE_SHIFT;
+  private static final int MIN_CAPACITY = 16;
+
+  // cells of an entry: decayed cost, raw cost and level
+  private static final int DECAYED = 0;
+  private static final int RAW = 1;
+  private static final int LEVEL = 2;
+  private static final int CELLS = 3;
+
+  private static final class Table {
+    private final AtomicReferenceArray<Object> keys;
+    private final AtomicLongArray cells;
+    private final int mask;
+    // live entries; written under the stripe lock
+    private volatile int size;
+    // live entries and tombstones; guarded by the stripe lock
+    private int used;
+
+    Table(int capacity) {
+      keys = new AtomicReferenceArray<Object>(capacity);
+      cells = new AtomicLongArray(capacity * CELLS);
+      mask = capacity - 1;
+    }
+
+    int capacity() {
+      return mask + 1;
+    }
+
+    int find(Object identity, int hash) {
+      for (int slot = (hash >>> STRIPE_SHIFT) & mask;;
+           slot = (slot + 1) & mask) {
+        Object key = keys.get(slot);
+        if (key == null) {
+          return -1;
+        }
+        if (key != TOMBSTONE && (key == identity || key.equals(identity))) {
+          return slot;
+        }
+      }
+    }
+
+    /** Add an entry; the caller holds the stripe lock. */
+    void put(Object identity, int hash, long decayed, long raw, long level) {
+      int slot = (hash >>> STRIPE_SHIFT) & mask;
+      while (keys.get(slot) != null) {
+        slot = (slot + 1) & mask;
+      }
+      int base = slot * CELLS;
+      cells.set(base + DECAYED, decayed);
+      cells.set(base + RAW, raw);
+      cells.set(base + LEVEL, level);
+      // publish the key last, the cells are read once it is found
+      keys.set(slot, identity);
+      size++;
+      used++;
+    }
+  }
+
+  private static final class Stripe {
+    private volatile Table table = new Table(MIN_CAPACITY);
+  }
+
+  private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+  private final LongAdder totalDecayedCost = new LongAdder();
+  private final LongAdder totalRawCost = new LongAdder();
+  // raw cost of the entries dropped by the last sweep, which stays in the
+  // raw total until the next sweep; guarded by this
+  private long removedRawCost;
+
+  CallCostTable() {
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  private static int hash(Object identity) {
+    int h = identity.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private Stripe stripeFor(int hash) {
+    return stripes[hash & (NUM_STRIPES - 1)];
+  }
+
+  /** Smallest table that holds the entries at most half full. */
+  private static int capacityFor(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < entries * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /**
+   * Charge a cost to an identity, adding it if it is new.
+   * @param identity the identity
+   * @param cost the cost to add to both its decayed and raw cost
+   */
+  void add(Object identity, long cost) {
+    int hash = hash(identity);
+    Stripe stripe = stripeFor(hash);
+    boolean decayedAdded = false;
+    for (;;) {
+      Table table = stripe.table;
+      int slot = table.find(identity, hash);
+      if (slot >= 0) {
+        int base = slot * CELLS;
+        if (!decayedAdded) {
+          decayedAdded = addIfPresent(table.cells, base + DECAYED, cost);
+        }
+        if (decayedAdded && addIfPresent(table.cells, base + RAW, cost)) {
+          break;
+        }
+      }
+      // new identity, or one that is being removed or moved
+      insert(stripe, identity, hash);
+    }
+    totalDecayedCost.add(cost);
+    totalRawCost.add(cost);
+  }
+
+  private static boolean addIfPresent(AtomicLongArray cells, int index,
+      long delta) {
+    for (;;) {
+      long value = cells.get(index);
+      if (value == MOVED) {
+        return false;
+      }
+      if (cells.compareAndSet(index, value, value + delta)) {
+        return true;
+      }
+    }
+  }
+
+  private void insert(Stripe stripe, Object identity, int hash) {
+    synchronized (stripe) {
+      Table table = stripe.table;
+      if (table.find(identity, hash) >= 0) {
+        return;
+      }
+      // keep at least a quarter of the slots empty to bound the probes
+      if ((table.used + 1) * 4 > table.capacity() * 3) {
+        table = rehash(stripe, table, capacityFor(table.size + 1));
+      }
+      table.put(identity, hash, 0, 0, NO_LEVEL);
+    }
+  }
+
+  /** Move the live entries of a stripe to a new table. */
+  private static Table rehash(Stripe stripe, Table table, int capacity) {
+    Table next = new Table(capacity);
+    for (int slot = 0; slot < table.capacity(); slot++) {
+      Object key = table.keys.get(slot);
+      if (key == null || key == TOMBSTONE) {
+        continue;
+      }
+      int base = slot * CELLS;
+      long decayed = table.cells.getAndSet(base + DECAYED, MOVED);
+      long raw = table.cells.getAndSet(base + RAW, MOVED);
+      next.put(key, hash(key), decayed, raw, table.cells.get(base + LEVEL));
+    }
+    stripe.table = next;
+    return next;
+  }
+
+  /**
+   * Multiply every decayed cost by the factor and drop the entries that
+   * decay to zero.  The stripes are swept one at a time, so callers only
+   * ever wait for the sweep of a single stripe.
+   * @param factor decay factor between 0 and 1
+   */
+  synchronized void decay(double factor) {
+    long removedRaw = 0;
+    for (Stripe stripe : stripes) {
+      long decayedDelta = 0;
+      synchronized (stripe) {
+        Table table = stripe.table;
+        AtomicLongArray cells = table.cells;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+          Object key = table.keys.get(slot);
+          if (key == null || key == TOMBSTONE) {
+            continue;
+          }
+          int base = slot * CELLS;
+          long cost;
+          long next;
+          do {
+            cost = cells.get(base + DECAYED);
+            next = (long) (cost * factor);
+          } while (!cells.compareAndSet(base + DECAYED, cost, next));
+          decayedDelta += next - cost;
+          // a call charged in the meantime keeps the entry
+          if (next == 0 && cells.compareAndSet(base + DECAYED, 0, MOVED)) {
+            removedRaw += cells.getAndSet(base + RAW, MOVED);
+            table.keys.set(slot, TOMBSTONE);
+            table.size--;
+          }
+        }
+        if (capacityFor(table.size) * 4 <= table.capacity()) {
+          rehash(stripe, table, capacityFor(table.size));
+        }
+      }
+      totalDecayedCost.add(decayedDelta);
+    }
+    totalRawCost.add(-removedRawCost);
+    removedRawCost = removedRaw;
+  }
+
+  /**
+   * Recompute the level of every entry from its decayed cost.
+   * @param levelOf maps a decayed cost to a priority level
+   */
+  void updateLevels(LongToIntFunction levelOf) {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        Table table = stripe.table;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+          Object key = table.keys.get(slot);
+          if (key == null || key == TOMBSTONE) {
+            continue;
+          }
+          int base = slot * CELLS;
+          table.cells.set(base + LEVEL,
+              levelOf.applyAsInt(table.cells.get(base + DECAYED)));
+        }
+      }
+    }
+  }
+
+  /**
+   * @param identity the identity
+   * @return the level of the identity as of the last sweep, or
+   *         {@link #NO_LEVEL} if it was not known then
+   */
+  int getLevel(Object identity) {
+    int hash = hash(identity);
+    Table table = stripeFor(hash).table;
+    int slot = table.find(identity, hash);
+    return slot < 0 ? NO_LEVEL : (int) table.cells.get(slot * CELLS + LEVEL);
+  }
+
+  /**
+   * @param identity the identity
+   * @return the decayed cost of the identity, 0 if it is unknown
+   */
+  long getDecayedCost(Object identity) {
+    int hash = hash(identity);
+    Stripe stripe = stripeFor(hash);
+    Table table = stripe.table;
+    int slot = table.find(identity, hash);
+    long cost = slot < 0 ? 0 : table.cells.get(slot * CELLS + DECAYED);
+    if (cost == MOVED) {
+      synchronized (stripe) {
+        table = stripe.table;
+        slot = table.find(identity, hash);
+        cost = slot < 0 ? 0 : table.cells.get(slot * CELLS + DECAYED);
+      }
+    }
+    return cost;
+  }
+
+  /**
+   * Visit the entries of the table.  Entries charged, added or removed
+   * concurrently may or may not be seen.
+   * @param visitor the visitor
+   */
+  void forEach(Visitor visitor) {
+    for (Stripe stripe : stripes) {
+      Table table = stripe.table;
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        Object key = table.keys.get(slot);
+        if (key == null || key == TOMBSTONE) {
+          continue;
+        }
+        int base = slot * CELLS;
+        long decayed = table.cells.get(base + DECAYED);
+        long raw = table.cells.get(base + RAW);
+        if (decayed != MOVED && raw != MOVED) {
+          visitor.visit(key, decayed, raw,
+              (int) table.cells.get(base + LEVEL));
+        }
+      }
+    }
+  }
+
+  /** @return the number of identities in the table */
+  int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.table.size;
+    }
+    return size;
+  }
+
+  /** @return the sum of the decayed costs */
+  long getTotalDecayedCost() {
+    return totalDecayedCost.sum();
+  }
+
+  /** @return the sum of the raw costs */
+  long getTotalRawCost() {
+    return totalRawCost.sum();
+  }
+}
@@ -44,6 +44,8 @@ import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.Rpc
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcStatusProto;
 import org.apache.hadoop.net.ConnectTimeoutException;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.net.SocketInputWrapper;
+import org.apache.hadoop.net.unix.UnixDomainSockets;
 import org.apache.hadoop.security.AuthMethod;
 import org.apache.hadoop.security.KerberosInfo;
 import org.apache.hadoop.security.SaslRpcClient;
@@ -63,6 +65,7 @@ import javax.security.sasl.Sasl;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.PrivilegedExceptionAction;
 import java.util.*;
 import java.util.Map.Entry;
@@ -75,6 +78,7 @@ import java.util.function.Consumer;
 
 import static org.apache.hadoop.ipc.RpcConstants.CONNECTION_CONTEXT_CALL_ID;
 import static org.apache.hadoop.ipc.RpcConstants.PING_CALL_ID;
+import static org.apache.hadoop.ipc.RpcConstants.BATCH_CALL_ID;
 
 /** A client for an IPC service.  IPC calls take a single {@link Writable} as a
  * parameter, and return a {@link Writable} as their value.  A service runs on
@@ -90,10 +94,17 @@ public class Client implements AutoCloseable {
   /** A counter for generating call IDs. */
   private static final AtomicInteger callIdCounter = new AtomicInteger();
 
+  /**
+   * Requests are only added to a batch packet while it stays below this
+   * size, well within the default maximum data length of the server.
+   */
+  private static final int MAX_BATCH_BYTES = 64 * 1024;
+
   private static final ThreadLocal<Integer> callId = new ThreadLocal<Integer>();
   private static final ThreadLocal<Integer> retryCount = new ThreadLocal<Integer>();
   private static final ThreadLocal<Object> EXTERNAL_CALL_HANDLER
       = new ThreadLocal<>();
+  private static final ThreadLocal<Long> callDeadline = new ThreadLocal<Long>();
   private static final ThreadLocal<AsyncGet<? extends Writable, IOException>>
       ASYNC_RPC_RESPONSE = new ThreadLocal<>();
   private static final ThreadLocal<Boolean> asynchronousMode =
@@ -123,6 +134,18 @@ public class Client implements AutoCloseable {
     EXTERNAL_CALL_HANDLER.set(externalHandler);
   }
 
+  /**
+   * Set the deadline of the next call, in {@link Time#monotonicNow()}
+   * milliseconds.  A caller that retries passes the end of its retry budget,
+   * so that the server can drop the call once nobody waits for it.  The
+   * call fails with a {@link SocketTimeoutException} at the earlier of this
+   * and the rpc timeout, which is also what the server is told.
+   */
+  public static void setCallDeadline(long deadline) {
+    Preconditions.checkArgument(deadline > 0);
+    callDeadline.set(deadline);
+  }
+
   private final ConcurrentMap<ConnectionId, Connection> connections =
       new ConcurrentHashMap<>();
   private final Object putLock = new Object();
@@ -139,6 +162,8 @@ public class Client implements AutoCloseable {
 
   private final boolean fallbackAllowed;
   private final boolean bindToWildCardAddress;
+  // address of the UNIX domain sockets of local servers, null for TCP only
+  private final String domainSocketAddress;
   private final byte[] clientId;
   private final int maxAsyncCalls;
   private final AtomicInteger asyncCallCounter = new AtomicInteger(0);
@@ -147,9 +172,13 @@ public class Client implements AutoCloseable {
    * Executor on which IPC calls' parameters are sent.
    * Deferring the sending of parameters to a separate
    * thread isolates them from thread interruptions in the
-   * calling code.
+   * calling code.  Each connection runs at most one sender task
+   * at a time, which drains all requests queued so far.
    */
   private final ExecutorService sendParamsExecutor;
+  /** Selector threads reading the responses, null for a thread per
+   * connection. */
+  private final ClientSelectorPool selectorPool;
   private final static ClientExecutorServiceFactory clientExcecutorFactory =
       new ClientExecutorServiceFactory();
 
@@ -329,9 +358,12 @@ public class Client implements AutoCloseable {
     Writable rpcResponse;       // null if rpc has error
     IOException error;          // exception, null if success
     final RPC.RpcKind rpcKind;      // Rpc EngineKind
+    final long deadline;        // monotonic millis, 0 if none
+    volatile long expiry;       // monotonic millis the caller gives up at
     boolean done;               // true when call is done
     private final Object externalHandler;
     private AlignmentContext alignmentContext;
+    private Runnable completionHandler;
 
     private Call(RPC.RpcKind rpcKind, Writable param) {
       this.rpcKind = rpcKind;
@@ -352,6 +384,14 @@ public class Client implements AutoCloseable {
         this.retry = rc;
       }
 
+      final Long d = callDeadline.get();
+      if (d == null) {
+        this.deadline = 0;
+      } else {
+        callDeadline.set(null);
+        this.deadline = d;
+      }
+
       this.externalHandler = EXTERNAL_CALL_HANDLER.get();
     }
 
@@ -387,9 +427,16 @@ public class Client implements AutoCloseable {
      * 
      * @param error exception thrown by the call; either local or remote
      */
-    public synchronized void setException(IOException error) {
-      this.error = error;
-      callComplete();
+    public void setException(IOException error) {
+      Runnable handler;
+      synchronized (this) {
+        this.error = error;
+        callComplete();
+        handler = completionHandler;
+      }
+      if (handler != null) {
+        handler.run();
+      }
     }
     
     /** Set the return value when there is no error. 
@@ -397,20 +444,46 @@ public class Client implements AutoCloseable {
      * 
      * @param rpcResponse return value of the rpc call.
      */
-    public synchronized void setRpcResponse(Writable rpcResponse) {
-      this.rpcResponse = rpcResponse;
-      callComplete();
+    public void setRpcResponse(Writable rpcResponse) {
+      Runnable handler;
+      synchronized (this) {
+        this.rpcResponse = rpcResponse;
+        callComplete();
+        handler = completionHandler;
+      }
+      if (handler != null) {
+        handler.run();
+      }
     }
     
     public synchronized Writable getRpcResponse() {
       return rpcResponse;
     }
+
+    /**
+     * Run the handler once the call is done, outside of the call's lock.
+     * It runs right away in the calling thread if the call is already done.
+     *
+     * @param handler the completion handler
+     */
+    void onComplete(Runnable handler) {
+      synchronized (this) {
+        if (!done) {
+          completionHandler = handler;
+          return;
+        }
+      }
+      handler.run();
+    }
   }
 
   /** Thread that reads responses and notifies callers.  Each connection owns a
    * socket connected to a remote address.  Calls are multiplexed through this
-   * socket: responses may be delivered out of order. */
-  private class Connection extends Thread {
+   * socket: responses may be delivered out of order.  With the selector
+   * engine the thread is never started; a shared selector thread reads the
+   * responses instead, see {@link ClientSelectorPool}. */
+  private class Connection extends Thread
+      implements ClientSelectorPool.Selectable {
     private InetSocketAddress server;             // server ip:port
     private final ConnectionId remoteId;                // connection id
     private AuthMethod authMethod; // authentication method
@@ -432,19 +505,57 @@ public class Client implements AutoCloseable {
     private final boolean doPing; //do we need to send ping message
     private final int pingInterval; // how often sends ping to the server
     private final int soTimeout; // used by ipc ping and rpc timeout
+    private final int readTimeout; // how often the reader wakes up
     private byte[] pingRequest; // ping message
+    private final int maxBatchCalls; // 0 unless batching is requested
+    private byte[] batchHeader; // delimited header of a batch packet
+    private volatile boolean batchAccepted; // server acknowledged batching
 
     // currently active calls
     private Hashtable<Integer, Call> calls = new Hashtable<Integer, Call>();
     private AtomicLong lastActivity = new AtomicLong();// last I/O activity time
+    // earliest expiry of the active calls, see expireCalls
+    private final AtomicLong nextExpiry = new AtomicLong(Long.MAX_VALUE);
     private AtomicBoolean shouldCloseConnection = new AtomicBoolean();  // indicate if the connection is closed
     private IOException closeException; // close reason
     
-    private final Object sendRpcRequestLock = new Object();
+    // framed requests waiting for the sender task, see sendRpcRequest
+    private final Queue<ResponseBuffer> pendingRequests =
+        new ConcurrentLinkedQueue<ResponseBuffer>();
+    private final AtomicInteger pendingRequestCount = new AtomicInteger();
+    private final Runnable requestSender = new Runnable() {
+      @Override
+      public void run() {
+        sendPendingRequests();
+      }
+    };
 
     private AtomicReference<Thread> connectingThread = new AtomicReference<>();
     private final Consumer<Connection> removeMethod;
 
+    // selector engine state, see doRead and check
+    private ClientSelectorPool.SelectorThread selectorThread;
+    private final ByteBuffer responseLength = ByteBuffer.allocate(4);
+    private ByteBuffer responseData;
+    private boolean firstResponse = true;
+    private volatile long lastRead;  // last time response bytes were read
+    // responses and the close, run in order on the dispatch executor
+    private final Queue<Runnable> dispatchTasks =
+        new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger dispatchTaskCount = new AtomicInteger();
+    private final Runnable dispatcher = new Runnable() {
+      @Override
+      public void run() {
+        runDispatchTasks();
+      }
+    };
+    private final Runnable callExpirer = new Runnable() {
+      @Override
+      public void run() {
+        expireCalls();
+      }
+    };
+
     Connection(ConnectionId remoteId, int serviceClass,
         Consumer<Connection> removeMethod) {
       this.remoteId = remoteId;
@@ -476,6 +587,27 @@ public class Client implements AutoCloseable {
         }
         pingRequest = buf.toByteArray();
       }
+      if (remoteId.conf.getBoolean(
+          CommonConfigurationKeys.IPC_CLIENT_BATCH_ENABLED_KEY,
+          CommonConfigurationKeys.IPC_CLIENT_BATCH_ENABLED_DEFAULT)) {
+        this.maxBatchCalls = remoteId.conf.getInt(
+            CommonConfigurationKeys.IPC_CLIENT_BATCH_MAX_CALLS_KEY,
+            CommonConfigurationKeys.IPC_CLIENT_BATCH_MAX_CALLS_DEFAULT);
+        RpcRequestHeaderProto header = ProtoUtil
+            .makeRpcRequestHeader(RpcKind.RPC_PROTOCOL_BUFFER,
+                OperationProto.RPC_BATCH_PACKET, BATCH_CALL_ID,
+                RpcConstants.INVALID_RETRY_COUNT, clientId);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try {
+          header.writeDelimitedTo(buf);
+        } catch (IOException e) {
+          throw new IllegalStateException("Failed to write the batch header"
+              + " for " + remoteId + " in " + Client.this + " due to " + e, e);
+        }
+        batchHeader = buf.toByteArray();
+      } else {
+        this.maxBatchCalls = 0;
+      }
       this.pingInterval = remoteId.getPingInterval();
       if (rpcTimeout > 0) {
         // effective rpc timeout is rounded up to multiple of pingInterval
@@ -485,6 +617,10 @@ public class Client implements AutoCloseable {
       } else {
         this.soTimeout = pingInterval;
       }
+      // the reader also wakes up to fail the calls past their expiry
+      this.readTimeout = soTimeout > 0
+          ? (int) Math.min(soTimeout, ClientSelectorPool.SCAN_INTERVAL_MS)
+          : (int) ClientSelectorPool.SCAN_INTERVAL_MS;
       this.serviceClass = serviceClass;
       this.removeMethod = removeMethod;
 
@@ -520,6 +656,10 @@ public class Client implements AutoCloseable {
     private synchronized boolean addCall(Call call) {
       if (shouldCloseConnection.get())
         return false;
+      if (calls.isEmpty()) {
+        // the rpc timeout counts from the time the connection gets busy
+        lastRead = Time.now();
+      }
       calls.put(call.id, call);
       notify();
       return true;
@@ -527,7 +667,8 @@ public class Client implements AutoCloseable {
 
     /** This class sends a ping to the remote side when timeout on
      * reading. If no failure is detected, it retries until at least
-     * a byte is read.
+     * a byte is read.  The reads time out every readTimeout millis, so
+     * that calls past their expiry are failed in time.
      */
     private class PingInputStream extends FilterInputStream {
       /* constructor */
@@ -536,16 +677,22 @@ public class Client implements AutoCloseable {
       }
 
       /* Process timeout exception
+       * fail the calls past their expiry, and
        * if the connection is not going to be closed or 
        * the RPC is not timed out yet, send a ping.
        */
       private void handleTimeout(SocketTimeoutException e, int waiting)
           throws IOException {
+        expireCalls();
         if (shouldCloseConnection.get() || !running.get() ||
             (0 < rpcTimeout && rpcTimeout <= waiting)) {
           throw e;
-        } else {
+        } else if (soTimeout == 0 || waiting < soTimeout) {
+          // woke up early to expire calls, keep reading
+        } else if (doPing) {
           sendPing();
+        } else {
+          throw e;
         }
       }
       
@@ -561,7 +708,7 @@ public class Client implements AutoCloseable {
           try {
             return super.read();
           } catch (SocketTimeoutException e) {
-            waiting += soTimeout;
+            waiting += readTimeout;
             handleTimeout(e, waiting);
           }
         } while (true);
@@ -580,7 +727,7 @@ public class Client implements AutoCloseable {
           try {
             return super.read(buf, off, len);
           } catch (SocketTimeoutException e) {
-            waiting += soTimeout;
+            waiting += readTimeout;
             handleTimeout(e, waiting);
           }
         } while (true);
@@ -651,6 +798,9 @@ public class Client implements AutoCloseable {
         UserGroupInformation ticket) throws IOException {
       short ioFailures = 0;
       short timeoutFailures = 0;
+      if (setupDomainSocketConnection()) {
+        return;
+      }
       while (true) {
         try {
           this.socket = socketFactory.createSocket();
@@ -858,9 +1008,8 @@ public class Client implements AutoCloseable {
             }
           }
 
-          if (doPing) {
-            ipcStreams.setInputStream(new PingInputStream(ipcStreams.in));
-          }
+          // the reader handles read timeouts, also without pings
+          ipcStreams.setInputStream(new PingInputStream(ipcStreams.in));
 
           writeConnectionContext(remoteId, authMethod);
 
@@ -873,8 +1022,13 @@ public class Client implements AutoCloseable {
           }
 
           // start the receiver thread after the socket connection has been set
-          // up
-          start();
+          // up, or hand the socket to a selector thread
+          if (useSelector()) {
+            selectorThread = selectorPool.register(this);
+          } else {
+            ipcStreams.setReadTimeout(readTimeout);
+            start();
+          }
           return;
         }
       } catch (Throwable t) {
@@ -889,6 +1043,32 @@ public class Client implements AutoCloseable {
       }
     }
     
+    /**
+     * Connect through the UNIX domain socket of the server if it is local
+     * and listens on one. The connection header, SASL and calls then go
+     * through it as through a TCP socket.
+     * @return false to connect through TCP instead
+     */
+    private boolean setupDomainSocketConnection() {
+      if (domainSocketAddress == null || server.isUnresolved() ||
+          !NetUtils.isLocalAddress(server.getAddress())) {
+        return false;
+      }
+      String path =
+          UnixDomainSockets.getPath(domainSocketAddress, server.getPort());
+      try {
+        this.socket = UnixDomainSockets.connect(path);
+        this.socket.setSoTimeout(soTimeout);
+        LOG.debug("Connected to {} through {}", server, path);
+        return true;
+      } catch (IOException e) {
+        LOG.debug("Connecting to {} through TCP, not through {}: {}",
+            server, path, e.toString());
+        closeConnection();
+        return false;
+      }
+    }
+
     private void closeConnection() {
       if (socket == null) {
         return;
@@ -1012,6 +1192,10 @@ public class Client implements AutoCloseable {
           RPC.getProtocolName(remoteId.getProtocol()),
           remoteId.getTicket(),
           authMethod);
+      if (maxBatchCalls > 1) {
+        // advertise batching, it is used once the server acknowledges it
+        message = message.toBuilder().setSupportsBatch(true).build();
+      }
       RpcRequestHeaderProto connectionContextHeader = ProtoUtil
           .makeRpcRequestHeader(RpcKind.RPC_PROTOCOL_BUFFER,
               OperationProto.RPC_FINAL_PACKET, CONNECTION_CONTEXT_CALL_ID,
@@ -1101,6 +1285,20 @@ public class Client implements AutoCloseable {
             + connections.size());
     }
 
+    /**
+     * @return how long the caller waits for the response of the call, 0 if
+     *         it waits for ever
+     */
+    private long getTimeoutMs(Call call) {
+      long timeout = rpcTimeout;
+      if (call.deadline > 0) {
+        // a deadline that already passed still asks for a tiny timeout
+        long remaining = Math.max(1, call.deadline - Time.monotonicNow());
+        timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+      }
+      return timeout;
+    }
+
     /** Initiates a rpc call by sending the rpc request to the remote server.
      * Note: this is not called from the Connection thread, but by other
      * threads.
@@ -1124,60 +1322,150 @@ public class Client implements AutoCloseable {
       // 2) RpcRequest
       //
       // Items '1' and '2' are prepared here. 
+      long timeoutMs = getTimeoutMs(call);
+      if (timeoutMs > 0) {
+        // set before the call can complete, see expireCalls
+        call.expiry = Time.monotonicNow() + timeoutMs;
+        nextExpiry.accumulateAndGet(call.expiry, Math::min);
+      }
       RpcRequestHeaderProto header = ProtoUtil.makeRpcRequestHeader(
           call.rpcKind, OperationProto.RPC_FINAL_PACKET, call.id, call.retry,
-          clientId, call.alignmentContext);
+          clientId, call.alignmentContext, timeoutMs);
 
       final ResponseBuffer buf = new ResponseBuffer();
       header.writeDelimitedTo(buf);
       RpcWritable.wrap(call.rpcRequest).writeTo(buf);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(getName() + " sending #" + call.id
+            + " " + call.rpcRequest);
+      }
 
-      synchronized (sendRpcRequestLock) {
-        Future<?> senderFuture = sendParamsExecutor.submit(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              synchronized (ipcStreams.out) {
-                if (shouldCloseConnection.get()) {
-                  return;
-                }
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug(getName() + " sending #" + call.id
-                      + " " + call.rpcRequest);
+      // An interrupted caller never gets its request on the wire.  Once
+      // queued, the request is written by the sender task, so a later
+      // interrupt cannot close the socket in the middle of a call.
+      if (Thread.interrupted()) {
+        IOUtils.closeStream(buf);
+        throw new InterruptedException();
+      }
+      pendingRequests.add(buf);
+      // the caller that makes the queue non-empty schedules the sender;
+      // callers arriving while it runs are picked up by the same task
+      if (pendingRequestCount.getAndIncrement() == 0) {
+        try {
+          sendParamsExecutor.execute(requestSender);
+        } catch (RejectedExecutionException e) {
+          markClosed(new IOException("connection has been closed", e));
+          discardPendingRequests();
+          throw e;
+        }
+      }
+    }
+
+    /**
+     * Write every queued request and flush them together.  Runs on the
+     * sendParamsExecutor and loops until no request is left, so a burst of
+     * calls from many threads costs one task and a few flushes.
+     */
+    private void sendPendingRequests() {
+      int sent;
+      do {
+        sent = 0;
+        try {
+          synchronized (ipcStreams.out) {
+            ResponseBuffer buf;
+            while ((buf = pendingRequests.poll()) != null) {
+              if (batchAccepted && pendingRequests.peek() != null) {
+                List<ResponseBuffer> batch = pollBatch(buf);
+                sent += batch.size();
+                sendBatch(batch);
+                continue;
+              }
+              sent++;
+              try {
+                if (!shouldCloseConnection.get()) {
+                  // RpcRequestHeader + RpcRequest
+                  buf.writeTo(ipcStreams.out);
                 }
-                // RpcRequestHeader + RpcRequest
-                ipcStreams.sendRequest(buf.toByteArray());
-                ipcStreams.flush();
+              } finally {
+                //the buffer is just an in-memory buffer, but it is still
+                // polite to close early
+                IOUtils.closeStream(buf);
               }
-            } catch (IOException e) {
-              // exception at this point would leave the connection in an
-              // unrecoverable state (eg half a call left on the wire).
-              // So, close the connection, killing any outstanding calls
-              markClosed(e);
-            } finally {
-              //the buffer is just an in-memory buffer, but it is still polite to
-              // close early
-              IOUtils.closeStream(buf);
+            }
+            if (!shouldCloseConnection.get()) {
+              ipcStreams.flush();
             }
           }
-        });
-      
-        try {
-          senderFuture.get();
-        } catch (ExecutionException e) {
-          Throwable cause = e.getCause();
-          
-          // cause should only be a RuntimeException as the Runnable above
-          // catches IOException
-          if (cause instanceof RuntimeException) {
-            throw (RuntimeException) cause;
-          } else {
-            throw new RuntimeException("unexpected checked exception", cause);
+        } catch (Throwable t) {
+          // exception at this point would leave the connection in an
+          // unrecoverable state (eg half a call left on the wire).
+          // So, close the connection, killing any outstanding calls
+          markClosed(t instanceof IOException ? (IOException) t
+              : new IOException("Failed to send RPC requests", t));
+        }
+      } while (pendingRequestCount.addAndGet(-sent) > 0);
+    }
+
+    /**
+     * Take the requests queued behind the given one that fit in one batch
+     * packet.  Only the sender task polls the queue, so peek then poll is
+     * safe.
+     * @param first the request polled from the queue
+     * @return the requests of the batch, starting with first
+     */
+    private List<ResponseBuffer> pollBatch(ResponseBuffer first) {
+      List<ResponseBuffer> batch = new ArrayList<ResponseBuffer>();
+      batch.add(first);
+      int length = batchHeader.length + 4 + first.size();
+      ResponseBuffer buf;
+      while (batch.size() < maxBatchCalls
+          && (buf = pendingRequests.peek()) != null
+          && length + 4 + buf.size() <= MAX_BATCH_BYTES) {
+        batch.add(pendingRequests.poll());
+        length += 4 + buf.size();
+      }
+      return batch;
+    }
+
+    /**
+     * Write the requests as one batch packet: the usual length and a batch
+     * header, followed by the framed requests.  Called with the output
+     * stream locked.
+     */
+    private void sendBatch(List<ResponseBuffer> batch) throws IOException {
+      try {
+        if (!shouldCloseConnection.get()) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(getName() + " sending a batch of " + batch.size()
+                + " calls");
+          }
+          int length = batchHeader.length;
+          for (ResponseBuffer request : batch) {
+            length += 4 + request.size();
           }
+          DataOutputStream out = ipcStreams.out;
+          out.writeInt(length);
+          out.write(batchHeader);
+          for (ResponseBuffer request : batch) {
+            request.writeTo(out);
+          }
+        }
+      } finally {
+        for (ResponseBuffer request : batch) {
+          IOUtils.closeStream(request);
         }
       }
     }
 
+    /** Drop the requests queued after the sender could not be scheduled. */
+    private void discardPendingRequests() {
+      ResponseBuffer buf;
+      while ((buf = pendingRequests.poll()) != null) {
+        IOUtils.closeStream(buf);
+        pendingRequestCount.decrementAndGet();
+      }
+    }
+
     /* Receive a response.
      * Because only one receiver, so no synchronization on in.
      */
@@ -1188,51 +1476,102 @@ public class Client implements AutoCloseable {
       touch();
       
       try {
-        ByteBuffer bb = ipcStreams.readResponse();
-        RpcWritable.Buffer packet = RpcWritable.Buffer.wrap(bb);
-        RpcResponseHeaderProto header =
-            packet.getValue(RpcResponseHeaderProto.getDefaultInstance());
-        checkResponse(header);
-
-        int callId = header.getCallId();
-        if (LOG.isDebugEnabled())
-          LOG.debug(getName() + " got value #" + callId);
-
-        RpcStatusProto status = header.getStatus();
-        if (status == RpcStatusProto.SUCCESS) {
-          Writable value = packet.newInstance(valueClass, conf);
-          final Call call = calls.remove(callId);
+        processRpcResponse(ipcStreams.readResponse());
+      } catch (IOException e) {
+        markClosed(e);
+      }
+      // the reads may not time out while other calls get their responses
+      expireCalls();
+    }
+
+    /**
+     * Fail the calls whose caller gave up waiting for the response, see
+     * {@link #getTimeoutMs}, with a {@link SocketTimeoutException}.  The
+     * connection stays open for the other calls, and a late response of
+     * an expired call is dropped.
+     */
+    private void expireCalls() {
+      long now = Time.monotonicNow();
+      if (now < nextExpiry.get()) {
+        return;
+      }
+      // reset before the scan, so expiries of calls sent meanwhile are kept
+      nextExpiry.set(Long.MAX_VALUE);
+      List<Call> expired = new ArrayList<Call>();
+      synchronized (calls) {
+        Iterator<Call> i = calls.values().iterator();
+        while (i.hasNext()) {
+          Call call = i.next();
+          long expiry = call.expiry;
+          if (expiry == 0) {
+            continue;
+          } else if (expiry <= now) {
+            i.remove();
+            expired.add(call);
+          } else {
+            nextExpiry.accumulateAndGet(expiry, Math::min);
+          }
+        }
+      }
+      for (Call call : expired) {
+        call.setException(new SocketTimeoutException("Call #" + call.id
+            + " timed out while waiting for a response from " + server));
+      }
+    }
+
+    /** Decode a response frame and complete its call. */
+    private void processRpcResponse(ByteBuffer bb) throws IOException {
+      RpcWritable.Buffer packet = RpcWritable.Buffer.wrap(bb);
+      RpcResponseHeaderProto header =
+          packet.getValue(RpcResponseHeaderProto.getDefaultInstance());
+      checkResponse(header);
+      if (header.getSupportsBatch()) {
+        batchAccepted = true;
+      }
+
+      int callId = header.getCallId();
+      if (LOG.isDebugEnabled())
+        LOG.debug(getName() + " got value #" + callId);
+
+      RpcStatusProto status = header.getStatus();
+      if (status == RpcStatusProto.SUCCESS) {
+        Writable value = packet.newInstance(valueClass, conf);
+        final Call call = calls.remove(callId);
+        if (call == null) {
+          LOG.debug("{} dropped the late response of expired #{}",
+              getName(), callId);
+        } else {
           call.setRpcResponse(value);
           if (call.alignmentContext != null) {
             call.alignmentContext.receiveResponseState(header);
           }
         }
-        // verify that packet length was correct
-        if (packet.remaining() > 0) {
-          throw new RpcClientException("RPC response length mismatch");
+      }
+      // verify that packet length was correct
+      if (packet.remaining() > 0) {
+        throw new RpcClientException("RPC response length mismatch");
+      }
+      if (status != RpcStatusProto.SUCCESS) { // Rpc Request failed
+        final String exceptionClassName = header.hasExceptionClassName() ?
+              header.getExceptionClassName() : 
+                "ServerDidNotSetExceptionClassName";
+        final String errorMsg = header.hasErrorMsg() ? 
+              header.getErrorMsg() : "ServerDidNotSetErrorMsg" ;
+        final RpcErrorCodeProto erCode = 
+                  (header.hasErrorDetail() ? header.getErrorDetail() : null);
+        if (erCode == null) {
+           LOG.warn("Detailed error code not set by server on rpc error");
         }
-        if (status != RpcStatusProto.SUCCESS) { // Rpc Request failed
-          final String exceptionClassName = header.hasExceptionClassName() ?
-                header.getExceptionClassName() : 
-                  "ServerDidNotSetExceptionClassName";
-          final String errorMsg = header.hasErrorMsg() ? 
-                header.getErrorMsg() : "ServerDidNotSetErrorMsg" ;
-          final RpcErrorCodeProto erCode = 
-                    (header.hasErrorDetail() ? header.getErrorDetail() : null);
-          if (erCode == null) {
-             LOG.warn("Detailed error code not set by server on rpc error");
-          }
-          RemoteException re = new RemoteException(exceptionClassName, errorMsg, erCode);
-          if (status == RpcStatusProto.ERROR) {
-            final Call call = calls.remove(callId);
+        RemoteException re = new RemoteException(exceptionClassName, errorMsg, erCode);
+        if (status == RpcStatusProto.ERROR) {
+          final Call call = calls.remove(callId);
+          if (call != null) { // null if the call already expired
             call.setException(re);
-          } else if (status == RpcStatusProto.FATAL) {
-            // Close the connection
-            markClosed(re);
           }
+        } else if (status == RpcStatusProto.FATAL) {
+          // Close the connection
+          markClosed(re);
         }
-      } catch (IOException e) {
-        markClosed(e);
       }
     }
     
@@ -1240,9 +1579,184 @@ public class Client implements AutoCloseable {
       if (shouldCloseConnection.compareAndSet(false, true)) {
         closeException = e;
         notifyAll();
+        if (selectorThread != null) {
+          selectorThread.requestScan();
+        }
+      }
+    }
+
+    /**
+     * The selector engine reads the raw socket channel, so it is only used
+     * when the responses are not wrapped by SASL.
+     */
+    private boolean useSelector() {
+      return selectorPool != null && socket.getChannel() != null &&
+          (authProtocol == AuthProtocol.NONE || authMethod == AuthMethod.SIMPLE);
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+      return socket.getChannel();
+    }
+
+    /** Read response frames incrementally on the selector thread. */
+    @Override
+    public void doRead() throws IOException {
+      SocketChannel channel = getChannel();
+      while (true) {
+        if (responseData == null) {
+          if (channel.read(responseLength) < 0) {
+            throw new EOFException("Connection closed by " + server);
+          }
+          if (responseLength.hasRemaining()) {
+            return;
+          }
+          lastRead = Time.now();
+          responseLength.flip();
+          int length = responseLength.getInt();
+          responseLength.clear();
+          if (firstResponse) {
+            firstResponse = false;
+            // pre-rpcv9 exception, almost certainly a version mismatch.
+            if (length == -1) {
+              throw new RpcException("Server " + server
+                  + " sent a pre-rpcv9 fatal response");
+            }
+          }
+          if (length <= 0) {
+            throw new RpcException("RPC response has invalid length");
+          }
+          if (maxResponseLength > 0 && length > maxResponseLength) {
+            throw new RpcException("RPC response exceeds maximum data length");
+          }
+          responseData = ByteBuffer.allocate(length);
+        }
+        int n = channel.read(responseData);
+        if (n < 0) {
+          throw new EOFException("Connection closed by " + server);
+        } else if (n > 0) {
+          lastRead = Time.now();
+        }
+        if (responseData.hasRemaining()) {
+          return;
+        }
+        responseData.flip();
+        final ByteBuffer bb = responseData;
+        responseData = null;
+        touch();
+        dispatch(new Runnable() {
+          @Override
+          public void run() {
+            // the calls were already failed by close()
+            if (shouldCloseConnection.get()) {
+              return;
+            }
+            try {
+              processRpcResponse(bb);
+            } catch (IOException e) {
+              markClosed(e);
+            }
+          }
+        });
+      }
+    }
+
+    @Override
+    public void readFailed(IOException e) {
+      markClosed(e);
+      dispatchClose();
+    }
+
+    /**
+     * The selector engine's counterpart of waitForWork and the
+     * PingInputStream timeout handling.
+     */
+    @Override
+    public synchronized boolean check(long now) {
+      if (!shouldCloseConnection.get()) {
+        if (!running.get()) {
+          markClosed(calls.isEmpty() ? null : (IOException) new IOException()
+              .initCause(new InterruptedException()));
+        } else if (calls.isEmpty()) {
+          if (now - lastActivity.get() >= maxIdleTime) {
+            markClosed(null);
+          }
+        } else {
+          if (Time.monotonicNow() >= nextExpiry.get()) {
+            // completing calls runs their callbacks, off this thread
+            dispatch(callExpirer);
+          }
+          long waiting = now - lastRead;
+          if (waiting >= soTimeout) {
+            if (0 < rpcTimeout && rpcTimeout <= waiting) {
+              markClosed(new SocketTimeoutException(
+                  waiting + " millis timeout while waiting for a response from "
+                  + server));
+            } else if (doPing && now - lastActivity.get() >= pingInterval) {
+              dispatch(new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    sendPing();
+                  } catch (IOException e) {
+                    markClosed(e);
+                  }
+                }
+              });
+            }
+          }
+        }
+      }
+      if (shouldCloseConnection.get()) {
+        dispatchClose();
+        return false;
+      }
+      return true;
+    }
+
+    private void dispatchClose() {
+      dispatch(new Runnable() {
+        @Override
+        public void run() {
+          close();
+        }
+      });
+    }
+
+    /**
+     * Run a task on the dispatch executor after the tasks dispatched before
+     * it, so responses are processed in order and before the close.
+     */
+    private void dispatch(Runnable task) {
+      dispatchTasks.add(task);
+      if (dispatchTaskCount.getAndIncrement() == 0) {
+        try {
+          selectorPool.getExecutor().execute(dispatcher);
+        } catch (RejectedExecutionException e) {
+          // only happens once no client uses the pool any more
+          runDispatchTasks();
+        }
       }
     }
 
+    private void runDispatchTasks() {
+      int ran;
+      do {
+        ran = 0;
+        Runnable task;
+        while ((task = dispatchTasks.poll()) != null) {
+          ran++;
+          try {
+            task.run();
+          } catch (Throwable t) {
+            LOG.warn("Unexpected error reading responses on connection "
+                + this, t);
+            markClosed(new IOException("Error reading responses", t));
+          }
+        }
+      } while (dispatchTaskCount.addAndGet(-ran) > 0);
+    }
+
     private void interruptConnectingThread() {
       Thread connThread = connectingThread.get();
       if (connThread != null) {
@@ -1316,14 +1830,31 @@ public class Client implements AutoCloseable {
     this.bindToWildCardAddress = conf
         .getBoolean(CommonConfigurationKeys.IPC_CLIENT_BIND_WILDCARD_ADDR_KEY,
             CommonConfigurationKeys.IPC_CLIENT_BIND_WILDCARD_ADDR_DEFAULT);
+    this.domainSocketAddress = getDomainSocketAddress(conf);
 
     this.clientId = ClientId.getClientId();
     this.sendParamsExecutor = clientExcecutorFactory.refAndGetInstance();
+    this.selectorPool = createSelectorPool(conf);
     this.maxAsyncCalls = conf.getInt(
         CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_KEY,
         CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_DEFAULT);
   }
 
+  private static String getDomainSocketAddress(Configuration conf) {
+    String address = conf.getTrimmed(
+        CommonConfigurationKeys.IPC_UNIX_DOMAIN_SOCKET_ADDRESS_KEY,
+        CommonConfigurationKeys.IPC_UNIX_DOMAIN_SOCKET_ADDRESS_DEFAULT);
+    if (UnixDomainSockets.getPath(address, 0) == null) {
+      return null;
+    }
+    if (!UnixDomainSockets.isSupported()) {
+      LOG.warn("Not connecting to local servers through " + address + ": " +
+          UnixDomainSockets.getLoadingFailureReason());
+      return null;
+    }
+    return address;
+  }
+
   /**
    * Construct an IPC client with the default SocketFactory
    * @param valueClass
@@ -1376,6 +1907,25 @@ public class Client implements AutoCloseable {
       }
     }
     clientExcecutorFactory.unrefAndCleanup();
+    if (selectorPool != null) {
+      ClientSelectorPool.unrefAndCleanup();
+    }
+  }
+
+  private static ClientSelectorPool createSelectorPool(Configuration conf) {
+    if (!conf.getBoolean(CommonConfigurationKeys.IPC_CLIENT_SELECTOR_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_CLIENT_SELECTOR_ENABLED_DEFAULT)) {
+      return null;
+    }
+    try {
+      return ClientSelectorPool.refAndGetInstance(conf.getInt(
+          CommonConfigurationKeys.IPC_CLIENT_SELECTOR_THREADS_KEY,
+          CommonConfigurationKeys.IPC_CLIENT_SELECTOR_THREADS_DEFAULT));
+    } catch (IOException e) {
+      LOG.warn("Failed to open the client selectors, falling back to a"
+          + " reader thread per connection", e);
+      return null;
+    }
   }
 
   /** 
@@ -1408,15 +1958,19 @@ public class Client implements AutoCloseable {
 
   private void checkAsyncCall() throws IOException {
     if (isAsynchronousMode()) {
-      if (asyncCallCounter.incrementAndGet() > maxAsyncCalls) {
-        asyncCallCounter.decrementAndGet();
-        String errMsg = String.format(
-            "Exceeded limit of max asynchronous calls: %d, " +
-            "please configure %s to adjust it.",
-            maxAsyncCalls,
-            CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_KEY);
-        throw new AsyncCallLimitExceededException(errMsg);
-      }
+      acquireAsyncCall();
+    }
+  }
+
+  private void acquireAsyncCall() throws IOException {
+    if (asyncCallCounter.incrementAndGet() > maxAsyncCalls) {
+      asyncCallCounter.decrementAndGet();
+      String errMsg = String.format(
+          "Exceeded limit of max asynchronous calls: %d, " +
+          "please configure %s to adjust it.",
+          maxAsyncCalls,
+          CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_KEY);
+      throw new AsyncCallLimitExceededException(errMsg);
     }
   }
 
@@ -1454,17 +2008,7 @@ public class Client implements AutoCloseable {
 
     try {
       checkAsyncCall();
-      try {
-        connection.sendRpcRequest(call);                 // send the rpc request
-      } catch (RejectedExecutionException e) {
-        throw new IOException("connection has been closed", e);
-      } catch (InterruptedException ie) {
-        Thread.currentThread().interrupt();
-        IOException ioe = new InterruptedIOException(
-            "Interrupted waiting to send RPC request to server");
-        ioe.initCause(ie);
-        throw ioe;
-      }
+      sendRpcRequest(connection, call);
     } catch(Exception e) {
       if (isAsynchronousMode()) {
         releaseAsyncCall();
@@ -1509,6 +2053,65 @@ public class Client implements AutoCloseable {
     }
   }
 
+  /**
+   * Make a call like {@link #call(RPC.RpcKind, Writable, ConnectionId, int,
+   * AtomicBoolean, AlignmentContext)}, but return once the request is
+   * queued for sending.  The future is completed by the thread that reads
+   * the response, so no thread waits for it; dependent stages that block
+   * should use an executor of their own.  Outstanding calls count against
+   * {@link CommonConfigurationKeys#IPC_CLIENT_ASYNC_CALLS_MAX_KEY}.
+   *
+   * @return the future rpc response
+   * @throws IOException if the call cannot be sent
+   */
+  CompletableFuture<Writable> callAsync(RPC.RpcKind rpcKind,
+      Writable rpcRequest, ConnectionId remoteId, int serviceClass,
+      AtomicBoolean fallbackToSimpleAuth, AlignmentContext alignmentContext)
+      throws IOException {
+    final Call call = createCall(rpcKind, rpcRequest);
+    call.setAlignmentContext(alignmentContext);
+    final Connection connection = getConnection(remoteId, call, serviceClass,
+        fallbackToSimpleAuth);
+
+    acquireAsyncCall();
+    try {
+      sendRpcRequest(connection, call);
+    } catch (IOException e) {
+      releaseAsyncCall();
+      throw e;
+    }
+
+    final CompletableFuture<Writable> future = new CompletableFuture<>();
+    call.onComplete(new Runnable() {
+      @Override
+      public void run() {
+        releaseAsyncCall();
+        try {
+          // the call is done, this only unwraps the result
+          future.complete(getRpcResponse(call, connection, -1, null));
+        } catch (IOException e) {
+          future.completeExceptionally(e);
+        }
+      }
+    });
+    return future;
+  }
+
+  private void sendRpcRequest(Connection connection, Call call)
+      throws IOException {
+    try {
+      connection.sendRpcRequest(call);                 // send the rpc request
+    } catch (RejectedExecutionException e) {
+      throw new IOException("connection has been closed", e);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      IOException ioe = new InterruptedIOException(
+          "Interrupted waiting to send RPC request to server");
+      ioe.initCause(ie);
+      throw ioe;
+    }
+  }
+
   /**
    * Check if RPC is in asynchronous mode or not.
    *
@@ -1849,13 +2452,14 @@ public class Client implements AutoCloseable {
   public static class IpcStreams implements Closeable, Flushable {
     private DataInputStream in;
     public DataOutputStream out;
+    private final SocketInputWrapper socketIn;
     private int maxResponseLength;
     private boolean firstResponse = true;
 
     IpcStreams(Socket socket, int maxResponseLength) throws IOException {
       this.maxResponseLength = maxResponseLength;
-      setInputStream(
-          new BufferedInputStream(NetUtils.getInputStream(socket)));
+      this.socketIn = NetUtils.getInputStream(socket);
+      setInputStream(new BufferedInputStream(socketIn));
       setOutputStream(
           new BufferedOutputStream(NetUtils.getOutputStream(socket)));
     }
@@ -1872,6 +2476,11 @@ public class Client implements AutoCloseable {
           ? (DataInputStream)is : new DataInputStream(is);
     }
 
+    /** Set the timeout of the reads from the socket, 0 for none. */
+    void setReadTimeout(int timeoutMs) throws SocketException {
+      socketIn.setTimeout(timeoutMs);
+    }
+
     private void setOutputStream(OutputStream os) {
       this.out = (os instanceof DataOutputStream)
           ? (DataOutputStream)os : new DataOutputStream(os);
@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.util.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A small set of selector threads that read the responses of many client
+ * connections, instead of one reader thread per connection.
+ *
+ * The selector threads only read bytes and scan the connections for
+ * timeouts; decoding and completing calls is done by the connections on
+ * the {@link #getExecutor() dispatch executor}.  The pool is shared by all
+ * clients of the jvm and reference counted like the executor that sends
+ * the call parameters.
+ */
+@InterfaceAudience.Private
+class ClientSelectorPool {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ClientSelectorPool.class);
+
+  /** How often the registered connections are checked for timeouts. */
+  static final long SCAN_INTERVAL_MS = 100;
+
+  /** A connection whose responses are read by a selector thread. */
+  interface Selectable {
+    /** @return the non-blocking channel to read responses from */
+    SocketChannel getChannel();
+
+    /**
+     * Read whatever the channel has available.  Runs on the selector
+     * thread and must not block.
+     * @throws IOException on error; the connection is deregistered
+     */
+    void doRead() throws IOException;
+
+    /**
+     * Periodic check for idle, timed out and closed connections.
+     * @param now current time in milliseconds
+     * @return false to deregister the connection
+     */
+    boolean check(long now);
+
+    /**
+     * Reading from the channel failed; the connection is deregistered.
+     * @param e the failure
+     */
+    void readFailed(IOException e);
+  }
+
+  private static int refCount = 0;
+  private static ClientSelectorPool instance = null;
+
+  /**
+   * Get the shared pool, creating it if no client uses it yet.
+   * @param numSelectors number of selector threads, only used when the pool
+   *                     is created
+   * @return the pool
+   * @throws IOException if a selector cannot be opened
+   */
+  static synchronized ClientSelectorPool refAndGetInstance(int numSelectors)
+      throws IOException {
+    if (refCount == 0) {
+      instance = new ClientSelectorPool(numSelectors);
+    }
+    refCount++;
+    return instance;
+  }
+
+  /**
+   * Release a reference to the shared pool, stopping its threads when it
+   * was the last one.
+   */
+  static synchronized void unrefAndCleanup() {
+    refCount--;
+    assert(refCount >= 0);
+    if (refCount == 0) {
+      instance.shutdown();
+      instance = null;
+    }
+  }
+
+  private final SelectorThread[] selectors;
+  private final AtomicInteger nextSelector = new AtomicInteger();
+  private final ExecutorService executor;
+
+  private ClientSelectorPool(int numSelectors) throws IOException {
+    this.executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("IPC Client Response Dispatcher #%d")
+        .build());
+    this.selectors = new SelectorThread[Math.max(1, numSelectors)];
+    try {
+      for (int i = 0; i < selectors.length; i++) {
+        selectors[i] = new SelectorThread("IPC Client Selector #" + i);
+      }
+    } catch (IOException e) {
+      shutdown();
+      throw e;
+    }
+    for (SelectorThread selector : selectors) {
+      selector.start();
+    }
+  }
+
+  /** @return the executor that decodes responses and completes calls */
+  ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Hand a connected channel to one of the selector threads.
+   * @param conn the connection
+   * @return handle used to wake the selector thread up
+   */
+  SelectorThread register(Selectable conn) {
+    SelectorThread selector = selectors[
+        (nextSelector.getAndIncrement() & Integer.MAX_VALUE)
+        % selectors.length];
+    selector.addConnection(conn);
+    return selector;
+  }
+
+  private void shutdown() {
+    for (SelectorThread selector : selectors) {
+      if (selector != null) {
+        selector.shutdown();
+      }
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted while waiting for the response dispatcher" +
+          " to stop");
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Reads the responses of the connections registered with it. */
+  static class SelectorThread extends Thread {
+    private final Selector selector;
+    private final Queue<Selectable> pendingConnections =
+        new ConcurrentLinkedQueue<Selectable>();
+    private final AtomicBoolean scanRequested = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    SelectorThread(String name) throws IOException {
+      super(name);
+      setDaemon(true);
+      this.selector = Selector.open();
+    }
+
+    /**
+     * Updating the selector while it's being used is not thread-safe,
+     * so the connection is queued and registered by the selector thread.
+     */
+    void addConnection(Selectable conn) {
+      pendingConnections.add(conn);
+      selector.wakeup();
+    }
+
+    /** Check all connections as soon as possible, e.g. after a close. */
+    void requestScan() {
+      if (scanRequested.compareAndSet(false, true)) {
+        selector.wakeup();
+      }
+    }
+
+    @Override
+    public void run() {
+      LOG.debug("Starting {}", getName());
+      try {
+        doRunLoop();
+      } finally {
+        try {
+          selector.close();
+        } catch (IOException ioe) {
+          LOG.error("Error closing selector in " + getName(), ioe);
+        }
+      }
+    }
+
+    private void doRunLoop() {
+      long lastScan = Time.monotonicNow();
+      while (running) {
+        try {
+          selector.select(SCAN_INTERVAL_MS);
+          registerPendingConnections();
+
+          Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+          while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+            Selectable conn = (Selectable) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                conn.doRead();
+              }
+            } catch (CancelledKeyException cke) {
+              // the connection was closed by another thread, its check
+              // cleans it up
+            } catch (IOException e) {
+              key.cancel();
+              conn.readFailed(e);
+            }
+          }
+
+          long now = Time.monotonicNow();
+          if (scanRequested.getAndSet(false)
+              || now - lastScan >= SCAN_INTERVAL_MS) {
+            lastScan = now;
+            scan();
+          }
+        } catch (IOException ex) {
+          LOG.error("Error in " + getName(), ex);
+        } catch (Throwable t) {
+          LOG.error("Bug in client selector " + getName(), t);
+        }
+      }
+    }
+
+    private void registerPendingConnections() {
+      Selectable conn;
+      while ((conn = pendingConnections.poll()) != null) {
+        try {
+          conn.getChannel().register(selector, SelectionKey.OP_READ, conn);
+        } catch (IOException e) {
+          conn.readFailed(e);
+        }
+      }
+    }
+
+    private void scan() {
+      long now = Time.now();
+      for (SelectionKey key : selector.keys()) {
+        if (!key.isValid()) {
+          continue;
+        }
+        Selectable conn = (Selectable) key.attachment();
+        if (!conn.check(now)) {
+          key.cancel();
+        }
+      }
+    }
+
+    void shutdown() {
+      running = false;
+      selector.wakeup();
+      try {
+        join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -43,4 +43,16 @@ public interface CostProvider {
    * @return The cost of the call
    */
   long getCost(ProcessingDetails details);
+
+  /**
+   * Get cost from {@link ProcessingDetails} of a call of the given method.
+   * By default the method is ignored.
+   *
+   * @param methodName Name of the method called, may be null
+   * @param details Process details
+   * @return The cost of the call
+   */
+  default long getCost(String methodName, ProcessingDetails details) {
+    return getCost(details);
+  }
 }
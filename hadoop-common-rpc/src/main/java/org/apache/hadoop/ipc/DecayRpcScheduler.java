@@ -19,19 +19,14 @@
 package org.apache.hadoop.ipc;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
-import java.util.concurrent.atomic.AtomicReference;
 
 import javax.management.ObjectName;
 
@@ -136,16 +131,9 @@ public class DecayRpcScheduler implements RpcScheduler,
   private static final ObjectWriter WRITER = new ObjectMapper().writer();
 
   // Track the decayed and raw (no decay) number of calls for each schedulable
-  // identity from all previous decay windows: idx 0 for decayed call cost and
-  // idx 1 for the raw call cost
-  private final ConcurrentHashMap<Object, List<AtomicLong>> callCosts =
-      new ConcurrentHashMap<Object, List<AtomicLong>>();
-
-  // Should be the sum of all AtomicLongs in decayed callCosts
-  private final AtomicLong totalDecayedCallCost = new AtomicLong();
-  // The sum of all AtomicLongs in raw callCosts
-  private final AtomicLong totalRawCallCost = new AtomicLong();
-
+  // identity from all previous decay windows, along with the totals and the
+  // scheduling decisions pre-computed during the decay sweep
+  private final CallCostTable callCosts = new CallCostTable();
 
   // Track total call count and response time in current decay window
   private final AtomicLongArray responseTimeCountInCurrWindow;
@@ -159,11 +147,6 @@ public class DecayRpcScheduler implements RpcScheduler,
   private final DecayRpcSchedulerDetailedMetrics
       decayRpcSchedulerDetailedMetrics;
 
-  // Pre-computed scheduling decisions during the decay sweep are
-  // atomically swapped in as a read-only map
-  private final AtomicReference<Map<Object, Integer>> scheduleCacheRef =
-    new AtomicReference<Map<Object, Integer>>();
-
   // Tune the behavior of the scheduler
   private final long decayPeriodMillis; // How long between each tick
   private final double decayFactor; // nextCost = currentCost * decayFactor
@@ -244,6 +227,10 @@ public class DecayRpcScheduler implements RpcScheduler,
     decayRpcSchedulerDetailedMetrics =
         DecayRpcSchedulerDetailedMetrics.create(ns);
     decayRpcSchedulerDetailedMetrics.init(numLevels);
+    if (costProvider instanceof AdaptiveCostProvider) {
+      ((AdaptiveCostProvider) costProvider).setMetrics(
+          decayRpcSchedulerDetailedMetrics);
+    }
 
     // Setup delay timer
     Timer timer = new Timer(true);
@@ -425,43 +412,13 @@ public class DecayRpcScheduler implements RpcScheduler,
   private void decayCurrentCosts() {
     LOG.debug("Start to decay current costs.");
     try {
-      long totalDecayedCost = 0;
-      long totalRawCost = 0;
-      Iterator<Map.Entry<Object, List<AtomicLong>>> it =
-          callCosts.entrySet().iterator();
-
-      while (it.hasNext()) {
-        Map.Entry<Object, List<AtomicLong>> entry = it.next();
-        AtomicLong decayedCost = entry.getValue().get(0);
-        AtomicLong rawCost = entry.getValue().get(1);
-
-
-        // Compute the next value by reducing it by the decayFactor
-        totalRawCost += rawCost.get();
-        long currentValue = decayedCost.get();
-        long nextValue = (long) (currentValue * decayFactor);
-        totalDecayedCost += nextValue;
-        decayedCost.set(nextValue);
-
-        LOG.debug(
-            "Decaying costs for the user: {}, its decayedCost: {}, rawCost: {}",
-            entry.getKey(), nextValue, rawCost.get());
-        if (nextValue == 0) {
-          LOG.debug("The decayed cost for the user {} is zero " +
-              "and being cleaned.", entry.getKey());
-          // We will clean up unused keys here. An interesting optimization
-          // might be to have an upper bound on keyspace in callCosts and only
-          // clean once we pass it.
-          it.remove();
-        }
-      }
-
-      // Update the total so that we remain in sync
-      totalDecayedCallCost.set(totalDecayedCost);
-      totalRawCallCost.set(totalRawCost);
+      // Reduce each cost by the decayFactor in place, cleaning up the
+      // identities whose cost reaches zero. The totals are kept in sync.
+      callCosts.decay(decayFactor);
 
       LOG.debug("After decaying the stored costs, totalDecayedCost: {}, " +
-          "totalRawCallCost: {}.", totalDecayedCost, totalRawCost);
+          "totalRawCallCost: {}.", callCosts.getTotalDecayedCost(),
+          callCosts.getTotalRawCost());
       // Now refresh the cache of scheduling decisions
       recomputeScheduleCache();
 
@@ -475,23 +432,13 @@ public class DecayRpcScheduler implements RpcScheduler,
   }
 
   /**
-   * Update the scheduleCache to match current conditions in callCosts.
+   * Update the cached scheduling decisions to match current conditions in
+   * callCosts.
    */
   private void recomputeScheduleCache() {
-    Map<Object, Integer> nextCache = new HashMap<Object, Integer>();
-
-    for (Map.Entry<Object, List<AtomicLong>> entry : callCosts.entrySet()) {
-      Object id = entry.getKey();
-      AtomicLong value = entry.getValue().get(0);
-
-      long snapshot = value.get();
-      int computedLevel = computePriorityLevel(snapshot);
-
-      nextCache.put(id, computedLevel);
-    }
-
-    // Swap in to activate
-    scheduleCacheRef.set(Collections.unmodifiableMap(nextCache));
+    final long totalCallSnapshot = callCosts.getTotalDecayedCost();
+    callCosts.updateLevels(
+        cost -> computePriorityLevel(cost, totalCallSnapshot));
   }
 
   /**
@@ -502,42 +449,17 @@ public class DecayRpcScheduler implements RpcScheduler,
    */
   private void addCost(Object identity, long costDelta) {
     // We will increment the cost, or create it if no such cost exists
-    List<AtomicLong> cost = this.callCosts.get(identity);
-    if (cost == null) {
-      // Create the costs since no such cost exists.
-      // idx 0 for decayed call cost
-      // idx 1 for the raw call cost
-      cost = new ArrayList<AtomicLong>(2);
-      cost.add(new AtomicLong(0));
-      cost.add(new AtomicLong(0));
-
-      // Put it in, or get the AtomicInteger that was put in by another thread
-      List<AtomicLong> otherCost = callCosts.putIfAbsent(identity, cost);
-      if (otherCost != null) {
-        cost = otherCost;
-      }
-    }
-
-    // Update the total
-    totalDecayedCallCost.getAndAdd(costDelta);
-    totalRawCallCost.getAndAdd(costDelta);
-
-    // At this point value is guaranteed to be not null. It may however have
-    // been clobbered from callCosts. Nonetheless, we return what
-    // we have.
-    cost.get(1).getAndAdd(costDelta);
-    cost.get(0).getAndAdd(costDelta);
+    callCosts.add(identity, costDelta);
   }
 
   /**
    * Given the cost for an identity, compute a scheduling decision.
    *
    * @param cost the cost for an identity
+   * @param totalCallSnapshot the total decayed cost of all identities
    * @return scheduling decision from 0 to numLevels - 1
    */
-  private int computePriorityLevel(long cost) {
-    long totalCallSnapshot = totalDecayedCallCost.get();
-
+  private int computePriorityLevel(long cost, long totalCallSnapshot) {
     double proportion = 0;
     if (totalCallSnapshot > 0) {
       proportion = (double) cost / totalCallSnapshot;
@@ -562,20 +484,17 @@ public class DecayRpcScheduler implements RpcScheduler,
    */
   private int cachedOrComputedPriorityLevel(Object identity) {
     // Try the cache
-    Map<Object, Integer> scheduleCache = scheduleCacheRef.get();
-    if (scheduleCache != null) {
-      Integer priority = scheduleCache.get(identity);
-      if (priority != null) {
-        LOG.debug("Cache priority for: {} with priority: {}", identity,
-            priority);
-        return priority;
-      }
+    int priority = callCosts.getLevel(identity);
+    if (priority != CallCostTable.NO_LEVEL) {
+      LOG.debug("Cache priority for: {} with priority: {}", identity,
+          priority);
+      return priority;
     }
 
     // Cache was no good, compute it
-    List<AtomicLong> costList = callCosts.get(identity);
-    long currentCost = costList == null ? 0 : costList.get(0).get();
-    int priority = computePriorityLevel(currentCost);
+    long currentCost = callCosts.getDecayedCost(identity);
+    priority = computePriorityLevel(currentCost,
+        callCosts.getTotalDecayedCost());
     LOG.debug("compute priority for {} priority {}", identity, priority);
     return priority;
   }
@@ -628,7 +547,7 @@ public class DecayRpcScheduler implements RpcScheduler,
   public void addResponseTime(String callName, Schedulable schedulable,
       ProcessingDetails details) {
     String user = identityProvider.makeIdentity(schedulable);
-    long processingCost = costProvider.getCost(details);
+    long processingCost = costProvider.getCost(callName, details);
     addCost(user, processingCost);
 
     int priorityLevel = schedulable.getPriorityLevel();
@@ -704,18 +623,17 @@ public class DecayRpcScheduler implements RpcScheduler,
 
   @VisibleForTesting
   Map<Object, Long> getCallCostSnapshot() {
-    HashMap<Object, Long> snapshot = new HashMap<Object, Long>();
+    final HashMap<Object, Long> snapshot = new HashMap<Object, Long>();
 
-    for (Map.Entry<Object, List<AtomicLong>> entry : callCosts.entrySet()) {
-      snapshot.put(entry.getKey(), entry.getValue().get(0).get());
-    }
+    callCosts.forEach((identity, decayedCost, rawCost, level) ->
+        snapshot.put(identity, decayedCost));
 
     return Collections.unmodifiableMap(snapshot);
   }
 
   @VisibleForTesting
   long getTotalCallSnapshot() {
-    return totalDecayedCallCost.get();
+    return callCosts.getTotalDecayedCost();
   }
 
   /**
@@ -852,11 +770,11 @@ public class DecayRpcScheduler implements RpcScheduler,
   }
 
   public long getTotalCallVolume() {
-    return totalDecayedCallCost.get();
+    return callCosts.getTotalDecayedCost();
   }
 
   public long getTotalRawCallVolume() {
-    return totalRawCallCost.get();
+    return callCosts.getTotalRawCost();
   }
 
   public long[] getResponseTimeCountInLastWindow() {
@@ -932,7 +850,6 @@ public class DecayRpcScheduler implements RpcScheduler,
   // Key: Caller(xyz).Volume and Caller(xyz).Priority
   private void addTopNCallerSummary(MetricsRecordBuilder rb) {
     TopN topNCallers = getTopCallers(topUsersCount);
-    Map<Object, Integer> decisions = scheduleCacheRef.get();
     final int actualCallerCount = topNCallers.size();
     for (int i = 0; i < actualCallerCount; i++) {
       NameValuePair entry =  topNCallers.poll();
@@ -941,8 +858,8 @@ public class DecayRpcScheduler implements RpcScheduler,
       String topCallerPriority = topCaller + ".Priority";
       rb.addCounter(Interns.info(topCallerVolume, topCallerVolume),
           entry.getValue());
-      Integer priority = decisions.get(entry.getName());
-      if (priority != null) {
+      int priority = callCosts.getLevel(entry.getName());
+      if (priority != CallCostTable.NO_LEVEL) {
         rb.addCounter(Interns.info(topCallerPriority, topCallerPriority),
             priority);
       }
@@ -951,30 +868,26 @@ public class DecayRpcScheduler implements RpcScheduler,
 
   // Get the top N callers' raw call cost and scheduler decision
   private TopN getTopCallers(int n) {
-    TopN topNCallers = new TopN(n);
-    Iterator<Map.Entry<Object, List<AtomicLong>>> it =
-        callCosts.entrySet().iterator();
-    while (it.hasNext()) {
-      Map.Entry<Object, List<AtomicLong>> entry = it.next();
-      String caller = entry.getKey().toString();
-      Long cost = entry.getValue().get(1).get();
-      if (cost > 0) {
-        topNCallers.offer(new NameValuePair(caller, cost));
+    final TopN topNCallers = new TopN(n);
+    callCosts.forEach((identity, decayedCost, rawCost, level) -> {
+      if (rawCost > 0) {
+        topNCallers.offer(new NameValuePair(identity.toString(), rawCost));
       }
-    }
+    });
     return topNCallers;
   }
 
   public String getSchedulingDecisionSummary() {
-    Map<Object, Integer> decisions = scheduleCacheRef.get();
-    if (decisions == null) {
-      return "{}";
-    } else {
-      try {
-        return WRITER.writeValueAsString(decisions);
-      } catch (Exception e) {
-        return "Error: " + e.getMessage();
+    final Map<Object, Integer> decisions = new HashMap<>();
+    callCosts.forEach((identity, decayedCost, rawCost, level) -> {
+      if (level != CallCostTable.NO_LEVEL) {
+        decisions.put(identity, level);
       }
+    });
+    try {
+      return WRITER.writeValueAsString(decisions);
+    } catch (Exception e) {
+      return "Error: " + e.getMessage();
     }
   }
 
@@ -987,17 +900,13 @@ public class DecayRpcScheduler implements RpcScheduler,
   }
 
   private Map<Object, Long> getDecayedCallCosts() {
-    Map<Object, Long> decayedCallCosts = new HashMap<>(callCosts.size());
-    Iterator<Map.Entry<Object, List<AtomicLong>>> it =
-        callCosts.entrySet().iterator();
-    while (it.hasNext()) {
-      Map.Entry<Object, List<AtomicLong>> entry = it.next();
-      Object user = entry.getKey();
-      Long decayedCost = entry.getValue().get(0).get();
+    final Map<Object, Long> decayedCallCosts =
+        new HashMap<>(callCosts.size());
+    callCosts.forEach((identity, decayedCost, rawCost, level) -> {
       if (decayedCost > 0) {
-        decayedCallCosts.put(user, decayedCost);
+        decayedCallCosts.put(identity, decayedCost);
       }
-    }
+    });
     return decayedCallCosts;
   }
 
@@ -49,7 +49,7 @@ import org.slf4j.LoggerFactory;
  * A queue with multiple levels for each priority.
  */
 public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
-    implements BlockingQueue<E> {
+    implements BlockingQueue<E>, CallQueueLevelStats {
   @Deprecated
   public static final int    IPC_CALLQUEUE_PRIORITY_LEVELS_DEFAULT = 4;
   @Deprecated
@@ -355,14 +355,14 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
    * MetricsProxy is a singleton because we may init multiple
    * FairCallQueues, but the metrics system cannot unregister beans cleanly.
    */
-  private static final class MetricsProxy implements FairCallQueueMXBean,
+  static final class MetricsProxy implements FairCallQueueMXBean,
       MetricsSource {
     // One singleton per namespace
     private static final HashMap<String, MetricsProxy> INSTANCES =
       new HashMap<String, MetricsProxy>();
 
     // Weakref for delegate, so we don't retain it forever if it can be GC'd
-    private WeakReference<FairCallQueue<? extends Schedulable>> delegate;
+    private WeakReference<CallQueueLevelStats> delegate;
 
     // Keep track of how many objects we registered
     private int revisionNumber = 0;
@@ -386,9 +386,8 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
       return mp;
     }
 
-    public void setDelegate(FairCallQueue<? extends Schedulable> obj) {
-      this.delegate
-          = new WeakReference<FairCallQueue<? extends Schedulable>>(obj);
+    public void setDelegate(CallQueueLevelStats obj) {
+      this.delegate = new WeakReference<CallQueueLevelStats>(obj);
       this.revisionNumber++;
     }
 
@@ -396,8 +395,8 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
      * Fetch the current call queue from the weak reference delegate. If there
      * is no delegate, or the delegate is empty, this will return null.
      */
-    private FairCallQueue<? extends Schedulable> getCallQueue() {
-      WeakReference<FairCallQueue<? extends Schedulable>> ref = this.delegate;
+    private CallQueueLevelStats getCallQueue() {
+      WeakReference<CallQueueLevelStats> ref = this.delegate;
       if (ref == null) {
         return null;
       }
@@ -406,7 +405,7 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
 
     @Override
     public int[] getQueueSizes() {
-      FairCallQueue<? extends Schedulable> obj = getCallQueue();
+      CallQueueLevelStats obj = getCallQueue();
       if (obj == null) {
         return new int[]{};
       }
@@ -416,7 +415,7 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
 
     @Override
     public long[] getOverflowedCalls() {
-      FairCallQueue<? extends Schedulable> obj = getCallQueue();
+      CallQueueLevelStats obj = getCallQueue();
       if (obj == null) {
         return new long[]{};
       }
@@ -447,6 +446,7 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
   }
 
   // FairCallQueueMXBean
+  @Override
   public int[] getQueueSizes() {
     int numQueues = queues.size();
     int[] sizes = new int[numQueues];
@@ -456,6 +456,7 @@ public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
     return sizes;
   }
 
+  @Override
   public long[] getOverflowedCalls() {
     int numQueues = queues.size();
     long[] calls = new long[numQueues];
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An open-addressed table of completed {@link RetryCache} entries kept in a
+ * direct buffer, where the garbage collector never sees them.  Each slot
+ * packs the client id, call id, expiration time and state of an entry into
+ * {@link #SLOT_SIZE} bytes; a slot with state 0 is empty.  Entries are
+ * removed by backward shift deletion, so there are no tombstones.
+ * <p>
+ * When the table is full, expired entries are evicted first, then the
+ * oldest entries.
+ * <p>
+ * This class is not thread safe.
+ */
+final class OffHeapRetryCacheTable {
+  static final int SLOT_SIZE = 32;
+
+  private static final int MSB = 0;
+  private static final int LSB = 8;
+  private static final int EXPIRATION = 16;
+  private static final int CALL_ID = 24;
+  private static final int STATE = 28;
+
+  private final ByteBuffer slots;
+  private final int mask;
+  private final int sizeLimit;
+  private int size;
+
+  /**
+   * @param sizeLimit the number of entries the table holds
+   */
+  OffHeapRetryCacheTable(int sizeLimit) {
+    Preconditions.checkArgument(sizeLimit > 0,
+        "sizeLimit must be positive");
+    // keep at least a quarter of the slots empty to bound the probes
+    long capacity = Long.highestOneBit(sizeLimit * 4L / 3 + 1) << 1;
+    Preconditions.checkArgument(capacity * SLOT_SIZE <= Integer.MAX_VALUE,
+        "sizeLimit " + sizeLimit + " is too large");
+    this.slots = ByteBuffer.allocateDirect((int) capacity * SLOT_SIZE);
+    this.mask = (int) capacity - 1;
+    this.sizeLimit = sizeLimit;
+  }
+
+  static int hash(long msb, long lsb, int callId) {
+    int h = ((int) (msb ^ (msb >>> 32)) * 31
+        + (int) (lsb ^ (lsb >>> 32))) * 31 + callId;
+    return h ^ (h >>> 16);
+  }
+
+  private int homeOf(int slot) {
+    return hash(getMsb(slot), getLsb(slot), getCallId(slot)) & mask;
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isUsed(int slot) {
+    return getState(slot) != 0;
+  }
+
+  long getMsb(int slot) {
+    return slots.getLong(slot * SLOT_SIZE + MSB);
+  }
+
+  long getLsb(int slot) {
+    return slots.getLong(slot * SLOT_SIZE + LSB);
+  }
+
+  long getExpirationTime(int slot) {
+    return slots.getLong(slot * SLOT_SIZE + EXPIRATION);
+  }
+
+  int getCallId(int slot) {
+    return slots.getInt(slot * SLOT_SIZE + CALL_ID);
+  }
+
+  int getState(int slot) {
+    return slots.getInt(slot * SLOT_SIZE + STATE);
+  }
+
+  /**
+   * @return the slot of the entry, or -1 if there is none
+   */
+  int find(long msb, long lsb, int callId) {
+    for (int slot = hash(msb, lsb, callId) & mask; isUsed(slot);
+         slot = (slot + 1) & mask) {
+      if (getCallId(slot) == callId && getMsb(slot) == msb
+          && getLsb(slot) == lsb) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Add or replace an entry.
+   * @param state state of the entry, must not be 0
+   * @param now current time in nanoseconds, to evict expired entries
+   */
+  void put(long msb, long lsb, int callId, long expirationTime, int state,
+      long now) {
+    Preconditions.checkArgument(state != 0, "state must not be 0");
+    int slot = find(msb, lsb, callId);
+    if (slot < 0) {
+      if (size >= sizeLimit) {
+        evict(now);
+      }
+      slot = hash(msb, lsb, callId) & mask;
+      while (isUsed(slot)) {
+        slot = (slot + 1) & mask;
+      }
+      size++;
+    }
+    int base = slot * SLOT_SIZE;
+    slots.putLong(base + MSB, msb);
+    slots.putLong(base + LSB, lsb);
+    slots.putLong(base + EXPIRATION, expirationTime);
+    slots.putInt(base + CALL_ID, callId);
+    slots.putInt(base + STATE, state);
+  }
+
+  /** Remove the entry in a slot, moving back the entries probed past it. */
+  void remove(int slot) {
+    int hole = slot;
+    for (int next = (hole + 1) & mask; isUsed(next);
+         next = (next + 1) & mask) {
+      // an entry may fill the hole unless its home lies between them
+      if (((next - homeOf(next)) & mask) >= ((next - hole) & mask)) {
+        copySlot(next, hole);
+        hole = next;
+      }
+    }
+    slots.putInt(hole * SLOT_SIZE + STATE, 0);
+    size--;
+  }
+
+  private void copySlot(int from, int to) {
+    for (int i = 0; i < SLOT_SIZE; i += 8) {
+      slots.putLong(to * SLOT_SIZE + i, slots.getLong(from * SLOT_SIZE + i));
+    }
+  }
+
+  /** Remove the entries that expire before the given time. */
+  private void removeExpiredBefore(long time) {
+    for (int slot = 0; slot <= mask;) {
+      if (isUsed(slot) && getExpirationTime(slot) - time < 0) {
+        // an entry has been moved into the slot, look at it again
+        remove(slot);
+      } else {
+        slot++;
+      }
+    }
+  }
+
+  /**
+   * Make room for an entry.  Entries are added with a fixed expiration
+   * period, so when none has expired, the oldest eighth of the expiration
+   * range goes.
+   */
+  private void evict(long now) {
+    removeExpiredBefore(now);
+    if (size < sizeLimit) {
+      return;
+    }
+    long oldest = Long.MAX_VALUE;
+    long newest = Long.MIN_VALUE;
+    for (int slot = 0; slot <= mask; slot++) {
+      if (isUsed(slot)) {
+        oldest = Math.min(oldest, getExpirationTime(slot));
+        newest = Math.max(newest, getExpirationTime(slot));
+      }
+    }
+    removeExpiredBefore(oldest + (newest - oldest) / 8 + 1);
+  }
+
+  void clear() {
+    for (int slot = 0; slot <= mask; slot++) {
+      slots.putInt(slot * SLOT_SIZE + STATE, 0);
+    }
+    size = 0;
+  }
+}
@@ -0,0 +1,498 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.commons.lang3.NotImplementedException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.ipc.CallQueueManager.CallQueueOverflowException;
+import org.apache.hadoop.ipc.RingBufferCallQueue.Ring;
+import org.apache.hadoop.ipc.RingBufferCallQueue.Waiters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A multi-level call queue split into partitions, to be set as
+ * <code>callqueue.impl</code>.  Every thread putting calls, usually a reader,
+ * and every thread taking them, usually a handler, is bound to a partition
+ * the first time it uses the queue, so that readers and handlers of a
+ * partition mostly touch the same memory.
+ *
+ * Every partition has one lock-free ring per priority level, like
+ * {@link RingBufferCallQueue}.  A handler serves the priority picked by the
+ * shared multiplexer from its own partition first, then steals calls of
+ * that priority from the other partitions, before moving on to the other
+ * priorities.  A call is thus never passed over for a lower priority one
+ * in another partition.  Idle handlers of all partitions park together, a
+ * woken handler still looks at its own partition first.  Overflow is
+ * handled like in {@link FairCallQueue}, after trying the same priority of
+ * the other partitions.
+ */
+public class PartitionedCallQueue<E extends Schedulable>
+    extends AbstractQueue<E> implements BlockingQueue<E>, CallQueueLevelStats {
+  public static final Logger LOG =
+      LoggerFactory.getLogger(PartitionedCallQueue.class);
+
+  /* The queues, by partition and priority */
+  private final Ring<E>[][] queues;
+  private final int numLevels;
+
+  /* Handlers parked until a call is queued in any partition */
+  private final Waiters notEmpty = new Waiters();
+  /* Producers parked until a call is taken, by partition and priority */
+  private final Waiters[][] notFull;
+
+  /* Partition of the threads putting and taking calls */
+  private final AtomicInteger nextProducer = new AtomicInteger();
+  private final AtomicInteger nextConsumer = new AtomicInteger();
+  private final ThreadLocal<Integer> producerPartition =
+      new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+          return nextProducer.getAndIncrement() % queues.length;
+        }
+      };
+  private final ThreadLocal<Integer> consumerPartition =
+      new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+          return nextConsumer.getAndIncrement() % queues.length;
+        }
+      };
+
+  /* Multiplexer picks which priority to draw from */
+  private RpcMultiplexer multiplexer;
+
+  /* Statistic tracking */
+  private final AtomicLong[] overflowedCalls;
+
+  /* Failover if queue is filled up */
+  private final boolean serverFailOverEnabled;
+
+  /**
+   * Create a PartitionedCallQueue.
+   * @param priorityLevels the number of priority levels
+   * @param capacity the total size of all sub-queues
+   * @param ns the prefix to use for configuration
+   * @param conf the configuration to read from
+   * Notes: the capacity is split evenly between the partitions, and within
+   * a partition like the sub-queues of {@link FairCallQueue}.
+   */
+  @SuppressWarnings("unchecked")
+  public PartitionedCallQueue(int priorityLevels, int capacity, String ns,
+      Configuration conf) {
+    if (priorityLevels < 1) {
+      throw new IllegalArgumentException("Number of Priority Levels must be " +
+          "at least 1");
+    }
+    int numPartitions = conf.getInt(ns + "." +
+        CommonConfigurationKeys.IPC_CALLQUEUE_PARTITIONS_KEY,
+        CommonConfigurationKeys.IPC_CALLQUEUE_PARTITIONS_DEFAULT);
+    if (numPartitions <= 0) {
+      numPartitions = conf.getInt(
+          CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_KEY,
+          CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_DEFAULT);
+    }
+    // every ring needs room for at least one call
+    numPartitions = Math.max(1,
+        Math.min(numPartitions, capacity / priorityLevels));
+    this.numLevels = priorityLevels;
+    LOG.info("PartitionedCallQueue is in use with " + numPartitions +
+        " partitions of " + numLevels + " queues with total capacity of " +
+        capacity);
+
+    this.queues = new Ring[numPartitions][numLevels];
+    this.notFull = new Waiters[numPartitions][numLevels];
+    this.overflowedCalls = new AtomicLong[numLevels];
+    int partitionCapacity = capacity / numPartitions;
+    for (int p = 0; p < numPartitions; p++) {
+      int total = partitionCapacity +
+          (p == 0 ? capacity % numPartitions : 0);
+      int queueCapacity = total / numLevels;
+      int capacityForFirstQueue = queueCapacity + (total % numLevels);
+      for (int i = 0; i < numLevels; i++) {
+        queues[p][i] = new Ring<E>(
+            i == 0 ? capacityForFirstQueue : queueCapacity);
+        notFull[p][i] = new Waiters();
+      }
+    }
+    for (int i = 0; i < numLevels; i++) {
+      this.overflowedCalls[i] = new AtomicLong(0);
+    }
+    this.serverFailOverEnabled = conf.getBoolean(
+        ns + "." +
+        CommonConfigurationKeys.IPC_CALLQUEUE_SERVER_FAILOVER_ENABLE,
+        CommonConfigurationKeys.IPC_CALLQUEUE_SERVER_FAILOVER_ENABLE_DEFAULT);
+
+    this.multiplexer = new WeightedRoundRobinMultiplexer(numLevels, ns, conf);
+    // Make this the active source of metrics
+    FairCallQueue.MetricsProxy mp = FairCallQueue.MetricsProxy.getInstance(ns);
+    mp.setDelegate(this);
+  }
+
+  /**
+   * Take an element from the given partition and priority.
+   */
+  private E pollQueue(int partition, int priority) {
+    E e = queues[partition][priority].poll();
+    if (e != null) {
+      notFull[partition][priority].signal();
+    }
+    return e;
+  }
+
+  /**
+   * Take an element of the given priority, from the given partition first
+   * and then from the other partitions.
+   */
+  private E pollLevel(int partition, int priority) {
+    E e = null;
+    for (int i = 0; e == null && i < queues.length; i++) {
+      e = pollQueue((partition + i) % queues.length, priority);
+    }
+    return e;
+  }
+
+  /**
+   * Returns an element of the priority returned by the multiplexer or scans
+   * from highest to lowest priority, stealing from the other partitions
+   * before moving on to the next priority.
+   *
+   * @return the element, or null if every queue was empty
+   */
+  private E removeNextElement(int partition) {
+    int priority = multiplexer.getAndAdvanceCurrentIndex();
+    E e = pollLevel(partition, priority);
+    for (int idx = 0; e == null && idx < numLevels; idx++) {
+      e = pollLevel(partition, idx);
+    }
+    return e;
+  }
+
+  /**
+   * Take an element, parking until one is queued.
+   * @param timed whether to give up after nanos
+   * @param nanos the maximum time to wait
+   * @return the element, or null if the wait timed out
+   */
+  private E awaitElement(boolean timed, long nanos)
+      throws InterruptedException {
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    final int partition = consumerPartition.get();
+    while (true) {
+      E e = removeNextElement(partition);
+      if (e != null) {
+        return e;
+      }
+      if (timed && (nanos = deadline - System.nanoTime()) <= 0) {
+        return null;
+      }
+      notEmpty.register();
+      try {
+        // a call queued before the registration was not signalled
+        e = removeNextElement(partition);
+        if (e != null) {
+          return e;
+        }
+        if (!notEmpty.await(timed, nanos)) {
+          return removeNextElement(partition);
+        }
+      } finally {
+        notEmpty.unregister();
+      }
+    }
+  }
+
+  /**
+   * Queue an element in the given partition and priority, parking until
+   * there is room.
+   * @param timed whether to give up after nanos
+   * @param nanos the maximum time to wait
+   * @return boolean if added to the given queue
+   */
+  private boolean awaitSpace(int partition, int priority, E e, boolean timed,
+      long nanos) throws InterruptedException {
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    final Waiters waiters = notFull[partition][priority];
+    while (true) {
+      if (offerQueue(partition, priority, e)) {
+        return true;
+      }
+      if (timed && (nanos = deadline - System.nanoTime()) <= 0) {
+        return false;
+      }
+      waiters.register();
+      try {
+        // a call taken before the registration was not signalled
+        if (offerQueue(partition, priority, e)) {
+          return true;
+        }
+        if (!waiters.await(timed, nanos)) {
+          return offerQueue(partition, priority, e);
+        }
+      } finally {
+        waiters.unregister();
+      }
+    }
+  }
+
+  /* AbstractQueue and BlockingQueue methods */
+
+  /**
+   * Add, put, and offer follow the same pattern as in FairCallQueue, with
+   * the sub-queue of a priority being tried in every partition, starting
+   * with the partition of the calling thread:
+   * - Add will move on to the next priority, throw on last queue overflow
+   * - Put will move on to the next priority, block on last queue overflow
+   * - Offer does not attempt other priorities on overflow
+   */
+
+  @Override
+  public boolean add(E e) {
+    final int priorityLevel = e.getPriorityLevel();
+    // try offering to all queues.
+    if (!offerQueues(producerPartition.get(), priorityLevel, e, true)) {
+
+      CallQueueOverflowException ex;
+      if (serverFailOverEnabled) {
+        // Signal clients to failover and try a separate server.
+        ex = CallQueueOverflowException.FAILOVER;
+      } else if (priorityLevel == numLevels - 1) {
+        // only disconnect the lowest priority users that overflow the queue.
+        ex = CallQueueOverflowException.DISCONNECT;
+      } else {
+        ex = CallQueueOverflowException.KEEPALIVE;
+      }
+      throw ex;
+    }
+    return true;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    final int partition = producerPartition.get();
+    final int priorityLevel = e.getPriorityLevel();
+    // try offering to all but last queue, put on last.
+    if (!offerQueues(partition, priorityLevel, e, false)
+        && !offerLevel(partition, numLevels - 1, e)) {
+      awaitSpace(partition, numLevels - 1, e, false, 0L);
+    }
+  }
+
+  /**
+   * Offer the element to the queue of a specific partition and priority.
+   * @param partition - queue partition
+   * @param priority - queue priority
+   * @param e - element to add
+   * @return boolean if added to the given queue
+   */
+  @VisibleForTesting
+  boolean offerQueue(int partition, int priority, E e) {
+    boolean ret = queues[partition][priority].offer(e);
+    if (ret) {
+      notEmpty.signal();
+    }
+    return ret;
+  }
+
+  /**
+   * Offer the element to the queues of a specific priority, starting with
+   * the given partition.
+   * @return boolean if added to a queue
+   */
+  private boolean offerLevel(int partition, int priority, E e) {
+    for (int i = 0; i < queues.length; i++) {
+      if (offerQueue((partition + i) % queues.length, priority, e)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Offer the element to queue of the given or lower priority.
+   * @param partition - starting queue partition
+   * @param priority - starting queue priority
+   * @param e - element to add
+   * @param includeLast - whether to attempt last queue
+   * @return boolean if added to a queue
+   */
+  private boolean offerQueues(int partition, int priority, E e,
+      boolean includeLast) {
+    int lastPriority = numLevels - (includeLast ? 1 : 2);
+    for (int i = priority; i <= lastPriority; i++) {
+      if (offerLevel(partition, i, e)) {
+        return true;
+      }
+      // Update stats
+      overflowedCalls[i].getAndIncrement();
+    }
+    return false;
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    final int partition = producerPartition.get();
+    final int priorityLevel = e.getPriorityLevel();
+    return offerLevel(partition, priorityLevel, e) || awaitSpace(partition,
+        priorityLevel, e, true, unit.toNanos(timeout));
+  }
+
+  @Override
+  public boolean offer(E e) {
+    return offerLevel(producerPartition.get(), e.getPriorityLevel(), e);
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    return awaitElement(false, 0L);
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return awaitElement(true, unit.toNanos(timeout));
+  }
+
+  /**
+   * poll() provides no strict consistency: it is possible for poll to return
+   * null even though an element is in the queue.
+   */
+  @Override
+  public E poll() {
+    return removeNextElement(consumerPartition.get());
+  }
+
+  /**
+   * Peek, like poll, provides no strict consistency.
+   */
+  @Override
+  public E peek() {
+    E e = null;
+    for (int i = 0; e == null && i < numLevels; i++) {
+      for (int p = 0; e == null && p < queues.length; p++) {
+        e = queues[p][i].peek();
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Size returns the sum of all sub-queue sizes.
+   * Note: size provides no strict consistency, and should not be used to
+   * control queue IO.
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Ring<E>[] partition : queues) {
+      for (Ring<E> q : partition) {
+        size += q.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Iterator is not implemented, as it is not needed.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    throw new NotImplementedException("Code is not implemented");
+  }
+
+  /**
+   * drainTo takes the elements in priority order.  Like for FairCallQueue,
+   * draining into another multi-level queue may schedule the calls
+   * differently.
+   */
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int drained = 0;
+    for (int i = 0; drained < maxElements && i < numLevels; i++) {
+      E e;
+      while (drained < maxElements && (e = pollLevel(0, i)) != null) {
+        c.add(e);
+        drained++;
+      }
+    }
+    return drained;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns maximum remaining capacity. This does not reflect how much you can
+   * ideally fit in this queue, as that would depend on the scheduler's
+   * decisions.
+   */
+  @Override
+  public int remainingCapacity() {
+    int sum = 0;
+    for (Ring<E>[] partition : queues) {
+      for (Ring<E> q : partition) {
+        sum += q.remainingCapacity();
+      }
+    }
+    return sum;
+  }
+
+  @VisibleForTesting
+  int getNumPartitions() {
+    return queues.length;
+  }
+
+  // FairCallQueueMXBean, the sizes are summed over the partitions
+  @Override
+  public int[] getQueueSizes() {
+    int[] sizes = new int[numLevels];
+    for (Ring<E>[] partition : queues) {
+      for (int i = 0; i < numLevels; i++) {
+        sizes[i] += partition[i].size();
+      }
+    }
+    return sizes;
+  }
+
+  @Override
+  public long[] getOverflowedCalls() {
+    long[] calls = new long[numLevels];
+    for (int i = 0; i < numLevels; i++) {
+      calls[i] = overflowedCalls[i].get();
+    }
+    return calls;
+  }
+
+  @VisibleForTesting
+  public void setMultiplexer(RpcMultiplexer newMux) {
+    this.multiplexer = newMux;
+  }
+}
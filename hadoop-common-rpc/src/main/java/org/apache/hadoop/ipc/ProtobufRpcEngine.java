@@ -26,7 +26,10 @@ import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.classification.InterfaceStability.Unstable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.retry.Idempotent;
+import org.apache.hadoop.io.retry.RetryPolicies;
 import org.apache.hadoop.io.retry.RetryPolicy;
+import org.apache.hadoop.io.retry.RetryPolicy.RetryAction;
 import org.apache.hadoop.ipc.Client.ConnectionId;
 import org.apache.hadoop.ipc.RPC.RpcInvoker;
 import org.apache.hadoop.ipc.protobuf.ProtobufRpcEngineProtos.RequestHeaderProto;
@@ -35,6 +38,7 @@ import org.apache.hadoop.security.token.SecretManager;
 import org.apache.hadoop.security.token.TokenIdentifier;
 import org.apache.hadoop.util.Time;
 import org.apache.hadoop.util.concurrent.AsyncGet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.htrace.core.TraceScope;
 import org.apache.htrace.core.Tracer;
 import org.slf4j.Logger;
@@ -43,10 +47,16 @@ import org.slf4j.LoggerFactory;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -104,6 +114,47 @@ public class ProtobufRpcEngine implements RpcEngine {
         protocol.getClassLoader(), new Class[]{protocol}, invoker), false);
   }
   
+  /**
+   * Get a proxy whose methods return a {@link CompletableFuture} instead of
+   * blocking.  <code>asyncProtocol</code> mirrors the blocking interface of
+   * <code>protocol</code>: every method has the same name and parameters,
+   * i.e. an RpcController and the request message, and returns a
+   * <code>CompletableFuture</code> of the response message.
+   *
+   * The futures are completed by the thread that reads the responses, and
+   * fail with a {@link ServiceException} whose cause is the IOException or
+   * {@link RemoteException} of the call.  Failed calls are retried after the
+   * delay given by <code>retryPolicy</code> on a shared scheduler thread,
+   * with the call id kept so the server's retry cache recognizes them.  If
+   * the policy limits the time of the retries, every attempt is sent with
+   * the end of that time as its deadline, see
+   * {@link Client#setCallDeadline(long)}.
+   *
+   * @param asyncProtocol interface of the returned proxy
+   * @param protocol the protobuf protocol, as used for blocking proxies
+   * @param addr remote address
+   * @param ticket user group information
+   * @param conf configuration
+   * @param factory socket factory
+   * @param rpcTimeout max time for each rpc; 0 means no timeout
+   * @param retryPolicy retry policy for the calls, null means no retries
+   * @return the async proxy
+   * @throws IOException if the proxy cannot be created
+   */
+  @Unstable
+  @SuppressWarnings("unchecked")
+  public static <T> T getAsyncProxy(Class<T> asyncProtocol,
+      Class<?> protocol, InetSocketAddress addr, UserGroupInformation ticket,
+      Configuration conf, SocketFactory factory, int rpcTimeout,
+      RetryPolicy retryPolicy) throws IOException {
+    final Invoker invoker = new Invoker(protocol, addr, ticket, conf, factory,
+        rpcTimeout, null, null, null);
+    return (T) Proxy.newProxyInstance(asyncProtocol.getClassLoader(),
+        new Class[]{asyncProtocol}, new AsyncInvoker(invoker,
+            retryPolicy == null ? RetryPolicies.TRY_ONCE_THEN_FAIL
+                : retryPolicy));
+  }
+
   @Override
   public ProtocolProxy<ProtocolMetaInfoPB> getProtocolMetaInfoProxy(
       ConnectionId connId, Configuration conf, SocketFactory factory)
@@ -314,6 +365,16 @@ public class ProtobufRpcEngine implements RpcEngine {
       }
       
       Class<?> returnType = method.getReturnType();
+      if (returnType == CompletableFuture.class) {
+        // async proxy, the message type is the type argument
+        Type type = method.getGenericReturnType();
+        if (!(type instanceof ParameterizedType)) {
+          throw new IllegalArgumentException("Method " + method.getName()
+              + " must return CompletableFuture<? extends Message>");
+        }
+        returnType = (Class<?>)
+            ((ParameterizedType) type).getActualTypeArguments()[0];
+      }
       Method newInstMethod = returnType.getMethod("getDefaultInstance");
       newInstMethod.setAccessible(true);
       Message prototype = (Message) newInstMethod.invoke(null, (Object[]) null);
@@ -327,6 +388,191 @@ public class ProtobufRpcEngine implements RpcEngine {
     }
   }
 
+  /** Schedules the retries of async proxies. */
+  private static ScheduledExecutorService retryScheduler;
+  /**
+   * Runs the retries of async proxies once due. A retry may block setting up
+   * its connection, so it must not hold up the scheduler and the retries of
+   * other proxies.
+   */
+  private static ExecutorService retryExecutor;
+
+  private static synchronized ScheduledExecutorService getRetryScheduler() {
+    if (retryScheduler == null) {
+      retryScheduler = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("IPC Async Retry Scheduler")
+          .build());
+    }
+    return retryScheduler;
+  }
+
+  private static synchronized ExecutorService getRetryExecutor() {
+    if (retryExecutor == null) {
+      retryExecutor = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("IPC Async Retry #%d")
+          .build());
+    }
+    return retryExecutor;
+  }
+
+  /**
+   * Client side invoker of async proxies, see {@link #getAsyncProxy}.
+   * Shares the connection, header and response decoding of {@link Invoker}.
+   */
+  private static class AsyncInvoker implements RpcInvocationHandler {
+    private final Invoker invoker;
+    private final RetryPolicy retryPolicy;
+
+    private AsyncInvoker(Invoker invoker, RetryPolicy retryPolicy) {
+      this.invoker = invoker;
+      this.retryPolicy = retryPolicy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(this, args);
+      }
+      CompletableFuture<Message> future = new CompletableFuture<>();
+      if (args == null || args.length != 2) { // RpcController + Message
+        future.completeExceptionally(new ServiceException(
+            "Too many or few parameters for request. Method: ["
+            + method.getName() + "]" + ", Expected: 2, Actual: "
+            + (args == null ? 0 : args.length)));
+      } else if (args[1] == null) {
+        future.completeExceptionally(new ServiceException(
+            "null param while calling Method: [" + method.getName() + "]"));
+      } else {
+        RpcProtobufRequest request = new RpcProtobufRequest(
+            invoker.constructRpcRequestHeader(method), (Message) args[1]);
+        boolean idempotent = method.isAnnotationPresent(Idempotent.class);
+        new AsyncCall(method, request, idempotent, future).attempt();
+      }
+      return future;
+    }
+
+    /** One call and its retries, which reuse its call id. */
+    private class AsyncCall {
+      private final Method method;
+      private final RpcProtobufRequest request;
+      private final boolean idempotent;
+      private final CompletableFuture<Message> future;
+      private final int callId = Client.nextCallId();
+      private final long deadline; // end of the retry budget, 0 if none
+      private int retries = 0;
+      private int failovers = 0;
+
+      AsyncCall(Method method, RpcProtobufRequest request, boolean idempotent,
+          CompletableFuture<Message> future) {
+        this.method = method;
+        this.request = request;
+        this.idempotent = idempotent;
+        this.future = future;
+        long budget = retryPolicy.getMaxRetryTime();
+        this.deadline = budget > 0 ? Time.monotonicNow() + budget : 0;
+      }
+
+      void attempt() {
+        if (LOG.isTraceEnabled()) {
+          LOG.trace(Thread.currentThread().getId() + ": Async call -> " +
+              invoker.remoteId + ": " + method.getName() +
+              " #" + callId + " retry " + retries);
+        }
+        Client.setCallIdAndRetryCount(callId, retries, null);
+        if (deadline > 0) {
+          Client.setCallDeadline(deadline);
+        }
+        CompletableFuture<Writable> response;
+        try {
+          response = invoker.client.callAsync(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+              request, invoker.remoteId, RPC.RPC_SERVICE_CLASS_DEFAULT,
+              invoker.fallbackToSimpleAuth, invoker.alignmentContext);
+        } catch (IOException e) {
+          failed(e);
+          return;
+        }
+        response.whenComplete((value, error) -> {
+          if (error != null) {
+            failed(error);
+            return;
+          }
+          try {
+            future.complete(invoker.getReturnMessage(method,
+                (RpcWritable.Buffer) value));
+          } catch (ServiceException e) {
+            future.completeExceptionally(e);
+          }
+        });
+      }
+
+      private void failed(Throwable error) {
+        RetryAction action;
+        try {
+          action = error instanceof Exception
+              ? retryPolicy.shouldRetry((Exception) error, retries, failovers,
+                  idempotent)
+              : RetryAction.FAIL;
+        } catch (Exception e) {
+          future.completeExceptionally(new ServiceException(e));
+          return;
+        }
+        if (action.action != RetryAction.RetryDecision.FAIL && deadline > 0
+            && Time.monotonicNow() + action.delayMillis >= deadline) {
+          // the retry would start after the caller gave up
+          action = RetryAction.FAIL;
+        }
+        if (action.action == RetryAction.RetryDecision.FAIL) {
+          if (LOG.isTraceEnabled()) {
+            LOG.trace(Thread.currentThread().getId() + ": Exception <- " +
+                invoker.remoteId + ": " + method.getName() +
+                " {" + error + "}");
+          }
+          future.completeExceptionally(new ServiceException(error));
+          return;
+        }
+        // there is a single address, so a failover retries it as well
+        if (action.action == RetryAction.RetryDecision.FAILOVER_AND_RETRY) {
+          failovers++;
+        }
+        retries++;
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Retrying " + method.getName() + " #" + callId + " in "
+              + action.delayMillis + " ms after " + error);
+        }
+        try {
+          getRetryScheduler().schedule(() -> retry(error),
+              action.delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+          future.completeExceptionally(new ServiceException(error));
+        }
+      }
+
+      /** Hand the due retry over to the retry executor. */
+      private void retry(Throwable error) {
+        try {
+          getRetryExecutor().execute(this::attempt);
+        } catch (RuntimeException e) {
+          future.completeExceptionally(new ServiceException(error));
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      invoker.close();
+    }
+
+    @Override //RpcInvocationHandler
+    public ConnectionId getConnectionId() {
+      return invoker.getConnectionId();
+    }
+  }
+
   @VisibleForTesting
   @InterfaceAudience.Private
   @InterfaceStability.Unstable
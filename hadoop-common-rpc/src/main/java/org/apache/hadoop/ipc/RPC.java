@@ -757,6 +757,8 @@ public class RPC {
     private SecretManager<? extends TokenIdentifier> secretManager = null;
     private String portRangeConfig = null;
     private AlignmentContext alignmentContext = null;
+    private Server.HandlerMode handlerMode = Server.HandlerMode.HANDLER_THREAD;
+    private int maxConcurrentCalls = -1;
     
     public Builder(Configuration conf) {
       this.conf = conf;
@@ -829,6 +831,21 @@ public class RPC {
       return this;
     }
 
+    /** Default: HANDLER_THREAD */
+    public Builder setHandlerMode(Server.HandlerMode handlerMode) {
+      this.handlerMode = handlerMode;
+      return this;
+    }
+
+    /**
+     * Only used with THREAD_PER_CALL.
+     * Default: -1, i.e. numHandlers * Server.DEFAULT_CALLS_PER_HANDLER
+     */
+    public Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+      this.maxConcurrentCalls = maxConcurrentCalls;
+      return this;
+    }
+
     /**
      * Build the RPC Server. 
      * @throws IOException on error
@@ -845,11 +862,13 @@ public class RPC {
         throw new HadoopIllegalArgumentException("instance is not set");
       }
       
-      return getProtocolEngine(this.protocol, this.conf).getServer(
+      Server server = getProtocolEngine(this.protocol, this.conf).getServer(
           this.protocol, this.instance, this.bindAddress, this.port,
           this.numHandlers, this.numReaders, this.queueSizePerHandler,
           this.verbose, this.conf, this.secretManager, this.portRangeConfig,
           this.alignmentContext);
+      server.setHandlerMode(this.handlerMode, this.maxConcurrentCalls);
+      return server;
     }
   }
   
@@ -18,12 +18,23 @@
 package org.apache.hadoop.ipc;
 
 
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.ipc.metrics.RetryCacheMetrics;
+import org.apache.hadoop.util.GSet;
 import org.apache.hadoop.util.LightWeightCache;
 import org.apache.hadoop.util.LightWeightGSet;
 import org.apache.hadoop.util.LightWeightGSet.LinkedElement;
@@ -47,6 +58,12 @@ public class RetryCache {
   public static final Logger LOG = LoggerFactory.getLogger(RetryCache.class);
   private final RetryCacheMetrics retryCacheMetrics;
   private static final int MAX_CAPACITY = 16;
+  // the cache is only striped once every stripe holds this many entries
+  private static final int MIN_STRIPE_CAPACITY = 1 << 10;
+  private static final int MAX_STRIPES = 64;
+  // in off-heap mode, the share of the capacity left on the heap for the
+  // entries in progress, failed or with a payload
+  private static final int OFF_HEAP_MODE_HEAP_RATIO = 8;
 
   /**
    * CacheEntry is tracked using unique client ID and callId of the RPC request
@@ -55,11 +72,19 @@ public class RetryCache {
     /**
      * Processing state of the requests
      */
-    private static byte INPROGRESS = 0;
-    private static byte SUCCESS = 1;
-    private static byte FAILED = 2;
-
-    private byte state = INPROGRESS;
+    private static final int INPROGRESS = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILED = 2;
+
+    private static final AtomicIntegerFieldUpdater<CacheEntry> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "state");
+    private static final AtomicReferenceFieldUpdater<CacheEntry, Waiter>
+        WAITERS = AtomicReferenceFieldUpdater.newUpdater(
+            CacheEntry.class, Waiter.class, "waiters");
+
+    private volatile int state = INPROGRESS;
+    // threads parked until the request in progress completes
+    private volatile Waiter waiters;
     
     // Store uuid as two long for better memory utilization
     private final long clientIdMsb; // Most signficant bytes
@@ -87,6 +112,16 @@ public class RetryCache {
       this.state = success ? SUCCESS : FAILED;
     }
 
+    /** Rebuild a completed entry kept off-heap. */
+    private CacheEntry(long clientIdMsb, long clientIdLsb, int callId,
+        long expirationTime, int state) {
+      this.clientIdMsb = clientIdMsb;
+      this.clientIdLsb = clientIdLsb;
+      this.callId = callId;
+      this.expirationTime = expirationTime;
+      this.state = state;
+    }
+
     private static int hashCode(long value) {
       return (int)(value ^ (value >>> 32));
     }
@@ -119,12 +154,47 @@ public class RetryCache {
       return next;
     }
 
-    synchronized void completed(boolean success) {
+    void completed(boolean success) {
       state = success ? SUCCESS : FAILED;
-      this.notifyAll();
+      for (Waiter w = WAITERS.getAndSet(this, null); w != null; w = w.next) {
+        LockSupport.unpark(w.thread);
+      }
     }
 
-    public synchronized boolean isSuccess() {
+    /**
+     * Wait for the request in progress to complete.  If it failed, the
+     * calling thread takes over the retry and the entry is in progress
+     * again.
+     */
+    void awaitCompletion() {
+      boolean interrupted = false;
+      for (;;) {
+        int s = state;
+        if (s == SUCCESS
+            || (s == FAILED && STATE.compareAndSet(this, FAILED, INPROGRESS))) {
+          break;
+        }
+        if (s == INPROGRESS) {
+          Waiter w = new Waiter(Thread.currentThread());
+          do {
+            w.next = waiters;
+          } while (!WAITERS.compareAndSet(this, w.next, w));
+          // completed() sets the state before it takes the waiters
+          if (state == INPROGRESS) {
+            LockSupport.park(this);
+          }
+          if (Thread.interrupted()) {
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        // Restore the interrupted status
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public boolean isSuccess() {
       return state == SUCCESS;
     }
 
@@ -145,6 +215,349 @@ public class RetryCache {
     }
   }
 
+  /** A thread waiting for a {@link CacheEntry} to complete. */
+  private static final class Waiter {
+    private final Thread thread;
+    private Waiter next;
+
+    Waiter(Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+  /**
+   * The cache entries, striped over several {@link LightWeightCache}s that
+   * each have their own lock and expire their own entries.
+   * <p>
+   * In off-heap mode every stripe also has an {@link OffHeapRetryCacheTable}.
+   * Entries that completed successfully and carry no payload are moved
+   * there, so the LightWeightCache only keeps the entries in progress, the
+   * failed ones and those with a payload.  An entry found off-heap is
+   * returned as a new, completed CacheEntry.
+   */
+  private static final class StripedCacheSet
+      implements GSet<CacheEntry, CacheEntry> {
+    // the number of entries in progress looked at per added entry
+    private static final int PENDING_CHECKS = 2;
+
+    private static final class Stripe {
+      private final ReentrantLock lock = new ReentrantLock();
+      private final LightWeightCache<CacheEntry, CacheEntry> heap;
+      // null unless in off-heap mode
+      private final OffHeapRetryCacheTable offHeap;
+      // entries added in progress, moved off-heap once they succeed
+      private final ArrayDeque<CacheEntry> pending;
+
+      Stripe(int heapCapacity, int offHeapCapacity, long expirationTime) {
+        heap = new LightWeightCache<CacheEntry, CacheEntry>(
+            heapCapacity, heapCapacity, expirationTime, 0);
+        if (offHeapCapacity > 0) {
+          offHeap = new OffHeapRetryCacheTable(offHeapCapacity);
+          pending = new ArrayDeque<CacheEntry>();
+        } else {
+          offHeap = null;
+          pending = null;
+        }
+      }
+
+      private static boolean belongsOffHeap(CacheEntry entry) {
+        return entry.state == CacheEntry.SUCCESS
+            && !(entry instanceof CacheEntryWithPayload);
+      }
+
+      private int findOffHeap(CacheEntry key) {
+        if (offHeap == null) {
+          return -1;
+        }
+        int slot = offHeap.find(key.clientIdMsb, key.clientIdLsb, key.callId);
+        if (slot >= 0
+            && offHeap.getExpirationTime(slot) - System.nanoTime() < 0) {
+          offHeap.remove(slot);
+          return -1;
+        }
+        return slot;
+      }
+
+      private CacheEntry removeOffHeap(CacheEntry key) {
+        int slot = findOffHeap(key);
+        if (slot < 0) {
+          return null;
+        }
+        CacheEntry entry = offHeapEntry(offHeap, slot);
+        offHeap.remove(slot);
+        return entry;
+      }
+
+      CacheEntry get(CacheEntry key) {
+        CacheEntry entry = heap.get(key);
+        if (entry == null) {
+          int slot = findOffHeap(key);
+          if (slot >= 0) {
+            entry = offHeapEntry(offHeap, slot);
+          }
+        }
+        return entry;
+      }
+
+      CacheEntry put(CacheEntry entry) {
+        if (offHeap != null && belongsOffHeap(entry)) {
+          CacheEntry previous = heap.remove(entry);
+          CacheEntry offHeapPrevious = removeOffHeap(entry);
+          offHeap.put(entry.clientIdMsb, entry.clientIdLsb, entry.callId,
+              entry.expirationTime, entry.state, System.nanoTime());
+          return previous != null ? previous : offHeapPrevious;
+        }
+        CacheEntry previous = heap.put(entry);
+        if (offHeap != null) {
+          CacheEntry offHeapPrevious = removeOffHeap(entry);
+          if (previous == null) {
+            previous = offHeapPrevious;
+          }
+          if (entry.state == CacheEntry.INPROGRESS) {
+            pending.add(entry);
+          }
+        }
+        return previous;
+      }
+
+      CacheEntry remove(CacheEntry key) {
+        CacheEntry previous = heap.remove(key);
+        CacheEntry offHeapPrevious = offHeap != null ? removeOffHeap(key) : null;
+        return previous != null ? previous : offHeapPrevious;
+      }
+
+      /** Move some entries that completed since they were added off-heap. */
+      void movePending() {
+        for (int i = 0; i < PENDING_CHECKS && !pending.isEmpty(); i++) {
+          CacheEntry entry = pending.poll();
+          if (entry.state == CacheEntry.INPROGRESS) {
+            pending.add(entry);
+          } else if (belongsOffHeap(entry) && heap.get(entry) == entry) {
+            put(entry);
+          }
+        }
+      }
+
+      int size() {
+        return heap.size() + (offHeap != null ? offHeap.size() : 0);
+      }
+
+      void clear() {
+        heap.clear();
+        if (offHeap != null) {
+          offHeap.clear();
+          pending.clear();
+        }
+      }
+    }
+
+    private final Stripe[] stripes;
+    private final int shift;
+
+    StripedCacheSet(int capacity, long expirationTime, boolean offHeap) {
+      int numStripes = 1;
+      while (numStripes < MAX_STRIPES
+          && capacity / (numStripes * 2) >= MIN_STRIPE_CAPACITY) {
+        numStripes <<= 1;
+      }
+      int stripeCapacity = capacity / numStripes;
+      stripes = new Stripe[numStripes];
+      for (int i = 0; i < numStripes; i++) {
+        stripes[i] = offHeap
+            ? new Stripe(Math.max(MAX_CAPACITY,
+                stripeCapacity / OFF_HEAP_MODE_HEAP_RATIO),
+                stripeCapacity, expirationTime)
+            : new Stripe(stripeCapacity, 0, expirationTime);
+      }
+      shift = 32 - Integer.numberOfTrailingZeros(numStripes);
+    }
+
+    private static CacheEntry offHeapEntry(OffHeapRetryCacheTable table,
+        int slot) {
+      return new CacheEntry(table.getMsb(slot), table.getLsb(slot),
+          table.getCallId(slot), table.getExpirationTime(slot),
+          table.getState(slot));
+    }
+
+    private Stripe stripeOf(CacheEntry key) {
+      // use the high bits of a multiplicative hash, as the caches index
+      // their buckets by the low bits of the hash code
+      return stripes.length == 1 ? stripes[0]
+          : stripes[(key.hashCode() * 0x9E3779B9) >>> shift];
+    }
+
+    /**
+     * Add the entry unless there is an equal one.
+     * @return the existing entry, or null if the entry was added
+     */
+    CacheEntry putIfAbsent(CacheEntry entry) {
+      Stripe stripe = stripeOf(entry);
+      stripe.lock.lock();
+      try {
+        CacheEntry existing = stripe.get(entry);
+        if (existing == null) {
+          stripe.put(entry);
+          if (stripe.offHeap != null) {
+            stripe.movePending();
+          }
+        }
+        return existing;
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    void lockAll() {
+      for (Stripe stripe : stripes) {
+        stripe.lock.lock();
+      }
+    }
+
+    void unlockAll() {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+        stripes[i].lock.unlock();
+      }
+    }
+
+    @Override
+    public int size() {
+      int size = 0;
+      for (Stripe stripe : stripes) {
+        size += stripe.size();
+      }
+      return size;
+    }
+
+    @Override
+    public boolean contains(CacheEntry key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public CacheEntry get(CacheEntry key) {
+      Stripe stripe = stripeOf(key);
+      stripe.lock.lock();
+      try {
+        return stripe.get(key);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    @Override
+    public CacheEntry put(CacheEntry entry) {
+      Stripe stripe = stripeOf(entry);
+      stripe.lock.lock();
+      try {
+        return stripe.put(entry);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    @Override
+    public CacheEntry remove(CacheEntry key) {
+      Stripe stripe = stripeOf(key);
+      stripe.lock.lock();
+      try {
+        return stripe.remove(key);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    @Override
+    public void clear() {
+      for (Stripe stripe : stripes) {
+        stripe.lock.lock();
+        try {
+          stripe.clear();
+        } finally {
+          stripe.lock.unlock();
+        }
+      }
+    }
+
+    @Override
+    public Collection<CacheEntry> values() {
+      return new AbstractCollection<CacheEntry>() {
+        @Override
+        public Iterator<CacheEntry> iterator() {
+          return StripedCacheSet.this.iterator();
+        }
+
+        @Override
+        public int size() {
+          return StripedCacheSet.this.size();
+        }
+      };
+    }
+
+    /**
+     * Like the iterators of the stripes, this one is not thread safe.  The
+     * entries kept off-heap cannot be removed through it.
+     */
+    @Override
+    public Iterator<CacheEntry> iterator() {
+      final List<Iterator<CacheEntry>> parts =
+          new ArrayList<Iterator<CacheEntry>>(stripes.length * 2);
+      for (Stripe stripe : stripes) {
+        parts.add(stripe.heap.iterator());
+        if (stripe.offHeap != null) {
+          parts.add(offHeapIterator(stripe.offHeap));
+        }
+      }
+      return new Iterator<CacheEntry>() {
+        private int part = 0;
+        private Iterator<CacheEntry> current = parts.get(0);
+
+        @Override
+        public boolean hasNext() {
+          while (!current.hasNext() && part < parts.size() - 1) {
+            current = parts.get(++part);
+          }
+          return current.hasNext();
+        }
+
+        @Override
+        public CacheEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return current.next();
+        }
+
+        @Override
+        public void remove() {
+          current.remove();
+        }
+      };
+    }
+
+    private static Iterator<CacheEntry> offHeapIterator(
+        final OffHeapRetryCacheTable table) {
+      return new Iterator<CacheEntry>() {
+        private int slot = 0;
+
+        @Override
+        public boolean hasNext() {
+          while (slot < table.capacity() && !table.isUsed(slot)) {
+            slot++;
+          }
+          return slot < table.capacity();
+        }
+
+        @Override
+        public CacheEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return offHeapEntry(table, slot++);
+        }
+      };
+    }
+  }
+
   /**
    * CacheEntry with payload that tracks the previous response or parts of
    * previous response to be used for generating response for retried requests.
@@ -181,12 +594,10 @@ public class RetryCache {
     }
   }
 
-  private final LightWeightGSet<CacheEntry, CacheEntry> set;
+  private final StripedCacheSet set;
   private final long expirationTime;
   private String cacheName;
 
-  private final ReentrantLock lock = new ReentrantLock();
-
   /**
    * Constructor
    * @param cacheName name to identify the cache by
@@ -194,10 +605,23 @@ public class RetryCache {
    * @param expirationTime time for an entry to expire in nanoseconds
    */
   public RetryCache(String cacheName, double percentage, long expirationTime) {
-    int capacity = LightWeightGSet.computeCapacity(percentage, cacheName);
-    capacity = capacity > MAX_CAPACITY ? capacity : MAX_CAPACITY;
-    this.set = new LightWeightCache<CacheEntry, CacheEntry>(capacity, capacity,
-        expirationTime, 0);
+    this(cacheName, Math.max(MAX_CAPACITY,
+        LightWeightGSet.computeCapacity(percentage, cacheName)),
+        expirationTime, false);
+  }
+
+  /**
+   * Constructor
+   * @param cacheName name to identify the cache by
+   * @param capacity maximum number of entries in the cache
+   * @param expirationTime time for an entry to expire in nanoseconds
+   * @param offHeap keep the entries that completed successfully without a
+   *                payload in direct buffers instead of the java heap
+   */
+  public RetryCache(String cacheName, int capacity, long expirationTime,
+      boolean offHeap) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    this.set = new StripedCacheSet(capacity, expirationTime, offHeap);
     this.expirationTime = expirationTime;
     this.cacheName = cacheName;
     this.retryCacheMetrics =  RetryCacheMetrics.create(this);
@@ -210,12 +634,13 @@ public class RetryCache {
         || Arrays.equals(Server.getClientId(), RpcConstants.DUMMY_CLIENT_ID);
   }
 
+  /** Lock every stripe of the cache. */
   public void lock() {
-    this.lock.lock();
+    set.lockAll();
   }
 
   public void unlock() {
-    this.lock.unlock();
+    set.unlockAll();
   }
 
   private void incrCacheClearedCounter() {
@@ -223,7 +648,7 @@ public class RetryCache {
   }
 
   @VisibleForTesting
-  public LightWeightGSet<CacheEntry, CacheEntry> getCacheSet() {
+  public GSet<CacheEntry, CacheEntry> getCacheSet() {
     return set;
   }
 
@@ -257,45 +682,22 @@ public class RetryCache {
    * @return {@link CacheEntry}.
    */
   private CacheEntry waitForCompletion(CacheEntry newEntry) {
-    CacheEntry mapEntry = null;
-    lock.lock();
-    try {
-      mapEntry = set.get(newEntry);
-      // If an entry in the cache does not exist, add a new one
-      if (mapEntry == null) {
-        if (LOG.isTraceEnabled()) {
-          LOG.trace("Adding Rpc request clientId "
-              + newEntry.clientIdMsb + newEntry.clientIdLsb + " callId "
-              + newEntry.callId + " to retryCache");
-        }
-        set.put(newEntry);
-        retryCacheMetrics.incrCacheUpdated();
-        return newEntry;
-      } else {
-        retryCacheMetrics.incrCacheHit();
-      }
-    } finally {
-      lock.unlock();
-    }
-    // Entry already exists in cache. Wait for completion and return its state
-    Preconditions.checkNotNull(mapEntry,
-        "Entry from the cache should not be null");
-    // Wait for in progress request to complete
-    synchronized (mapEntry) {
-      while (mapEntry.state == CacheEntry.INPROGRESS) {
-        try {
-          mapEntry.wait();
-        } catch (InterruptedException ie) {
-          // Restore the interrupted status
-          Thread.currentThread().interrupt();
-        }
-      }
-      // Previous request has failed, the expectation is that it will be
-      // retried again.
-      if (mapEntry.state != CacheEntry.SUCCESS) {
-        mapEntry.state = CacheEntry.INPROGRESS;
+    // If an entry in the cache does not exist, add a new one
+    CacheEntry mapEntry = set.putIfAbsent(newEntry);
+    if (mapEntry == null) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("Adding Rpc request clientId "
+            + newEntry.clientIdMsb + newEntry.clientIdLsb + " callId "
+            + newEntry.callId + " to retryCache");
       }
+      retryCacheMetrics.incrCacheUpdated();
+      return newEntry;
     }
+    retryCacheMetrics.incrCacheHit();
+    // Entry already exists in cache. Wait for in progress request to
+    // complete. If it has failed, the expectation is that it will be
+    // retried again by this thread.
+    mapEntry.awaitCompletion();
     return mapEntry;
   }
   
@@ -306,12 +708,7 @@ public class RetryCache {
   public void addCacheEntry(byte[] clientId, int callId) {
     CacheEntry newEntry = new CacheEntry(clientId, callId, System.nanoTime()
         + expirationTime, true);
-    lock.lock();
-    try {
-      set.put(newEntry);
-    } finally {
-      lock.unlock();
-    }
+    set.put(newEntry);
     retryCacheMetrics.incrCacheUpdated();
   }
   
@@ -320,12 +717,7 @@ public class RetryCache {
     // since the entry is loaded from editlog, we can assume it succeeded.    
     CacheEntry newEntry = new CacheEntryWithPayload(clientId, callId, payload,
         System.nanoTime() + expirationTime, true);
-    lock.lock();
-    try {
-      set.put(newEntry);
-    } finally {
-      lock.unlock();
-    }
+    set.put(newEntry);
     retryCacheMetrics.incrCacheUpdated();
   }
 
@@ -0,0 +1,542 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.commons.lang3.NotImplementedException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.ipc.CallQueueManager.CallQueueOverflowException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A multi-level priority queue that can replace {@link FairCallQueue} as
+ * <code>callqueue.impl</code>.  It follows the same scheduling and overflow
+ * rules, but every level is a bounded array-based ring that producers and
+ * consumers access with compare-and-set only: there is no semaphore to
+ * acquire per call and no node is allocated per call.  Only handlers that
+ * find the queue empty park, and producers only signal when one does.
+ *
+ * The queue publishes the same metrics and MXBean as FairCallQueue.
+ */
+public class RingBufferCallQueue<E extends Schedulable>
+    extends AbstractQueue<E> implements BlockingQueue<E>, CallQueueLevelStats {
+  public static final Logger LOG =
+      LoggerFactory.getLogger(RingBufferCallQueue.class);
+
+  /* The queues */
+  private final Ring<E>[] queues;
+
+  /* Handlers parked until a call is queued */
+  private final Waiters notEmpty = new Waiters();
+  /* Producers parked until a call is taken, per queue */
+  private final Waiters[] notFull;
+
+  /* Multiplexer picks which queue to draw from */
+  private RpcMultiplexer multiplexer;
+
+  /* Statistic tracking */
+  private final AtomicLong[] overflowedCalls;
+
+  /* Failover if queue is filled up */
+  private final boolean serverFailOverEnabled;
+
+  /**
+   * Create a RingBufferCallQueue.
+   * @param priorityLevels the number of priority levels
+   * @param capacity the total size of all sub-queues
+   * @param ns the prefix to use for configuration
+   * @param conf the configuration to read from
+   * Notes: sub-queues are sized like the ones of {@link FairCallQueue}.
+   */
+  @SuppressWarnings("unchecked")
+  public RingBufferCallQueue(int priorityLevels, int capacity, String ns,
+      Configuration conf) {
+    if (priorityLevels < 1) {
+      throw new IllegalArgumentException("Number of Priority Levels must be " +
+          "at least 1");
+    }
+    int numQueues = priorityLevels;
+    LOG.info("RingBufferCallQueue is in use with " + numQueues +
+        " queues with total capacity of " + capacity);
+
+    this.queues = new Ring[numQueues];
+    this.overflowedCalls = new AtomicLong[numQueues];
+    this.notFull = new Waiters[numQueues];
+    int queueCapacity = capacity / numQueues;
+    int capacityForFirstQueue = queueCapacity + (capacity % numQueues);
+    for (int i = 0; i < numQueues; i++) {
+      this.queues[i] = new Ring<E>(
+          i == 0 ? capacityForFirstQueue : queueCapacity);
+      this.overflowedCalls[i] = new AtomicLong(0);
+      this.notFull[i] = new Waiters();
+    }
+    this.serverFailOverEnabled = conf.getBoolean(
+        ns + "." +
+        CommonConfigurationKeys.IPC_CALLQUEUE_SERVER_FAILOVER_ENABLE,
+        CommonConfigurationKeys.IPC_CALLQUEUE_SERVER_FAILOVER_ENABLE_DEFAULT);
+
+    this.multiplexer = new WeightedRoundRobinMultiplexer(numQueues, ns, conf);
+    // Make this the active source of metrics
+    FairCallQueue.MetricsProxy mp = FairCallQueue.MetricsProxy.getInstance(ns);
+    mp.setDelegate(this);
+  }
+
+  /**
+   * A bounded multi-producer multi-consumer ring.  Every slot carries a
+   * sequence number telling whether it may be filled or taken at a given
+   * position, so that claiming a position with a CAS on the tail or head
+   * is all the coordination needed.
+   */
+  static final class Ring<E> {
+    private final int capacity;
+    private final AtomicReferenceArray<E> elements;
+    // pos for a slot that can be filled at pos, pos + 1 once it is filled
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(); // next position to take
+    private final AtomicLong tail = new AtomicLong(); // next position to fill
+
+    Ring(int capacity) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException(
+            "Sub-queue capacity must be positive: " + capacity);
+      }
+      this.capacity = capacity;
+      this.elements = new AtomicReferenceArray<E>(capacity);
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        sequences.set(i, i);
+      }
+    }
+
+    boolean offer(E e) {
+      long pos = tail.get();
+      while (true) {
+        int slot = (int) (pos % capacity);
+        long diff = sequences.get(slot) - pos;
+        if (diff == 0) {
+          if (tail.compareAndSet(pos, pos + 1)) {
+            elements.lazySet(slot, e);
+            // publishes the element to the consumer reading the sequence
+            sequences.set(slot, pos + 1);
+            return true;
+          }
+        } else if (diff < 0) {
+          return false; // the slot is still taken from the previous lap
+        }
+        pos = tail.get();
+      }
+    }
+
+    E poll() {
+      long pos = head.get();
+      while (true) {
+        int slot = (int) (pos % capacity);
+        long diff = sequences.get(slot) - (pos + 1);
+        if (diff == 0) {
+          if (head.compareAndSet(pos, pos + 1)) {
+            E e = elements.get(slot);
+            elements.lazySet(slot, null);
+            // free the slot for the producer of the next lap
+            sequences.set(slot, pos + capacity);
+            return e;
+          }
+        } else if (diff < 0) {
+          return null; // not filled yet
+        }
+        pos = head.get();
+      }
+    }
+
+    E peek() {
+      long pos = head.get();
+      int slot = (int) (pos % capacity);
+      return sequences.get(slot) == pos + 1 ? elements.get(slot) : null;
+    }
+
+    int size() {
+      long h = head.get();
+      long size = tail.get() - h;
+      return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int remainingCapacity() {
+      return capacity - size();
+    }
+  }
+
+  /**
+   * Threads parked on a condition of the queue.  A thread registers before
+   * it checks the queue one last time, and the other side checks for
+   * registered threads after it changed the queue, so no wakeup is lost.
+   * Nothing is done on the fast path when no thread is waiting.
+   */
+  static final class Waiters {
+    private final AtomicInteger waiting = new AtomicInteger();
+    // a wakeup may outlive the waiter it was meant for, it then makes a
+    // later waiter check the queue once more
+    private final Semaphore wakeups = new Semaphore(0);
+
+    void register() {
+      waiting.incrementAndGet();
+    }
+
+    void unregister() {
+      waiting.decrementAndGet();
+    }
+
+    /**
+     * Park until signalled.
+     * @return false if the wait timed out
+     */
+    boolean await(boolean timed, long nanos) throws InterruptedException {
+      if (timed) {
+        return wakeups.tryAcquire(nanos, TimeUnit.NANOSECONDS);
+      }
+      wakeups.acquire();
+      return true;
+    }
+
+    void signal() {
+      int n = waiting.get();
+      // no need to hand out more wakeups than there are waiters
+      if (n > 0 && wakeups.availablePermits() < n) {
+        wakeups.release();
+      }
+    }
+  }
+
+  /**
+   * Take an element from the queue of the given priority.
+   */
+  private E pollQueue(int priority) {
+    E e = queues[priority].poll();
+    if (e != null) {
+      notFull[priority].signal();
+    }
+    return e;
+  }
+
+  /**
+   * Returns an element first non-empty queue equal to the priority returned
+   * by the multiplexer or scans from highest to lowest priority queue.
+   *
+   * @return the element, or null if every queue was empty
+   */
+  private E removeNextElement() {
+    int priority = multiplexer.getAndAdvanceCurrentIndex();
+    E e = pollQueue(priority);
+    for (int idx = 0; e == null && idx < queues.length; idx++) {
+      e = pollQueue(idx);
+    }
+    return e;
+  }
+
+  /**
+   * Take an element, parking until one is queued.
+   * @param timed whether to give up after nanos
+   * @param nanos the maximum time to wait
+   * @return the element, or null if the wait timed out
+   */
+  private E awaitElement(boolean timed, long nanos)
+      throws InterruptedException {
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    while (true) {
+      E e = removeNextElement();
+      if (e != null) {
+        return e;
+      }
+      if (timed && (nanos = deadline - System.nanoTime()) <= 0) {
+        return null;
+      }
+      notEmpty.register();
+      try {
+        // a call queued before the registration was not signalled
+        e = removeNextElement();
+        if (e != null) {
+          return e;
+        }
+        if (!notEmpty.await(timed, nanos)) {
+          return removeNextElement();
+        }
+      } finally {
+        notEmpty.unregister();
+      }
+    }
+  }
+
+  /**
+   * Queue an element at the given priority, parking until there is room.
+   * @param timed whether to give up after nanos
+   * @param nanos the maximum time to wait
+   * @return boolean if added to the given queue
+   */
+  private boolean awaitSpace(int priority, E e, boolean timed, long nanos)
+      throws InterruptedException {
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    while (true) {
+      if (offerQueue(priority, e)) {
+        return true;
+      }
+      if (timed && (nanos = deadline - System.nanoTime()) <= 0) {
+        return false;
+      }
+      Waiters waiters = notFull[priority];
+      waiters.register();
+      try {
+        // a call taken before the registration was not signalled
+        if (offerQueue(priority, e)) {
+          return true;
+        }
+        if (!waiters.await(timed, nanos)) {
+          return offerQueue(priority, e);
+        }
+      } finally {
+        waiters.unregister();
+      }
+    }
+  }
+
+  /* AbstractQueue and BlockingQueue methods */
+
+  /**
+   * Add, put, and offer follow the same pattern as in FairCallQueue:
+   * 1. Get the assigned priorityLevel from the call by scheduler
+   * 2. Get the nth sub-queue matching this priorityLevel
+   * 3. delegate the call to this sub-queue.
+   *
+   * But differ in how they handle overflow:
+   * - Add will move on to the next queue, throw on last queue overflow
+   * - Put will move on to the next queue, block on last queue overflow
+   * - Offer does not attempt other queues on overflow
+   */
+
+  @Override
+  public boolean add(E e) {
+    final int priorityLevel = e.getPriorityLevel();
+    // try offering to all queues.
+    if (!offerQueues(priorityLevel, e, true)) {
+
+      CallQueueOverflowException ex;
+      if (serverFailOverEnabled) {
+        // Signal clients to failover and try a separate server.
+        ex = CallQueueOverflowException.FAILOVER;
+      } else if (priorityLevel == queues.length - 1) {
+        // only disconnect the lowest priority users that overflow the queue.
+        ex = CallQueueOverflowException.DISCONNECT;
+      } else {
+        ex = CallQueueOverflowException.KEEPALIVE;
+      }
+      throw ex;
+    }
+    return true;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    final int priorityLevel = e.getPriorityLevel();
+    // try offering to all but last queue, put on last.
+    if (!offerQueues(priorityLevel, e, false)) {
+      putQueue(queues.length - 1, e);
+    }
+  }
+
+  /**
+   * Put the element in a queue of a specific priority.
+   * @param priority - queue priority
+   * @param e - element to add
+   */
+  @VisibleForTesting
+  void putQueue(int priority, E e) throws InterruptedException {
+    awaitSpace(priority, e, false, 0L);
+  }
+
+  /**
+   * Offer the element to queue of a specific priority.
+   * @param priority - queue priority
+   * @param e - element to add
+   * @return boolean if added to the given queue
+   */
+  @VisibleForTesting
+  boolean offerQueue(int priority, E e) {
+    boolean ret = queues[priority].offer(e);
+    if (ret) {
+      notEmpty.signal();
+    }
+    return ret;
+  }
+
+  /**
+   * Offer the element to queue of the given or lower priority.
+   * @param priority - starting queue priority
+   * @param e - element to add
+   * @param includeLast - whether to attempt last queue
+   * @return boolean if added to a queue
+   */
+  private boolean offerQueues(int priority, E e, boolean includeLast) {
+    int lastPriority = queues.length - (includeLast ? 1 : 2);
+    for (int i = priority; i <= lastPriority; i++) {
+      if (offerQueue(i, e)) {
+        return true;
+      }
+      // Update stats
+      overflowedCalls[i].getAndIncrement();
+    }
+    return false;
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return awaitSpace(e.getPriorityLevel(), e, true, unit.toNanos(timeout));
+  }
+
+  @Override
+  public boolean offer(E e) {
+    return offerQueue(e.getPriorityLevel(), e);
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    return awaitElement(false, 0L);
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return awaitElement(true, unit.toNanos(timeout));
+  }
+
+  /**
+   * poll() provides no strict consistency: it is possible for poll to return
+   * null even though an element is in the queue.
+   */
+  @Override
+  public E poll() {
+    return removeNextElement();
+  }
+
+  /**
+   * Peek, like poll, provides no strict consistency.
+   */
+  @Override
+  public E peek() {
+    E e = null;
+    for (int i = 0; e == null && i < queues.length; i++) {
+      e = queues[i].peek();
+    }
+    return e;
+  }
+
+  /**
+   * Size returns the sum of all sub-queue sizes.
+   * Note: size provides no strict consistency, and should not be used to
+   * control queue IO.
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Ring<E> q : queues) {
+      size += q.size();
+    }
+    return size;
+  }
+
+  /**
+   * Iterator is not implemented, as it is not needed.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    throw new NotImplementedException("Code is not implemented");
+  }
+
+  /**
+   * drainTo takes the elements in priority order.  Like for FairCallQueue,
+   * draining into another multi-level queue may schedule the calls
+   * differently.
+   */
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int drained = 0;
+    for (int i = 0; drained < maxElements && i < queues.length; i++) {
+      E e;
+      while (drained < maxElements && (e = pollQueue(i)) != null) {
+        c.add(e);
+        drained++;
+      }
+    }
+    return drained;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns maximum remaining capacity. This does not reflect how much you can
+   * ideally fit in this queue, as that would depend on the scheduler's
+   * decisions.
+   */
+  @Override
+  public int remainingCapacity() {
+    int sum = 0;
+    for (Ring<E> q : queues) {
+      sum += q.remainingCapacity();
+    }
+    return sum;
+  }
+
+  // FairCallQueueMXBean
+  @Override
+  public int[] getQueueSizes() {
+    int numQueues = queues.length;
+    int[] sizes = new int[numQueues];
+    for (int i = 0; i < numQueues; i++) {
+      sizes[i] = queues[i].size();
+    }
+    return sizes;
+  }
+
+  @Override
+  public long[] getOverflowedCalls() {
+    int numQueues = queues.length;
+    long[] calls = new long[numQueues];
+    for (int i = 0; i < numQueues; i++) {
+      calls[i] = overflowedCalls[i].get();
+    }
+    return calls;
+  }
+
+  @VisibleForTesting
+  public void setMultiplexer(RpcMultiplexer newMux) {
+    this.multiplexer = newMux;
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A size-classed pool of {@link ByteBuffer}s shared by the IPC threads.
+ *
+ * Buffers are handed out in power-of-two capacities between
+ * {@link #MIN_BUFFER_SIZE} and the configured maximum; the limit of an
+ * acquired buffer is set to the requested length.  Requests larger than the
+ * maximum are served by a plain allocation and are never retained.  The
+ * pool keeps at most <code>maxRetainedBytes</code> of idle buffers, anything
+ * released beyond that is left to the garbage collector.
+ */
+@InterfaceAudience.Private
+public class RpcBufferPool {
+  /** Smallest size class handed out by the pool. */
+  static final int MIN_BUFFER_SIZE = 512;
+  private static final int MIN_SIZE_SHIFT =
+      Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+  private final boolean direct;
+  private final int maxBufferSize;
+  private final long maxRetainedBytes;
+  private final ConcurrentLinkedQueue<ByteBuffer>[] sizeClasses;
+
+  private final AtomicLong retainedBytes = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  RpcBufferPool(boolean direct, int maxBufferSize, long maxRetainedBytes) {
+    Preconditions.checkArgument(maxBufferSize >= MIN_BUFFER_SIZE,
+        "maxBufferSize must be at least " + MIN_BUFFER_SIZE);
+    Preconditions.checkArgument(maxRetainedBytes >= 0,
+        "maxRetainedBytes must not be negative");
+    this.direct = direct;
+    // round down so the largest size class never exceeds the configured max
+    this.maxBufferSize = Integer.highestOneBit(maxBufferSize);
+    this.maxRetainedBytes = maxRetainedBytes;
+    int numClasses = sizeClassOf(this.maxBufferSize) + 1;
+    this.sizeClasses = new ConcurrentLinkedQueue[numClasses];
+    for (int i = 0; i < numClasses; i++) {
+      sizeClasses[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  private static int sizeClassOf(int length) {
+    if (length <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    // ceil(log2(length)) relative to the smallest class
+    return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SIZE_SHIFT;
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity)
+        : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Get a cleared buffer whose limit is exactly <code>length</code>.
+   * @param length number of bytes the caller needs
+   * @return a pooled or freshly allocated buffer
+   */
+  ByteBuffer acquire(int length) {
+    if (length > maxBufferSize) {
+      misses.incrementAndGet();
+      return allocate(length);
+    }
+    int sizeClass = sizeClassOf(length);
+    ByteBuffer buf = sizeClasses[sizeClass].poll();
+    if (buf != null) {
+      retainedBytes.addAndGet(-buf.capacity());
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      buf = allocate(MIN_BUFFER_SIZE << sizeClass);
+    }
+    buf.clear();
+    buf.limit(length);
+    return buf;
+  }
+
+  /**
+   * Return a buffer obtained from {@link #acquire(int)}.  The caller must not
+   * touch the buffer, or any slice of it, afterwards.
+   * @param buf buffer to recycle, may be null
+   */
+  void release(ByteBuffer buf) {
+    if (!isRecyclable(buf)) {
+      return;
+    }
+    int capacity = buf.capacity();
+    if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+      retainedBytes.addAndGet(-capacity);
+      return;
+    }
+    sizeClasses[sizeClassOf(capacity)].offer(buf);
+  }
+
+  /**
+   * Whether {@link #release(ByteBuffer)} would take the buffer back; the
+   * contents of any other buffer stay valid after its call completes.
+   * @param buf buffer obtained from {@link #acquire(int)}
+   * @return true if the buffer is of a size class of this pool
+   */
+  boolean isRecyclable(ByteBuffer buf) {
+    if (buf == null || buf.isDirect() != direct) {
+      return false;
+    }
+    int capacity = buf.capacity();
+    // only buffers of an exact size class can be recycled
+    return capacity <= maxBufferSize && capacity >= MIN_BUFFER_SIZE
+        && Integer.bitCount(capacity) == 1;
+  }
+
+  boolean isDirect() {
+    return direct;
+  }
+
+  int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+}
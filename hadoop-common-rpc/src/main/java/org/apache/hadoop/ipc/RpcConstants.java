@@ -32,6 +32,7 @@ public class RpcConstants {
   public static final int INVALID_CALL_ID = -2;
   public static final int CONNECTION_CONTEXT_CALL_ID = -3;
   public static final int PING_CALL_ID = -4;
+  public static final int BATCH_CALL_ID = -5;
   
   public static final byte[] DUMMY_CLIENT_ID = new byte[0];
   
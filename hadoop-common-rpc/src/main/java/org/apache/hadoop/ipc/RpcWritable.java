@@ -62,6 +62,14 @@ public abstract class RpcWritable implements Writable {
   abstract void writeTo(ResponseBuffer out) throws IOException;
   abstract <T> T readFrom(ByteBuffer bb) throws IOException;
 
+  /**
+   * Let the next {@link #readFrom(ByteBuffer)} keep references into the
+   * buffer instead of copying out of it.  Only safe when the buffer is
+   * never reused.
+   */
+  void enableAliasing() {
+  }
+
   // adapter for Writables.
   static class WritableWrapper extends RpcWritable {
     private final Writable writable;
@@ -94,6 +102,7 @@ public abstract class RpcWritable implements Writable {
   // adapter for Protobufs.
   static class ProtobufWrapper extends RpcWritable {
     private Message message;
+    private boolean aliasing;
 
     ProtobufWrapper(Message message) {
       this.message = message;
@@ -103,6 +112,11 @@ public abstract class RpcWritable implements Writable {
       return message;
     }
 
+    @Override
+    void enableAliasing() {
+      aliasing = true;
+    }
+
     @Override
     void writeTo(ResponseBuffer out) throws IOException {
       int length = message.getSerializedSize();
@@ -120,6 +134,8 @@ public abstract class RpcWritable implements Writable {
       // that internally buffer.
       CodedInputStream cis = CodedInputStream.newInstance(
           bb.array(), bb.position() + bb.arrayOffset(), bb.remaining());
+      // bytes fields then wrap the backing array rather than copy it.
+      cis.enableAliasing(aliasing);
       try {
         cis.pushLimit(cis.readRawVarint32());
         message = message.getParserForType().parseFrom(cis);
@@ -137,11 +153,22 @@ public abstract class RpcWritable implements Writable {
    */
   public static class Buffer extends RpcWritable {
     private ByteBuffer bb;
+    private boolean aliasing;
 
     public static Buffer wrap(ByteBuffer bb) {
       return new Buffer(bb);
     }
 
+    /**
+     * Wrap a buffer that is never reused, so the values decoded from it
+     * may share its backing array.
+     */
+    static Buffer wrapAliased(ByteBuffer bb) {
+      Buffer buffer = new Buffer(bb);
+      buffer.aliasing = true;
+      return buffer;
+    }
+
     Buffer() {}
 
     Buffer(ByteBuffer bb) {
@@ -152,6 +179,11 @@ public abstract class RpcWritable implements Writable {
       return bb;
     }
 
+    @Override
+    void enableAliasing() {
+      aliasing = true;
+    }
+
     @Override
     void writeTo(ResponseBuffer out) throws IOException {
       out.ensureCapacity(bb.remaining());
@@ -184,7 +216,13 @@ public abstract class RpcWritable implements Writable {
     }
 
     public <T> T getValue(T value) throws IOException {
-      return RpcWritable.wrap(value).readFrom(bb);
+      RpcWritable writable = RpcWritable.wrap(value);
+      if (aliasing) {
+        // a nested buffer, like the lazily parsed protobuf request, keeps
+        // aliasing until its body is finally decoded by the handler.
+        writable.enableAliasing();
+      }
+      return writable.readFrom(bb);
     }
 
     public int remaining() {
@@ -42,6 +42,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -64,7 +65,12 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -99,6 +105,7 @@ import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto;
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto.SaslAuth;
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto.SaslState;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.net.unix.UnixDomainSockets;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.AuthMethod;
 import org.apache.hadoop.security.SaslPropertiesResolver;
@@ -315,6 +322,10 @@ public abstract class Server {
       LoggerFactory.getLogger("SecurityLogger."+Server.class.getName());
   private static final String AUTH_FAILED_FOR = "Auth failed for ";
   private static final String AUTH_SUCCESSFUL_FOR = "Auth successful for ";
+  // answer to a call the admission controller rejects; the connection stays
+  private static final RpcServerException ADMISSION_REJECTED =
+      new RpcServerException("Call rate limit exceeded",
+          new RetriableException("Call rate limit exceeded"));
   
   private static final ThreadLocal<Server> SERVER = new ThreadLocal<Server>();
 
@@ -476,10 +487,22 @@ public abstract class Server {
   };
   private int socketSendBufferSize;
   private final int maxDataLength;
+  // recycles request packet buffers, null if pooling is disabled
+  private final RpcBufferPool requestBufferPool;
+  // direct buffers for serialized responses, null if pooling is disabled
+  private final RpcBufferPool responseBufferPool;
+  // decode requests in place from packets that are not recycled
+  private final boolean requestAliasing;
+  // drop the calls and responses of clients that gave up waiting
+  private final boolean deadlineShedding;
+  // accept batch packets from clients that support them
+  private final boolean batchEnabled;
   private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
   volatile private boolean running = true;         // true while server runs
   private CallQueueManager<Call> callQueue;
+  // decides which calls may be queued, null to admit every call
+  private volatile AdmissionController admissionController;
 
   // maintains the set of client connections and handles idle timeouts
   private ConnectionManager connectionManager;
@@ -488,9 +511,36 @@ public abstract class Server {
   // arbitrary number of of auxiliary listeners. A map from
   // the port to the listener binding to it.
   private Map<Integer, Listener> auxiliaryListenerMap;
+  // listens on a UNIX domain socket for local clients, if configured
+  private Listener domainSocketListener;
   private Responder responder = null;
   private Handler[] handlers = null;
 
+  /** How the calls taken from the call queue are run. */
+  @InterfaceStability.Unstable
+  public enum HandlerMode {
+    /** Every handler thread runs the calls it takes from the queue. */
+    HANDLER_THREAD,
+    /**
+     * Handler threads hand each call to a thread of its own, so calls
+     * blocked on slow downstream I/O do not hold up the queue.  The calls in
+     * flight are bounded by a semaphore.  Virtual threads are used when the
+     * jvm supports them, otherwise a cached pool of daemon threads.
+     */
+    THREAD_PER_CALL
+  }
+
+  /**
+   * Default number of calls in flight per handler thread with
+   * {@link HandlerMode#THREAD_PER_CALL}.
+   */
+  public static final int DEFAULT_CALLS_PER_HANDLER = 16;
+
+  private HandlerMode handlerMode = HandlerMode.HANDLER_THREAD;
+  private int maxConcurrentCalls;
+  private Semaphore callPermits;
+  private Executor callExecutor;
+
   private boolean logSlowRPC = false;
 
   /**
@@ -699,6 +749,23 @@ public abstract class Server {
     return CallQueueManager.convertQueueClass(queueClass, Call.class);
   }
 
+  /**
+   * Create the admission controller configured for the prefix, or return
+   * null if there is none.
+   */
+  static AdmissionController getAdmissionController(
+      String prefix, Configuration conf) {
+    List<AdmissionController> controllers = conf.getInstances(
+        prefix + "." + CommonConfigurationKeys.IPC_ADMISSION_CONTROLLER_KEY,
+        AdmissionController.class);
+    if (controllers.isEmpty()) {
+      return null;
+    }
+    AdmissionController controller = controllers.get(0); // use the first
+    controller.init(prefix, conf);
+    return controller;
+  }
+
   static Class<? extends RpcScheduler> getSchedulerClass(
       String prefix, Configuration conf) {
     String schedulerKeyname = prefix + "." + CommonConfigurationKeys
@@ -711,8 +778,11 @@ public abstract class Server {
           .IPC_CALLQUEUE_IMPL_KEY;
       Class<?> queueClass = conf.getClass(queueKeyName, null);
       if (queueClass != null) {
-        if (queueClass.getCanonicalName().equals(
-            FairCallQueue.class.getCanonicalName())) {
+        String queueName = queueClass.getCanonicalName();
+        if (queueName.equals(FairCallQueue.class.getCanonicalName())
+            || queueName.equals(RingBufferCallQueue.class.getCanonicalName())
+            || queueName.equals(
+                PartitionedCallQueue.class.getCanonicalName())) {
           conf.setClass(schedulerKeyname, DecayRpcScheduler.class,
               RpcScheduler.class);
         }
@@ -736,6 +806,18 @@ public abstract class Server {
     callQueue.swapQueue(getSchedulerClass(prefix, conf),
         getQueueClass(prefix, conf), maxQueueSize, prefix, conf);
     callQueue.setClientBackoffEnabled(getClientBackoffEnable(prefix, conf));
+    // the controllers of a prefix share their metrics name, so the old one
+    // goes first
+    stopAdmissionController();
+    admissionController = getAdmissionController(prefix, conf);
+  }
+
+  private void stopAdmissionController() {
+    AdmissionController controller = admissionController;
+    admissionController = null;
+    if (controller != null) {
+      controller.stop();
+    }
   }
 
   /**
@@ -770,6 +852,8 @@ public abstract class Server {
     // the priority level assigned by scheduler, 0 by default
     private long clientStateId;
     private boolean isCallCoordinated;
+    // when the client gives up on the call, 0 if it did not say
+    private long deadlineNanos;
 
     Call() {
       this(RpcConstants.INVALID_CALL_ID, RpcConstants.INVALID_RETRY_COUNT,
@@ -779,6 +863,7 @@ public abstract class Server {
     Call(Call call) {
       this(call.callId, call.retryCount, call.rpcKind, call.clientId,
           call.traceScope, call.callerContext);
+      this.deadlineNanos = call.deadlineNanos;
     }
 
     Call(int id, int retryCount, RPC.RpcKind kind, byte[] clientId) {
@@ -819,6 +904,19 @@ public abstract class Server {
       return detailedMetricsName;
     }
 
+    void setDeadlineNanos(long deadlineNanos) {
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    /** @return true if the client gave up on the call before the time */
+    boolean isExpired(long nowNanos) {
+      return deadlineNanos != 0 && nowNanos - deadlineNanos > 0;
+    }
+
+    /** The call is done without a response, its client gave up on it. */
+    void dropResponse() throws IOException {
+    }
+
     void setDetailedMetricsName(String name) {
       detailedMetricsName = name;
     }
@@ -852,6 +950,11 @@ public abstract class Server {
       return null;
     }
 
+    /** @return the name of the protocol the call is for, null if unknown */
+    String getProtocolName() {
+      return null;
+    }
+
     /**
      * Allow a IPC response to be postponed instead of sent immediately
      * after the handler returns from the proxy method.  The intended use
@@ -944,6 +1047,10 @@ public abstract class Server {
     final Connection connection;  // connection to client
     final Writable rpcRequest;    // Serialized Rpc request from client
     ByteBuffer rpcResponse;       // the response for this call
+    // pooled packet buffer backing rpcRequest, returned once handled
+    private ByteBuffer requestBuffer;
+    // the batch packet the call came in, its response is sent with it
+    private ResponseBatch batch;
 
     private ResponseParams responseParams; // the response params
     private Writable rv;                   // the byte response
@@ -954,6 +1061,7 @@ public abstract class Server {
       this.rpcRequest = call.rpcRequest;
       this.rv = call.rv;
       this.responseParams = call.responseParams;
+      this.batch = call.batch;
     }
 
     RpcCall(Connection connection, int id) {
@@ -979,6 +1087,36 @@ public abstract class Server {
       return connection.channel.isOpen();
     }
 
+    /**
+     * Give the pooled packet buffer back to the request buffer pool.  The
+     * request must not be decoded again afterwards.
+     */
+    void releaseRequestBuffer() {
+      if (requestBuffer != null) {
+        requestBufferPool.release(requestBuffer);
+        requestBuffer = null;
+      }
+    }
+
+    @Override
+    void dropResponse() throws IOException {
+      ResponseBatch b = batch;
+      batch = null;
+      if (b != null) {
+        b.skip();
+      }
+      connection.decRpcCount();
+    }
+
+    /** The call was not queued, so the batch must not wait for it. */
+    void leaveBatch() {
+      if (batch != null) {
+        ResponseBatch b = batch;
+        batch = null;
+        b.remove();
+      }
+    }
+
     void setResponseFields(Writable returnValue,
                            ResponseParams responseParams) {
       this.rv = returnValue;
@@ -990,6 +1128,11 @@ public abstract class Server {
       return "rpc";
     }
 
+    @Override
+    String getProtocolName() {
+      return connection.protocolName;
+    }
+
     @Override
     public UserGroupInformation getRemoteUser() {
       return connection.user;
@@ -1077,6 +1220,12 @@ public abstract class Server {
 
     @Override
     void doResponse(Throwable t, RpcStatusProto status) throws IOException {
+      if (deadlineShedding && isExpired(Time.monotonicNowNanos())) {
+        // don't bother serializing a response nobody waits for
+        rpcMetrics.incrExpiredResponsesDropped();
+        dropResponse();
+        return;
+      }
       RpcCall call = this;
       if (t != null) {
         if (status == null) {
@@ -1177,6 +1326,67 @@ public abstract class Server {
     }
   }
 
+  /**
+   * Collects the responses of the calls that came in one batch packet, so
+   * that they are written together once the last of them is done.
+   */
+  private class ResponseBatch {
+    private List<RpcCall> responses = new ArrayList<RpcCall>();
+    // calls without a response, plus one while the packet is unpacked
+    private int pending = 1;
+
+    synchronized void add() {
+      pending++;
+    }
+
+    /** A call of the batch was not queued after all. */
+    synchronized void remove() {
+      pending--;
+    }
+
+    /**
+     * The reader is done unpacking the packet.
+     * @param flush send the responses collected so far right away, because
+     *        the connection is about to be closed
+     */
+    void unpacked(boolean flush) throws IOException {
+      done(null, flush);
+    }
+
+    void respond(RpcCall call) throws IOException {
+      done(call, false);
+    }
+
+    /** A call of the batch is done without a response. */
+    void skip() throws IOException {
+      done(null, false);
+    }
+
+    private void done(RpcCall call, boolean flush) throws IOException {
+      List<RpcCall> ready = null;
+      synchronized (this) {
+        pending--;
+        if (responses == null) {
+          // already flushed, later responses go out one by one
+          if (call != null) {
+            ready = Collections.singletonList(call);
+          }
+        } else {
+          if (call != null) {
+            responses.add(call);
+          }
+          if (pending == 0 || flush) {
+            ready = responses;
+            responses = null;
+          }
+        }
+      }
+      if (ready != null && !ready.isEmpty()) {
+        responder.doRespond(ready);
+      }
+    }
+  }
+
   /** Listens on the socket. Creates jobs for the handler threads*/
   private class Listener extends Thread {
     
@@ -1193,33 +1403,60 @@ public abstract class Server {
         CommonConfigurationKeysPublic.IPC_SERVER_REUSEADDR_KEY,
         CommonConfigurationKeysPublic.IPC_SERVER_REUSEADDR_DEFAULT);
     private boolean isOnAuxiliaryPort;
+    // the path of the UNIX domain socket, null when listening on TCP
+    private final String domainSocketPath;
 
     Listener(int port) throws IOException {
+      this(port, null);
+    }
+
+    /**
+     * @param port the port to listen on, or the port of the server when
+     *             listening on a UNIX domain socket
+     * @param domainSocketPath the path of a UNIX domain socket to listen on
+     *                         instead of the port, null for TCP
+     */
+    Listener(int port, String domainSocketPath) throws IOException {
+      this.domainSocketPath = domainSocketPath;
       address = new InetSocketAddress(bindAddress, port);
-      // Create a new server socket and set to non blocking mode
-      acceptChannel = ServerSocketChannel.open();
-      acceptChannel.configureBlocking(false);
-      acceptChannel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddr);
-
-      // Bind the server socket to the local host and port
-      bind(acceptChannel.socket(), address, backlogLength, conf, portRangeConfig);
-      //Could be an ephemeral port
-      this.listenPort = acceptChannel.socket().getLocalPort();
-      Thread.currentThread().setName("Listener at " +
-          bindAddress + "/" + this.listenPort);
+      if (domainSocketPath == null) {
+        // Create a new server socket and set to non blocking mode
+        acceptChannel = ServerSocketChannel.open();
+        acceptChannel.configureBlocking(false);
+        acceptChannel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddr);
+
+        // Bind the server socket to the local host and port
+        bind(acceptChannel.socket(), address, backlogLength, conf, portRangeConfig);
+        //Could be an ephemeral port
+        this.listenPort = acceptChannel.socket().getLocalPort();
+        Thread.currentThread().setName("Listener at " +
+            bindAddress + "/" + this.listenPort);
+      } else {
+        acceptChannel = UnixDomainSockets.bind(domainSocketPath, backlogLength);
+        try {
+          acceptChannel.configureBlocking(false);
+        } catch (IOException e) {
+          IOUtils.cleanupWithLogger(LOG, acceptChannel);
+          UnixDomainSockets.delete(domainSocketPath);
+          throw e;
+        }
+        // connections are counted against the port of the server
+        this.listenPort = port;
+      }
+      String on = domainSocketPath == null ? "port " + port : domainSocketPath;
       // create a selector;
       selector= Selector.open();
       readers = new Reader[readThreads];
       for (int i = 0; i < readThreads; i++) {
         Reader reader = new Reader(
-            "Socket Reader #" + (i + 1) + " for port " + port);
+            "Socket Reader #" + (i + 1) + " for " + on);
         readers[i] = reader;
         reader.start();
       }
 
       // Register accepts on the server socket with the selector.
       acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
-      this.setName("IPC Server listener on " + port);
+      this.setName("IPC Server listener on " + on);
       this.setDaemon(true);
       this.isOnAuxiliaryPort = false;
     }
@@ -1381,6 +1618,9 @@ public abstract class Server {
     }
 
     InetSocketAddress getAddress() {
+      if (domainSocketPath != null) {
+        return address;
+      }
       return (InetSocketAddress)acceptChannel.socket().getLocalSocketAddress();
     }
     
@@ -1390,8 +1630,10 @@ public abstract class Server {
       while ((channel = server.accept()) != null) {
 
         channel.configureBlocking(false);
-        channel.socket().setTcpNoDelay(tcpNoDelay);
-        channel.socket().setKeepAlive(true);
+        if (domainSocketPath == null) {
+          channel.socket().setTcpNoDelay(tcpNoDelay);
+          channel.socket().setKeepAlive(true);
+        }
         
         Reader reader = getReader();
         Connection c = connectionManager.register(channel,
@@ -1448,11 +1690,18 @@ public abstract class Server {
       }
       if (acceptChannel != null) {
         try {
-          acceptChannel.socket().close();
+          if (domainSocketPath == null) {
+            acceptChannel.socket().close();
+          } else {
+            acceptChannel.close();
+          }
         } catch (IOException e) {
           LOG.info(Thread.currentThread().getName() + ":Exception in closing listener socket. " + e);
         }
       }
+      if (domainSocketPath != null) {
+        UnixDomainSockets.delete(domainSocketPath);
+      }
       for (Reader r : readers) {
         r.shutdown();
       }
@@ -1470,10 +1719,24 @@ public abstract class Server {
   private final static long PURGE_INTERVAL_NANOS = TimeUnit.NANOSECONDS.convert(
       15, TimeUnit.MINUTES);
 
+  /**
+   * Maximum number of queued responses of a connection that are flushed
+   * together with a single gathering write.
+   */
+  private static final int MAX_GATHERED_RESPONSES = 64;
+
   // Sends responses of RPC back to clients.
   private class Responder extends Thread {
     private final Selector writeSelector;
     private int pending;         // connections waiting to register
+    // scratch array for gathering writes, handlers respond concurrently
+    private final ThreadLocal<ByteBuffer[]> gatherBuffers =
+        new ThreadLocal<ByteBuffer[]>() {
+          @Override
+          protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[MAX_GATHERED_RESPONSES];
+          }
+        };
 
     Responder() throws IOException {
       this.setName("IPC Server Responder");
@@ -1644,19 +1907,53 @@ public abstract class Server {
           //
           // Send as much data as we can in the non-blocking fashion
           //
-          int numBytes = channelWrite(channel, call.rpcResponse);
+          long numBytes;
+          int gathered = 1;
+          ByteBuffer head = call.rpcResponse;
+          if (numElements > 1 && (head.isDirect() || (call.batch != null
+              && head.remaining() <= NIO_BUFFER_LIMIT))) {
+            // flush the pooled direct responses, or the responses of the
+            // same batch, queued behind this one as well
+            ByteBuffer[] srcs = gatherBuffers.get();
+            srcs[0] = head;
+            int heapBytes = head.isDirect() ? 0 : head.remaining();
+            Iterator<RpcCall> iter = responseQueue.iterator();
+            while (gathered < srcs.length && iter.hasNext()) {
+              RpcCall nextCall = iter.next();
+              ByteBuffer next = nextCall.rpcResponse;
+              if (!next.isDirect()) {
+                // heap buffers are copied by the jdk, keep the copy small
+                heapBytes += next.remaining();
+                if (call.batch == null || nextCall.batch != call.batch
+                    || heapBytes > NIO_BUFFER_LIMIT) {
+                  break;
+                }
+              }
+              srcs[gathered++] = next;
+            }
+            try {
+              numBytes = channelWrite(channel, srcs, gathered);
+            } finally {
+              Arrays.fill(srcs, 0, gathered, null);
+            }
+          } else {
+            numBytes = channelWrite(channel, call.rpcResponse);
+          }
           if (numBytes < 0) {
             return true;
           }
+          // retire the gathered calls that were written out completely
+          for (int i = 1; i < gathered && !call.rpcResponse.hasRemaining();
+               i++) {
+            finishResponse(call);
+            call = responseQueue.removeFirst();
+          }
           if (!call.rpcResponse.hasRemaining()) {
             //Clear out the response buffer so it can be collected
-            call.rpcResponse = null;
-            call.connection.decRpcCount();
-            if (numElements == 1) {    // last call fully processes.
-              done = true;             // no more data for this channel.
-            } else {
-              done = false;            // more calls pending to be sent.
-            }
+            finishResponse(call);
+            // done if the last call is fully processed, else more calls
+            // are pending to be sent.
+            done = responseQueue.isEmpty();
             if (LOG.isDebugEnabled()) {
               LOG.debug(Thread.currentThread().getName() + ": responding to " + call
                   + " Wrote " + numBytes + " bytes.");
@@ -1702,10 +1999,22 @@ public abstract class Server {
       return done;
     }
 
+    private void finishResponse(RpcCall call) {
+      if (responseBufferPool != null) {
+        responseBufferPool.release(call.rpcResponse);
+      }
+      call.rpcResponse = null;
+      call.connection.decRpcCount();
+    }
+
     //
     // Enqueue a response from the application.
     //
     void doRespond(RpcCall call) throws IOException {
+      if (deadlineShedding && call.isExpired(Time.monotonicNowNanos())) {
+        dropExpiredResponse(call);
+        return;
+      }
       synchronized (call.connection.responseQueue) {
         // must only wrap before adding to the responseQueue to prevent
         // postponed responses from being encrypted and sent out of order.
@@ -1719,6 +2028,55 @@ public abstract class Server {
       }
     }
 
+    /**
+     * Enqueue the responses of a batch packet together, so that they are
+     * written with as few writes as possible.  Batching is only negotiated
+     * for connections that do not wrap their responses.
+     */
+    void doRespond(List<RpcCall> calls) throws IOException {
+      if (deadlineShedding) {
+        calls = dropExpiredResponses(calls);
+        if (calls.isEmpty()) {
+          return;
+        }
+      }
+      Connection connection = calls.get(0).connection;
+      synchronized (connection.responseQueue) {
+        boolean idle = connection.responseQueue.isEmpty();
+        connection.responseQueue.addAll(calls);
+        if (idle) {
+          processResponse(connection.responseQueue, true);
+        }
+      }
+    }
+
+    /**
+     * Drop the responses of the calls past their deadline, which may have
+     * waited for the rest of their batch.
+     * @return the responses to send
+     */
+    private List<RpcCall> dropExpiredResponses(List<RpcCall> calls) {
+      long now = Time.monotonicNowNanos();
+      List<RpcCall> live = null;
+      for (int i = 0; i < calls.size(); i++) {
+        RpcCall call = calls.get(i);
+        if (call.isExpired(now)) {
+          if (live == null) {
+            live = new ArrayList<RpcCall>(calls.subList(0, i));
+          }
+          dropExpiredResponse(call);
+        } else if (live != null) {
+          live.add(call);
+        }
+      }
+      return live != null ? live : calls;
+    }
+
+    private void dropExpiredResponse(RpcCall call) {
+      rpcMetrics.incrExpiredResponsesDropped();
+      finishResponse(call);
+    }
+
     private synchronized void incPending() {   // call waiting to be enqueued.
       pending++;
     }
@@ -1793,6 +2151,8 @@ public abstract class Server {
 
     private SocketChannel channel;
     private ByteBuffer data;
+    // pooled packet being processed, until ownership passes to an RpcCall
+    private ByteBuffer pooledRequestData;
     private final ByteBuffer dataLengthBuffer;
     private LinkedList<RpcCall> responseQueue;
     // number of outstanding rpcs
@@ -1830,6 +2190,10 @@ public abstract class Server {
 
     private boolean sentNegotiate = false;
     private boolean useWrap = false;
+    // client sends batch packets, set with the connection context
+    private volatile boolean batchSupported = false;
+    // batch packet being unpacked by the reader
+    private ResponseBatch currentBatch;
     
     public Connection(SocketChannel channel, long lastContact,
         int ingressPort, boolean isOnAuxiliaryPort) {
@@ -1842,8 +2206,14 @@ public abstract class Server {
       this.dataLengthBuffer = ByteBuffer.allocate(4);
       this.unwrappedData = null;
       this.unwrappedDataLengthBuffer = ByteBuffer.allocate(4);
-      this.socket = channel.socket();
-      this.addr = socket.getInetAddress();
+      if (UnixDomainSockets.isUnixDomain(channel)) {
+        // a local client, without an IP address or port
+        this.socket = null;
+        this.addr = InetAddress.getLoopbackAddress();
+      } else {
+        this.socket = channel.socket();
+        this.addr = socket.getInetAddress();
+      }
       this.ingressPort = ingressPort;
       this.isOnAuxiliaryPort = isOnAuxiliaryPort;
       if (addr == null) {
@@ -1851,11 +2221,12 @@ public abstract class Server {
       } else {
         this.hostAddress = addr.getHostAddress();
       }
-      this.remotePort = socket.getPort();
+      this.remotePort = socket == null ? 0 : socket.getPort();
       this.responseQueue = new LinkedList<RpcCall>();
       if (socketSendBufferSize != 0) {
         try {
-          socket.setSendBufferSize(socketSendBufferSize);
+          channel.setOption(StandardSocketOptions.SO_SNDBUF,
+              socketSendBufferSize);
         } catch (IOException e) {
           LOG.warn("Connection: unable to set socket send buffer size to " +
                    socketSendBufferSize);
@@ -1951,8 +2322,12 @@ public abstract class Server {
                 RpcErrorCodeProto.FATAL_INVALID_RPC_HEADER,
                 new SaslException("Server is not wrapping data"));
           }
+          // the token is copied out of the packet, so the packet can be
+          // recycled before the unwrapped rpcs are processed.
+          byte[] token = saslMessage.getToken().toByteArray();
+          releasePooledRequestData();
           // loops over decoded data and calls processOneRpc
-          unwrapPacketAndProcessRpcs(saslMessage.getToken().toByteArray());
+          unwrapPacketAndProcessRpcs(token);
           break;
         }
         default:
@@ -2294,7 +2669,9 @@ public abstract class Server {
           dataLength = dataLengthBuffer.getInt();
           checkDataLength(dataLength);
           // Set buffer for reading EXACTLY the RPC-packet length and no more.
-          data = ByteBuffer.allocate(dataLength);
+          data = (requestBufferPool != null)
+              ? requestBufferPool.acquire(dataLength)
+              : ByteBuffer.allocate(dataLength);
         }
         // Now read the RPC packet
         count = channelRead(channel, data);
@@ -2305,7 +2682,16 @@ public abstract class Server {
           ByteBuffer requestData = data;
           data = null; // null out in case processOneRpc throws.
           boolean isHeaderRead = connectionContextRead;
-          processOneRpc(requestData);
+          if (requestBufferPool != null
+              && requestBufferPool.isRecyclable(requestData)) {
+            pooledRequestData = requestData;
+          }
+          try {
+            processOneRpc(requestData);
+          } finally {
+            // recycle unless a queued call took ownership of the packet
+            releasePooledRequestData();
+          }
           // the last rpc-request we processed could have simply been the
           // connectionContext; if so continue to read the first RPC.
           if (!isHeaderRead) {
@@ -2317,6 +2703,23 @@ public abstract class Server {
       return -1;
     }
 
+    /**
+     * Hand the pooled packet currently being processed to the caller, who
+     * becomes responsible for releasing it.
+     * @return the pooled packet, or null if there is none
+     */
+    private ByteBuffer takePooledRequestData() {
+      ByteBuffer buf = pooledRequestData;
+      pooledRequestData = null;
+      return buf;
+    }
+
+    private void releasePooledRequestData() {
+      if (pooledRequestData != null) {
+        requestBufferPool.release(takePooledRequestData());
+      }
+    }
+
     private AuthProtocol initializeAuthContext(int authType)
         throws IOException {
       AuthProtocol authProtocol = AuthProtocol.valueOf(authType);
@@ -2469,6 +2872,9 @@ public abstract class Server {
         }
       }
       authorizeConnection();
+      // batched responses are written without wrapping, see Responder
+      batchSupported = batchEnabled && !useWrap
+          && connectionContext.getSupportsBatch();
       // don't set until after authz because connection isn't established
       connectionContextRead = true;
       if (user != null) {
@@ -2545,7 +2951,12 @@ public abstract class Server {
       int callId = -1;
       int retry = RpcConstants.INVALID_RETRY_COUNT;
       try {
-        final RpcWritable.Buffer buffer = RpcWritable.Buffer.wrap(bb);
+        // a packet going back to the pool must be copied out of, any
+        // other one is garbage once its calls are done and can be aliased
+        final RpcWritable.Buffer buffer =
+            (requestAliasing && pooledRequestData == null)
+                ? RpcWritable.Buffer.wrapAliased(bb)
+                : RpcWritable.Buffer.wrap(bb);
         final RpcRequestHeaderProto header =
             getMessage(RpcRequestHeaderProto.getDefaultInstance(), buffer);
         callId = header.getCallId();
@@ -2555,7 +2966,10 @@ public abstract class Server {
         }
         checkRpcHeaders(header);
 
-        if (callId < 0) { // callIds typically used during connection setup
+        if (header.getRpcOp() ==
+            RpcRequestHeaderProto.OperationProto.RPC_BATCH_PACKET) {
+          processRpcBatch(bb);
+        } else if (callId < 0) { // callIds typically used during connection setup
           processRpcOutOfBandRequest(header, buffer);
         } else if (!connectionContextRead) {
           throw new FatalRpcServerException(
@@ -2575,6 +2989,7 @@ public abstract class Server {
         // use the wrapped exception if there is one.
         Throwable t = (rse.getCause() != null) ? rse.getCause() : rse;
         final RpcCall call = new RpcCall(this, callId, retry);
+        joinBatch(call);
         setupResponse(call,
             rse.getRpcStatusProto(), rse.getRpcErrorCodeProto(), null,
             t.getClass().getName(),
@@ -2583,6 +2998,58 @@ public abstract class Server {
       }
     }
 
+    /**
+     * Process the calls of a batch packet as if they were read one by one.
+     * Their responses are collected by a {@link ResponseBatch} and sent
+     * together once the last call is done.
+     * @param bb - the packet, positioned after the batch header
+     * @throws RpcServerException - batching was not negotiated, the batch
+     *         is nested or the framing is invalid
+     * @throws IOException - failed to send a response back to the client
+     * @throws InterruptedException
+     */
+    private void processRpcBatch(ByteBuffer bb)
+        throws IOException, InterruptedException {
+      if (currentBatch != null) {
+        throw new FatalRpcServerException(
+            RpcErrorCodeProto.FATAL_INVALID_RPC_HEADER,
+            "Nested batch packet");
+      }
+      // the calls alias the packet and finish at different times, so it is
+      // left to the garbage collector instead of going back to the pool
+      takePooledRequestData();
+      ResponseBatch batch = new ResponseBatch();
+      currentBatch = batch;
+      int numCalls = 0;
+      try {
+        while (bb.hasRemaining() && !shouldClose()) {
+          int length = bb.remaining() >= 4 ? bb.getInt() : -1;
+          if (length < 0 || length > bb.remaining()) {
+            throw new FatalRpcServerException(
+                RpcErrorCodeProto.FATAL_INVALID_RPC_HEADER,
+                "Invalid rpc length " + length + " in batch packet");
+          }
+          ByteBuffer request = bb.slice();
+          request.limit(length);
+          bb.position(bb.position() + length);
+          numCalls++;
+          processOneRpc(request);
+        }
+      } finally {
+        currentBatch = null;
+        batch.unpacked(shouldClose());
+      }
+      rpcMetrics.addRpcBatchSize(numCalls);
+    }
+
+    /** Add a call to the batch packet being unpacked, if there is one. */
+    private void joinBatch(RpcCall call) {
+      if (currentBatch != null) {
+        call.batch = currentBatch;
+        currentBatch.add();
+      }
+    }
+
     /**
      * Verify RPC header is valid
      * @param header - RPC request header
@@ -2596,7 +3063,9 @@ public abstract class Server {
             RpcErrorCodeProto.FATAL_INVALID_RPC_HEADER, err);
       }
       if (header.getRpcOp() != 
-          RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET) {
+          RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET
+          && !(batchSupported && header.getRpcOp() ==
+              RpcRequestHeaderProto.OperationProto.RPC_BATCH_PACKET)) {
         String err = "IPC Server does not implement rpc header operation" + 
                 header.getRpcOp();
         throw new FatalRpcServerException(
@@ -2682,6 +3151,13 @@ public abstract class Server {
           header.getRetryCount(), rpcRequest,
           ProtoUtil.convert(header.getRpcKind()),
           header.getClientId().toByteArray(), traceScope, callerContext);
+      if (header.hasTimeoutMs()) {
+        call.setDeadlineNanos(call.timestampNanos
+            + TimeUnit.MILLISECONDS.toNanos(header.getTimeoutMs()));
+      }
+      // the request may alias the packet, so the call now owns it
+      call.requestBuffer = takePooledRequestData();
+      joinBatch(call);
 
       // Save the priority level assignment by the scheduler
       call.setPriorityLevel(callQueue.getPriorityLevel(call));
@@ -2714,8 +3190,12 @@ public abstract class Server {
       try {
         internalQueueCall(call);
       } catch (RpcServerException rse) {
+        call.releaseRequestBuffer();
+        call.leaveBatch();
         throw rse;
       } catch (IOException ioe) {
+        call.releaseRequestBuffer();
+        call.leaveBatch();
         throw new FatalRpcServerException(
             RpcErrorCodeProto.ERROR_RPC_SERVER, ioe);
       }
@@ -2815,7 +3295,11 @@ public abstract class Server {
     // must invoke call.sendResponse to allow lifecycle management of
     // external, postponed, deferred calls, etc.
     private void sendResponse(RpcCall call) throws IOException {
-      responder.doRespond(call);
+      if (call.batch != null) {
+        call.batch.respond(call);
+      } else {
+        responder.doRespond(call);
+      }
     }
 
     /**
@@ -2839,7 +3323,7 @@ public abstract class Server {
       data = null;
       if (!channel.isOpen())
         return;
-      try {socket.shutdownOutput();} catch(Exception e) {
+      try {channel.shutdownOutput();} catch(Exception e) {
         LOG.debug("Ignoring socket shutdown exception", e);
       }
       if (channel.isOpen()) {
@@ -2860,6 +3344,13 @@ public abstract class Server {
 
   private void internalQueueCall(Call call)
       throws IOException, InterruptedException {
+    // requeued calls were admitted already
+    AdmissionController controller = admissionController;
+    if (controller != null && !controller.admit(call, call.getProtocolName())) {
+      // like a full queue, ask the client to back off and retry
+      rpcMetrics.incrClientBackoff();
+      throw ADMISSION_REJECTED;
+    }
     internalQueueCall(call, true);
   }
 
@@ -2901,81 +3392,141 @@ public abstract class Server {
       LOG.debug(Thread.currentThread().getName() + ": starting");
       SERVER.set(Server.this);
       while (running) {
-        TraceScope traceScope = null;
-        Call call = null;
-        long startTimeNanos = 0;
-        // True iff the connection for this call has been dropped.
-        // Set to true by default and update to false later if the connection
-        // can be succesfully read.
-        boolean connDropped = true;
-
+        final boolean perCall = handlerMode == HandlerMode.THREAD_PER_CALL;
+        final Call call;
         try {
-          call = callQueue.take(); // pop the queue; maybe blocked here
-          startTimeNanos = Time.monotonicNowNanos();
-          if (alignmentContext != null && call.isCallCoordinated() &&
-              call.getClientStateId() > alignmentContext.getLastSeenStateId()) {
-            /*
-             * The call processing should be postponed until the client call's
-             * state id is aligned (<=) with the server state id.
-
-             * NOTE:
-             * Inserting the call back to the queue can change the order of call
-             * execution comparing to their original placement into the queue.
-             * This is not a problem, because Hadoop RPC does not have any
-             * constraints on ordering the incoming rpc requests.
-             * In case of Observer, it handles only reads, which are
-             * commutative.
-             */
-            // Re-queue the call and continue
-            requeueCall(call);
-            continue;
-          }
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(Thread.currentThread().getName() + ": " + call + " for RpcKind " + call.rpcKind);
+          if (perCall) {
+            // bound the calls in flight before taking another one
+            callPermits.acquire();
           }
-          CurCall.set(call);
-          if (call.traceScope != null) {
-            call.traceScope.reattach();
-            traceScope = call.traceScope;
-            traceScope.getSpan().addTimelineAnnotation("called");
-          }
-          // always update the current call context
-          CallerContext.setCurrent(call.callerContext);
-          UserGroupInformation remoteUser = call.getRemoteUser();
-          connDropped = !call.isOpen();
-          if (remoteUser != null) {
-            remoteUser.doAs(call);
-          } else {
-            call.run();
+          try {
+            call = callQueue.take(); // pop the queue; maybe blocked here
+          } catch (InterruptedException e) {
+            if (perCall) {
+              callPermits.release();
+            }
+            throw e;
           }
         } catch (InterruptedException e) {
           if (running) {                          // unexpected -- log it
             LOG.info(Thread.currentThread().getName() + " unexpectedly interrupted", e);
-            if (traceScope != null) {
-              traceScope.getSpan().addTimelineAnnotation("unexpectedly interrupted: " +
-                  StringUtils.stringifyException(e));
-            }
           }
-        } catch (Exception e) {
-          LOG.info(Thread.currentThread().getName() + " caught an exception", e);
+          continue;
+        }
+        final long startTimeNanos = Time.monotonicNowNanos();
+        if (!perCall) {
+          processCall(call, startTimeNanos);
+          continue;
+        }
+        try {
+          callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              SERVER.set(Server.this);
+              try {
+                processCall(call, startTimeNanos);
+              } finally {
+                SERVER.remove();
+                callPermits.release();
+              }
+            }
+          });
+        } catch (Throwable t) {
+          callPermits.release();
+          LOG.warn(Thread.currentThread().getName() +
+              " failed to dispatch " + call + ", running it inline", t);
+          processCall(call, startTimeNanos);
+        }
+      }
+      LOG.debug(Thread.currentThread().getName() + ": exiting");
+    }
+
+    /**
+     * Run a dequeued call in the current thread, which is either this
+     * handler or a per-call thread it dispatched to.
+     * @param call the call taken from the call queue
+     * @param startTimeNanos when the call was taken from the queue
+     */
+    private void processCall(Call call, long startTimeNanos) {
+      TraceScope traceScope = null;
+      // True iff the connection for this call has been dropped.
+      // Set to true by default and update to false later if the connection
+      // can be succesfully read.
+      boolean connDropped = true;
+      // True iff the call was put back into the queue for later.
+      boolean requeued = false;
+
+      try {
+        if (deadlineShedding && call.isExpired(startTimeNanos)) {
+          // the client gave up while the call was queued
+          rpcMetrics.incrExpiredCallsDropped();
+          call.dropResponse();
+          return;
+        }
+        if (alignmentContext != null && call.isCallCoordinated() &&
+            call.getClientStateId() > alignmentContext.getLastSeenStateId()) {
+          /*
+           * The call processing should be postponed until the client call's
+           * state id is aligned (<=) with the server state id.
+
+           * NOTE:
+           * Inserting the call back to the queue can change the order of call
+           * execution comparing to their original placement into the queue.
+           * This is not a problem, because Hadoop RPC does not have any
+           * constraints on ordering the incoming rpc requests.
+           * In case of Observer, it handles only reads, which are
+           * commutative.
+           */
+          // Re-queue the call and continue
+          requeued = true;
+          requeueCall(call);
+          return;
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(Thread.currentThread().getName() + ": " + call + " for RpcKind " + call.rpcKind);
+        }
+        CurCall.set(call);
+        if (call.traceScope != null) {
+          call.traceScope.reattach();
+          traceScope = call.traceScope;
+          traceScope.getSpan().addTimelineAnnotation("called");
+        }
+        // always update the current call context
+        CallerContext.setCurrent(call.callerContext);
+        UserGroupInformation remoteUser = call.getRemoteUser();
+        connDropped = !call.isOpen();
+        if (remoteUser != null) {
+          remoteUser.doAs(call);
+        } else {
+          call.run();
+        }
+      } catch (InterruptedException e) {
+        if (running) {                          // unexpected -- log it
+          LOG.info(Thread.currentThread().getName() + " unexpectedly interrupted", e);
           if (traceScope != null) {
-            traceScope.getSpan().addTimelineAnnotation("Exception: " +
+            traceScope.getSpan().addTimelineAnnotation("unexpectedly interrupted: " +
                 StringUtils.stringifyException(e));
           }
-        } finally {
-          CurCall.set(null);
-          IOUtils.cleanupWithLogger(LOG, traceScope);
-          if (call != null) {
-            updateMetrics(call, startTimeNanos, connDropped);
-            ProcessingDetails.LOG.debug(
-                "Served: [{}]{} name={} user={} details={}",
-                call, (call.isResponseDeferred() ? ", deferred" : ""),
-                call.getDetailedMetricsName(), call.getRemoteUser(),
-                call.getProcessingDetails());
-          }
+        }
+      } catch (Exception e) {
+        LOG.info(Thread.currentThread().getName() + " caught an exception", e);
+        if (traceScope != null) {
+          traceScope.getSpan().addTimelineAnnotation("Exception: " +
+              StringUtils.stringifyException(e));
+        }
+      } finally {
+        CurCall.set(null);
+        IOUtils.cleanupWithLogger(LOG, traceScope);
+        updateMetrics(call, startTimeNanos, connDropped);
+        ProcessingDetails.LOG.debug(
+            "Served: [{}]{} name={} user={} details={}",
+            call, (call.isResponseDeferred() ? ", deferred" : ""),
+            call.getDetailedMetricsName(), call.getRemoteUser(),
+            call.getProcessingDetails());
+        if (!requeued && call instanceof RpcCall) {
+          ((RpcCall) call).releaseRequestBuffer();
         }
       }
-      LOG.debug(Thread.currentThread().getName() + ": exiting");
     }
 
     private void requeueCall(Call call)
@@ -3058,6 +3609,39 @@ public abstract class Server {
     this.auxiliaryListenerMap = null;
     this.maxDataLength = conf.getInt(CommonConfigurationKeys.IPC_MAXIMUM_DATA_LENGTH,
         CommonConfigurationKeys.IPC_MAXIMUM_DATA_LENGTH_DEFAULT);
+    if (conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_ENABLED_DEFAULT)) {
+      this.requestBufferPool = new RpcBufferPool(false, conf.getInt(
+          CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_MAX_BUFFER_SIZE_KEY,
+          CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT),
+          conf.getLong(
+          CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_MAX_RETAINED_KEY,
+          CommonConfigurationKeys.IPC_SERVER_REQUEST_BUFFER_POOL_MAX_RETAINED_DEFAULT));
+    } else {
+      this.requestBufferPool = null;
+    }
+    if (conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_ENABLED_DEFAULT)) {
+      this.responseBufferPool = new RpcBufferPool(true, conf.getInt(
+          CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_BUFFER_SIZE_KEY,
+          CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT),
+          conf.getLong(
+          CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_RETAINED_KEY,
+          CommonConfigurationKeys.IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_RETAINED_DEFAULT));
+    } else {
+      this.responseBufferPool = null;
+    }
+    this.requestAliasing = conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_REQUEST_ALIASING_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_SERVER_REQUEST_ALIASING_ENABLED_DEFAULT);
+    this.deadlineShedding = conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_DEADLINE_SHEDDING_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_SERVER_DEADLINE_SHEDDING_ENABLED_DEFAULT);
+    this.batchEnabled = conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_BATCH_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_SERVER_BATCH_ENABLED_DEFAULT);
     if (queueSizePerHandler != -1) {
       this.maxQueueSize = handlerCount * queueSizePerHandler;
     } else {
@@ -3084,6 +3668,7 @@ public abstract class Server {
     this.callQueue = new CallQueueManager<Call>(getQueueClass(prefix, conf),
         getSchedulerClass(prefix, conf),
         getClientBackoffEnable(prefix, conf), maxQueueSize, prefix, conf);
+    this.admissionController = getAdmissionController(prefix, conf);
 
     this.secretManager = (SecretManager<TokenIdentifier>) secretManager;
     this.authorize = 
@@ -3098,6 +3683,30 @@ public abstract class Server {
     listener = new Listener(port);
     // set the server port to the default listener port.
     this.port = listener.getAddress().getPort();
+    String domainSocketPath = UnixDomainSockets.getPath(conf.getTrimmed(
+        CommonConfigurationKeysPublic.IPC_UNIX_DOMAIN_SOCKET_ADDRESS_KEY,
+        CommonConfigurationKeysPublic.IPC_UNIX_DOMAIN_SOCKET_ADDRESS_DEFAULT),
+        this.port);
+    if (domainSocketPath != null) {
+      if (!listener.getAddress().getAddress().isAnyLocalAddress()) {
+        // the path only names the port, and servers bound to other
+        // addresses of this host may share it
+        LOG.warn("Not listening on " + domainSocketPath + ": the server is "
+            + "bound to " + bindAddress + ", not to the wildcard address");
+      } else if (UnixDomainSockets.isSupported()) {
+        // the TCP listener is bound already, so stay on TCP only rather than
+        // leak it when the socket cannot be bound
+        try {
+          domainSocketListener = new Listener(this.port, domainSocketPath);
+          LOG.info("Adding a server listener on " + domainSocketPath);
+        } catch (IOException e) {
+          LOG.warn("Not listening on " + domainSocketPath, e);
+        }
+      } else {
+        LOG.warn("Not listening on " + domainSocketPath + ": " +
+            UnixDomainSockets.getLoadingFailureReason());
+      }
+    }
     connectionManager = new ConnectionManager();
     this.rpcMetrics = RpcMetrics.create(this, conf);
     this.rpcDetailedMetrics = RpcDetailedMetrics.create(this.port);
@@ -3219,6 +3828,9 @@ public abstract class Server {
     headerBuilder.setRetryCount(call.retryCount);
     headerBuilder.setStatus(status);
     headerBuilder.setServerIpcVersionNum(CURRENT_VERSION);
+    if (call.connection.batchSupported) {
+      headerBuilder.setSupportsBatch(true);
+    }
     if (alignmentContext != null) {
       alignmentContext.updateResponseState(headerBuilder);
     }
@@ -3248,17 +3860,22 @@ public abstract class Server {
 
   private void setupResponse(RpcCall call,
       RpcResponseHeaderProto header, Writable rv) throws IOException {
-    final byte[] response;
+    ByteBuffer response = null;
     if (rv == null || (rv instanceof RpcWritable.ProtobufWrapper)) {
-      response = setupResponseForProtobuf(header, rv);
+      if (responseBufferPool != null) {
+        response = setupDirectResponseForProtobuf(header, rv);
+      }
+      if (response == null) {
+        response = ByteBuffer.wrap(setupResponseForProtobuf(header, rv));
+      }
     } else {
-      response = setupResponseForWritable(header, rv);
+      response = ByteBuffer.wrap(setupResponseForWritable(header, rv));
     }
-    if (response.length > maxRespSize) {
-      LOG.warn("Large response size " + response.length + " for call "
+    if (response.remaining() > maxRespSize) {
+      LOG.warn("Large response size " + response.remaining() + " for call "
           + call.toString());
     }
-    call.setResponse(ByteBuffer.wrap(response));
+    call.setResponse(response);
   }
 
   private byte[] setupResponseForWritable(
@@ -3306,6 +3923,45 @@ public abstract class Server {
     return buf;
   }
 
+  /**
+   * Serialize a protobuf response straight into a pooled direct buffer, so
+   * the responder can hand it to the socket without another copy.
+   * @return the framed response, or null if it is too large to be pooled
+   */
+  private ByteBuffer setupDirectResponseForProtobuf(
+      RpcResponseHeaderProto header, Writable rv) throws IOException {
+    Message payload = (rv != null)
+        ? ((RpcWritable.ProtobufWrapper)rv).getMessage() : null;
+    int length = getDelimitedLength(header);
+    if (payload != null) {
+      length += getDelimitedLength(payload);
+    }
+    if (length + 4 > responseBufferPool.getMaxBufferSize()) {
+      return null;
+    }
+    ByteBuffer buf = responseBufferPool.acquire(length + 4);
+    boolean success = false;
+    try {
+      buf.putInt(length);
+      CodedOutputStream cos = CodedOutputStream.newInstance(buf);
+      cos.writeUInt32NoTag(header.getSerializedSize());
+      header.writeTo(cos);
+      if (payload != null) {
+        cos.writeUInt32NoTag(payload.getSerializedSize());
+        payload.writeTo(cos);
+      }
+      // advances the position of buf over the bytes written
+      cos.flush();
+      buf.flip();
+      success = true;
+      return buf;
+    } finally {
+      if (!success) {
+        responseBufferPool.release(buf);
+      }
+    }
+  }
+
   private static int getDelimitedLength(Message message) {
     int length = message.getSerializedSize();
     return length + CodedOutputStream.computeUInt32SizeNoTag(length);
@@ -3340,7 +3996,16 @@ public abstract class Server {
 
   private void wrapWithSasl(RpcCall call) throws IOException {
     if (call.connection.saslServer != null) {
-      byte[] token = call.rpcResponse.array();
+      ByteBuffer response = call.rpcResponse;
+      byte[] token;
+      if (response.hasArray()) {
+        token = response.array();
+      } else {
+        // pooled direct response, copy it out and recycle the buffer
+        token = new byte[response.remaining()];
+        response.get(token);
+        responseBufferPool.release(response);
+      }
       // synchronization may be needed since there can be multiple Handler
       // threads using saslServer to wrap responses.
       synchronized (call.connection.saslServer) {
@@ -3373,8 +4038,71 @@ public abstract class Server {
     this.tracer = t;
   }
 
+  /**
+   * Select how the calls taken from the call queue are run.  Must be called
+   * before {@link #start()}.
+   * @param mode the handler mode
+   * @param maxCalls the maximum number of calls in flight with
+   *                 {@link HandlerMode#THREAD_PER_CALL}, a value &lt;= 0
+   *                 selects {@link #DEFAULT_CALLS_PER_HANDLER} per handler
+   */
+  public synchronized void setHandlerMode(HandlerMode mode, int maxCalls) {
+    if (handlers != null) {
+      throw new IllegalStateException(
+          "Handler mode must be set before the server is started");
+    }
+    this.handlerMode = mode;
+    this.maxConcurrentCalls = (maxCalls > 0)
+        ? maxCalls : handlerCount * DEFAULT_CALLS_PER_HANDLER;
+  }
+
+  public HandlerMode getHandlerMode() {
+    return handlerMode;
+  }
+
+  /**
+   * Create the executor that runs every call on a thread of its own.
+   * Virtual threads are looked up reflectively so the server still runs on
+   * jvms without them.
+   */
+  private Executor createCallExecutor() {
+    final String prefix = "IPC Server call on default port " + port;
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, prefix + " #", 0L);
+      final ThreadFactory factory = (ThreadFactory)
+          builderClass.getMethod("factory").invoke(builder);
+      LOG.info("Running calls on virtual threads, at most "
+          + maxConcurrentCalls + " at a time");
+      return new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          factory.newThread(command).start();
+        }
+      };
+    } catch (ReflectiveOperationException e) {
+      LOG.info("Virtual threads are not supported, running calls on pooled"
+          + " daemon threads, at most " + maxConcurrentCalls + " at a time");
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + " #" + threadCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
   /** Starts the service.  Must be called before any calls will be handled. */
   public synchronized void start() {
+    if (handlerMode == HandlerMode.THREAD_PER_CALL) {
+      callPermits = new Semaphore(maxConcurrentCalls);
+      callExecutor = createCallExecutor();
+    }
     responder.start();
     listener.start();
     if (auxiliaryListenerMap != null && auxiliaryListenerMap.size() > 0) {
@@ -3382,6 +4110,9 @@ public abstract class Server {
         newListener.start();
       }
     }
+    if (domainSocketListener != null) {
+      domainSocketListener.start();
+    }
 
     handlers = new Handler[handlerCount];
     
@@ -3410,8 +4141,16 @@ public abstract class Server {
         newListener.doStop();
       }
     }
+    if (domainSocketListener != null) {
+      domainSocketListener.interrupt();
+      domainSocketListener.doStop();
+    }
     responder.interrupt();
+    if (callExecutor instanceof ExecutorService) {
+      ((ExecutorService) callExecutor).shutdown();
+    }
     notifyAll();
+    stopAdmissionController();
     this.rpcMetrics.shutdown();
     this.rpcDetailedMetrics.shutdown();
   }
@@ -3451,6 +4190,16 @@ public abstract class Server {
     return allAddrs;
   }
   
+  /**
+   * Return the path of the UNIX domain socket the RPC server is listening
+   * on for local clients.
+   * @return the path, null if the server listens on TCP only
+   */
+  public synchronized String getDomainSocketPath() {
+    return domainSocketListener == null ? null :
+        domainSocketListener.domainSocketPath;
+  }
+
   /** 
    * Called for each call. 
    * @deprecated Use  {@link #call(RPC.RpcKind, String,
@@ -3555,6 +4304,31 @@ public abstract class Server {
     return maxQueueSize;
   }
 
+  /**
+   * The number of request buffers served from the request buffer pool.
+   * @return the number of pool hits, 0 if pooling is disabled.
+   */
+  public long getRequestBufferPoolHits() {
+    return (requestBufferPool != null) ? requestBufferPool.getHits() : 0;
+  }
+
+  /**
+   * The number of request buffers that had to be freshly allocated.
+   * @return the number of pool misses, 0 if pooling is disabled.
+   */
+  public long getRequestBufferPoolMisses() {
+    return (requestBufferPool != null) ? requestBufferPool.getMisses() : 0;
+  }
+
+  /**
+   * The number of bytes held by idle buffers in the request buffer pool.
+   * @return the retained bytes, 0 if pooling is disabled.
+   */
+  public long getRequestBufferPoolRetainedBytes() {
+    return (requestBufferPool != null)
+        ? requestBufferPool.getRetainedBytes() : 0;
+  }
+
   /**
    * The number of reader threads for this server.
    * @return The number of reader threads.
@@ -3592,6 +4366,26 @@ public abstract class Server {
   }
   
   
+  /**
+   * This is a wrapper around
+   * {@link GatheringByteChannel#write(ByteBuffer[], int, int)} used to flush
+   * several queued responses with one system call.  Direct buffers are not
+   * copied by the jdk and the heap buffers of a batch are kept below
+   * NIO_BUFFER_LIMIT in total, so no chunking is needed.
+   *
+   * @see GatheringByteChannel#write(ByteBuffer[], int, int)
+   */
+  private long channelWrite(GatheringByteChannel channel,
+                            ByteBuffer[] buffers, int length)
+                            throws IOException {
+    long count = channel.write(buffers, 0, length);
+    if (count > 0) {
+      // bounded by MAX_GATHERED_RESPONSES pooled buffers
+      rpcMetrics.incrSentBytes((int) count);
+    }
+    return count;
+  }
+
   /**
    * This is a wrapper around {@link ReadableByteChannel#read(ByteBuffer)}.
    * If the amount of data is large, it writes to channel in smaller chunks. 
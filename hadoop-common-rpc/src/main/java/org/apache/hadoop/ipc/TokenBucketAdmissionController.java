@@ -0,0 +1,445 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.metrics2.util.Metrics2Util.NameValuePair;
+import org.apache.hadoop.metrics2.util.Metrics2Util.TopN;
+import org.apache.hadoop.util.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An {@link AdmissionController} that limits the rate of calls with token
+ * buckets on three levels: one bucket per caller identity, one per protocol
+ * and one for the whole server. A call takes a token from each level, the
+ * most specific first, and is rejected as soon as a level has none left; the
+ * tokens it took from the levels below are given back. A single abusive
+ * caller thus runs dry on its own bucket without draining the shared ones.
+ *
+ * <p/>Identities are made by the {@link IdentityProvider} configured for the
+ * namespace, the same one the {@link DecayRpcScheduler} uses. Rates are in
+ * calls per second and a burst is the number of calls a full bucket admits
+ * at once, by default one second worth of calls. A rate of 0 or less leaves
+ * a level unlimited. Every key uses the {@link #CONFIG_PREFIX}, prefixed
+ * with the IPC namespace, and single identities and protocols may be given
+ * their own limits. For example:
+ * <pre>
+ *   ipc.8020.admission-controller.impl=org.apache.hadoop.ipc.TokenBucketAdmissionController
+ *   ipc.8020.admission.user.rate=500
+ *   ipc.8020.admission.user.burst=1000
+ *   ipc.8020.admission.user.rate.etl=2000
+ *   ipc.8020.admission.protocol.rate.org.apache.hadoop.hdfs.protocol.ClientProtocol=20000
+ *   ipc.8020.admission.global.rate=50000
+ * </pre>
+ *
+ * <p/>Each bucket is a single timestamp, the time at which it would be full
+ * again, advanced by compare and set, so taking a token takes no lock. A
+ * full bucket is indistinguishable from a new one, so the buckets of idle
+ * identities and protocols are dropped once there are more than
+ * {@link #MAX_USERS_KEY} or {@link #MAX_PROTOCOLS_KEY}; while every bucket
+ * is in use, the calls of new identities or protocols share one overflow
+ * bucket. The admitted and rejected calls of every protocol bucket, of the
+ * identities with the most rejected calls and of each level are published
+ * as metrics.
+ */
+public class TokenBucketAdmissionController
+    implements AdmissionController, MetricsSource {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(TokenBucketAdmissionController.class);
+
+  /**
+   * The prefix used in configuration values of this controller. See the
+   * class Javadoc for more info.
+   */
+  public static final String CONFIG_PREFIX = ".admission.";
+  public static final String USER_RATE_KEY = "user.rate";
+  public static final String USER_BURST_KEY = "user.burst";
+  public static final String PROTOCOL_RATE_KEY = "protocol.rate";
+  public static final String PROTOCOL_BURST_KEY = "protocol.burst";
+  public static final String GLOBAL_RATE_KEY = "global.rate";
+  public static final String GLOBAL_BURST_KEY = "global.burst";
+  public static final String MAX_USERS_KEY = "max-users";
+  static final int DEFAULT_MAX_USERS = 10000;
+  public static final String MAX_PROTOCOLS_KEY = "max-protocols";
+  static final int DEFAULT_MAX_PROTOCOLS = 64;
+  public static final String TOP_USER_COUNT_KEY = "metrics.top-user-count";
+  static final int DEFAULT_TOP_USER_COUNT = 10;
+
+  // name of the bucket shared by the callers beyond the bound
+  static final String OVERFLOW = "Overflow";
+  // sweeps for idle buckets are at least this far apart
+  private static final long SWEEP_INTERVAL_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(100);
+
+  /** The refill interval and the capacity of a bucket. */
+  static final class Limit {
+    static final Limit UNLIMITED = new Limit(0, 0);
+
+    // nanoseconds to refill one token, 0 if unlimited
+    private final long intervalNanos;
+    // nanoseconds to refill the bucket from empty
+    private final long capacityNanos;
+
+    private Limit(long intervalNanos, long capacityNanos) {
+      this.intervalNanos = intervalNanos;
+      this.capacityNanos = capacityNanos;
+    }
+
+    static Limit of(double rate, double burst) {
+      long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate)
+          : 0;
+      if (interval <= 0) {
+        return UNLIMITED;
+      }
+      return new Limit(interval, (long) (interval * Math.max(1, burst)));
+    }
+
+    boolean isUnlimited() {
+      return intervalNanos == 0;
+    }
+  }
+
+  /**
+   * A token bucket, kept as the time at which it is full again. Taking a
+   * token moves that time one interval ahead, which is only allowed while it
+   * stays within the capacity from now.
+   */
+  static final class Bucket {
+    private final Limit limit;
+    private final AtomicLong fullAt;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    Bucket(Limit limit, long now) {
+      this.limit = limit;
+      this.fullAt = new AtomicLong(now);
+    }
+
+    boolean tryAcquire(long now) {
+      if (limit.isUnlimited()) {
+        return true;
+      }
+      for (;;) {
+        long current = fullAt.get();
+        long next = (current - now > 0 ? current : now) + limit.intervalNanos;
+        if (next - now > limit.capacityNanos) {
+          return false;
+        }
+        if (fullAt.compareAndSet(current, next)) {
+          return true;
+        }
+      }
+    }
+
+    /** Give back a token taken by {@link #tryAcquire(long)}. */
+    void release() {
+      if (!limit.isUnlimited()) {
+        fullAt.addAndGet(-limit.intervalNanos);
+      }
+    }
+
+    boolean isFull(long now) {
+      return fullAt.get() - now <= 0;
+    }
+
+    long getAdmitted() {
+      return admitted.get();
+    }
+
+    long getRejected() {
+      return rejected.get();
+    }
+  }
+
+  /** The buckets of one level, bounded in number. */
+  static final class Level {
+    private final String name;
+    private final Limit defaultLimit;
+    private final Map<String, Limit> limits;
+    private final int maxBuckets;
+    private final ConcurrentHashMap<String, Bucket> buckets =
+        new ConcurrentHashMap<String, Bucket>();
+    private final Bucket overflow;
+    private final AtomicLong nextSweep;
+    // calls of every bucket of the level, including the dropped ones
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    Level(String name, Limit defaultLimit, Map<String, Limit> limits,
+        int maxBuckets, long now) {
+      this.name = name;
+      this.defaultLimit = defaultLimit;
+      this.limits = limits;
+      this.maxBuckets = maxBuckets;
+      this.overflow = new Bucket(defaultLimit, now);
+      this.nextSweep = new AtomicLong(now);
+    }
+
+    /** A level is only checked when some bucket on it has a limit. */
+    boolean isLimited() {
+      return !defaultLimit.isUnlimited() || !limits.isEmpty();
+    }
+
+    Bucket get(String key, long now) {
+      Bucket bucket = buckets.get(key);
+      if (bucket != null) {
+        return bucket;
+      }
+      if (buckets.size() >= maxBuckets) {
+        sweep(now);
+        if (buckets.size() >= maxBuckets) {
+          return overflow;
+        }
+      }
+      Limit limit = limits.get(key);
+      final Limit bucketLimit = limit != null ? limit : defaultLimit;
+      return buckets.computeIfAbsent(key, k -> new Bucket(bucketLimit, now));
+    }
+
+    /**
+     * Drop the full buckets. A call that got hold of a bucket just before it
+     * is dropped may still take a token from it, which the next bucket of
+     * the key does not know about; a caller gains at most one call that way.
+     */
+    private void sweep(long now) {
+      long next = nextSweep.get();
+      if (now - next < 0
+          || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_NANOS)) {
+        return;
+      }
+      buckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    void admitted(Bucket bucket) {
+      bucket.admitted.incrementAndGet();
+      admitted.increment();
+    }
+
+    void rejected(Bucket bucket) {
+      bucket.rejected.incrementAndGet();
+      rejected.increment();
+    }
+
+    int size() {
+      return buckets.size();
+    }
+  }
+
+  private String namespace;
+  private String metricsName;
+  private IdentityProvider identityProvider;
+  private Level users;
+  private Level protocols;
+  private Level global;
+  private int topUsersCount;
+
+  @Override
+  public void init(String ns, Configuration conf) {
+    this.namespace = ns;
+    String prefix = ns + CONFIG_PREFIX;
+    long now = Time.monotonicNowNanos();
+    this.identityProvider = parseIdentityProvider(ns, conf);
+
+    int maxUsers = conf.getInt(prefix + MAX_USERS_KEY, DEFAULT_MAX_USERS);
+    Preconditions.checkArgument(maxUsers > 0,
+        "%s%s must be positive", prefix, MAX_USERS_KEY);
+    int maxProtocols = conf.getInt(prefix + MAX_PROTOCOLS_KEY,
+        DEFAULT_MAX_PROTOCOLS);
+    Preconditions.checkArgument(maxProtocols > 0,
+        "%s%s must be positive", prefix, MAX_PROTOCOLS_KEY);
+    topUsersCount = conf.getInt(prefix + TOP_USER_COUNT_KEY,
+        DEFAULT_TOP_USER_COUNT);
+    Preconditions.checkArgument(topUsersCount > 0,
+        "%s%s must be positive", prefix, TOP_USER_COUNT_KEY);
+
+    users = new Level("User", parseLimit(conf, prefix, USER_RATE_KEY,
+        USER_BURST_KEY), parseLimits(conf, prefix, USER_RATE_KEY,
+        USER_BURST_KEY), maxUsers, now);
+    protocols = new Level("Protocol", parseLimit(conf, prefix,
+        PROTOCOL_RATE_KEY, PROTOCOL_BURST_KEY), parseLimits(conf, prefix,
+        PROTOCOL_RATE_KEY, PROTOCOL_BURST_KEY), maxProtocols, now);
+    global = new Level("Global", parseLimit(conf, prefix, GLOBAL_RATE_KEY,
+        GLOBAL_BURST_KEY), new HashMap<String, Limit>(), 1, now);
+
+    metricsName = "TokenBucketAdmissionController." + ns;
+    DefaultMetricsSystem.instance().register(metricsName, metricsName, this);
+    LOG.info("Admission control for {}: {} per user, {} per protocol and {}"
+            + " in total", ns, describe(conf, prefix, USER_RATE_KEY),
+        describe(conf, prefix, PROTOCOL_RATE_KEY),
+        describe(conf, prefix, GLOBAL_RATE_KEY));
+  }
+
+  private static IdentityProvider parseIdentityProvider(String ns,
+      Configuration conf) {
+    List<IdentityProvider> providers = conf.getInstances(
+        ns + "." + CommonConfigurationKeys.IPC_IDENTITY_PROVIDER_KEY,
+        IdentityProvider.class);
+    if (providers.size() < 1) {
+      return new UserIdentityProvider();
+    }
+    return providers.get(0); // use the first
+  }
+
+  private static Limit parseLimit(Configuration conf, String prefix,
+      String rateKey, String burstKey) {
+    double rate = conf.getDouble(prefix + rateKey, 0);
+    return Limit.of(rate, conf.getDouble(prefix + burstKey, rate));
+  }
+
+  /** Parse the limits of single keys, such as user.rate.alice. */
+  private static Map<String, Limit> parseLimits(Configuration conf,
+      String prefix, String rateKey, String burstKey) {
+    Map<String, Limit> limits = new HashMap<String, Limit>();
+    for (Map.Entry<String, String> entry :
+        conf.getPropsWithPrefix(prefix + rateKey + ".").entrySet()) {
+      String key = entry.getKey();
+      double rate = Double.parseDouble(entry.getValue().trim());
+      limits.put(key, Limit.of(rate,
+          conf.getDouble(prefix + burstKey + "." + key, rate)));
+    }
+    return limits;
+  }
+
+  private static String describe(Configuration conf, String prefix,
+      String rateKey) {
+    double rate = conf.getDouble(prefix + rateKey, 0);
+    return rate > 0 ? rate + " calls/s" : "no limit";
+  }
+
+  @Override
+  public boolean admit(Schedulable call, String protocol) {
+    long now = Time.monotonicNowNanos();
+    Bucket user = null;
+    if (users.isLimited()) {
+      String identity = identityProvider.makeIdentity(call);
+      if (identity == null) {
+        identity = DecayRpcScheduler.DECAYSCHEDULER_UNKNOWN_IDENTITY;
+      }
+      user = users.get(identity, now);
+      if (!user.tryAcquire(now)) {
+        users.rejected(user);
+        return false;
+      }
+    }
+    Bucket protocolBucket = null;
+    if (protocol != null && protocols.isLimited()) {
+      protocolBucket = protocols.get(protocol, now);
+      if (!protocolBucket.tryAcquire(now)) {
+        release(user);
+        protocols.rejected(protocolBucket);
+        return false;
+      }
+    }
+    Bucket globalBucket = null;
+    if (global.isLimited()) {
+      globalBucket = global.get(namespace, now);
+      if (!globalBucket.tryAcquire(now)) {
+        release(user);
+        release(protocolBucket);
+        global.rejected(globalBucket);
+        return false;
+      }
+    }
+    if (user != null) {
+      users.admitted(user);
+    }
+    if (protocolBucket != null) {
+      protocols.admitted(protocolBucket);
+    }
+    if (globalBucket != null) {
+      global.admitted(globalBucket);
+    }
+    return true;
+  }
+
+  private static void release(Bucket bucket) {
+    if (bucket != null) {
+      bucket.release();
+    }
+  }
+
+  @Override
+  public void stop() {
+    DefaultMetricsSystem.instance().unregisterSource(metricsName);
+  }
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    MetricsRecordBuilder rb = collector.addRecord(getClass().getName())
+        .setContext(namespace);
+    addLevel(rb, global);
+    addLevel(rb, protocols);
+    addLevel(rb, users);
+    rb.addGauge(Interns.info("TrackedCallers", "Callers with a bucket"),
+        users.size());
+    // Key: Protocol(xyz).Admitted and Protocol(xyz).Rejected
+    for (Map.Entry<String, Bucket> entry : protocols.buckets.entrySet()) {
+      addBucket(rb, "Protocol(" + entry.getKey() + ")", entry.getValue());
+    }
+    addBucket(rb, "Protocol(" + OVERFLOW + ")", protocols.overflow);
+    // Key: Caller(xyz).Admitted and Caller(xyz).Rejected
+    final Map<String, Bucket> callers = new HashMap<String, Bucket>();
+    TopN topCallers = new TopN(topUsersCount);
+    users.buckets.forEach((identity, bucket) -> {
+      if (bucket.getRejected() > 0) {
+        topCallers.offer(new NameValuePair(identity, bucket.getRejected()));
+        callers.put(identity, bucket);
+      }
+    });
+    final int actualCallerCount = topCallers.size();
+    for (int i = 0; i < actualCallerCount; i++) {
+      String identity = topCallers.poll().getName();
+      addBucket(rb, "Caller(" + identity + ")", callers.get(identity));
+    }
+    addBucket(rb, "Caller(" + OVERFLOW + ")", users.overflow);
+  }
+
+  // Key: User.Admitted and User.Rejected
+  private static void addLevel(MetricsRecordBuilder rb, Level level) {
+    rb.addCounter(Interns.info(level.name + ".Admitted", "Calls admitted by "
+        + level.name + " buckets"), level.admitted.sum());
+    rb.addCounter(Interns.info(level.name + ".Rejected", "Calls rejected by "
+        + level.name + " buckets"), level.rejected.sum());
+  }
+
+  private static void addBucket(MetricsRecordBuilder rb, String name,
+      Bucket bucket) {
+    String admitted = name + ".Admitted";
+    String rejected = name + ".Rejected";
+    rb.addCounter(Interns.info(admitted, admitted), bucket.getAdmitted());
+    rb.addCounter(Interns.info(rejected, rejected), bucket.getRejected());
+  }
+}
@@ -17,12 +17,15 @@
  */
 package org.apache.hadoop.ipc.metrics;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.metrics2.annotation.Metric;
 import org.apache.hadoop.metrics2.annotation.Metrics;
 import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableGaugeFloat;
 import org.apache.hadoop.metrics2.lib.MutableRatesWithAggregation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +52,9 @@ public class DecayRpcSchedulerDetailedMetrics {
   private final String name;
   private String[] queueNamesForLevels;
   private String[] processingNamesForLevels;
+  // average cost of each method, as seen by the cost provider
+  private final ConcurrentHashMap<String, MutableGaugeFloat> methodCosts =
+      new ConcurrentHashMap<String, MutableGaugeFloat>();
 
   DecayRpcSchedulerDetailedMetrics(String ns) {
     name = "DecayRpcSchedulerDetailedMetrics."+ ns;
@@ -98,6 +104,22 @@ public class DecayRpcSchedulerDetailedMetrics {
     rpcProcessingRates.add(processingNamesForLevels[priority], processingTime);
   }
 
+  /**
+   * Instrument the average cost of a method.
+   *
+   * @param methodName name of the method
+   * @param cost average cost of the calls of the method
+   */
+  public void setMethodCost(String methodName, float cost) {
+    MutableGaugeFloat gauge = methodCosts.get(methodName);
+    if (gauge == null) {
+      gauge = methodCosts.computeIfAbsent(methodName,
+          name -> registry.newGauge(getMethodCostName(name),
+              "Average cost of " + name, 0f));
+    }
+    gauge.set(cost);
+  }
+
   /**
    * Shutdown the instrumentation process.
    */
@@ -119,6 +141,13 @@ public class DecayRpcSchedulerDetailedMetrics {
     return "DecayRPCSchedulerPriority."+priority+".RpcProcessingTime";
   }
 
+  /**
+   * Returns the gauge name of the cost of a method.
+   */
+  public String getMethodCostName(String methodName) {
+    return "Method." + methodName + ".AverageCost";
+  }
+
   public String getName() {
     return name;
   }
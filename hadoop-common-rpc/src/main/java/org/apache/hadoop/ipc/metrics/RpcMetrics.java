@@ -17,9 +17,11 @@
  */
 package org.apache.hadoop.ipc.metrics;
 
+import java.math.BigDecimal;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -32,6 +34,11 @@ import org.apache.hadoop.metrics2.lib.MetricsRegistry;
 import org.apache.hadoop.metrics2.lib.MutableCounterLong;
 import org.apache.hadoop.metrics2.lib.MutableQuantiles;
 import org.apache.hadoop.metrics2.lib.MutableRate;
+import org.apache.hadoop.metrics2.lib.MutableStat;
+import org.apache.hadoop.metrics2.util.LogLinearHistogram;
+import org.apache.hadoop.metrics2.util.Quantile;
+import org.apache.hadoop.metrics2.util.QuantileEstimator;
+import org.apache.hadoop.metrics2.util.SampleQuantiles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +57,13 @@ public class RpcMetrics {
   final boolean rpcQuantileEnable;
   /** The time unit used when storing/accessing time durations. */
   public final static TimeUnit TIMEUNIT = TimeUnit.MILLISECONDS;
+  // longer times are counted as an hour by the histogram estimator
+  private final static long HIGHEST_TRACKED_TIME =
+      TIMEUNIT.convert(1, TimeUnit.HOURS);
+  private final static long HIGHEST_TRACKED_BATCH_SIZE = 1 << 16;
+  private Quantile[] percentiles;
+  // precision of the histogram estimator, 0 to use SampleQuantiles
+  private int histogramPrecisionBits;
   
   RpcMetrics(Server server, Configuration conf) {
     String port = String.valueOf(server.getListenerAddress().getPort());
@@ -63,7 +77,10 @@ public class RpcMetrics {
     rpcQuantileEnable = (intervals.length > 0) && conf.getBoolean(
         CommonConfigurationKeys.RPC_METRICS_QUANTILE_ENABLE,
         CommonConfigurationKeys.RPC_METRICS_QUANTILE_ENABLE_DEFAULT);
+    rpcBatchSize = registry.newStat("rpcBatchSize",
+        "Number of calls per batch packet", "Batches", "Calls", true);
     if (rpcQuantileEnable) {
+      parseQuantileEstimator(conf);
       rpcQueueTimeQuantiles =
           new MutableQuantiles[intervals.length];
       rpcLockWaitTimeQuantiles =
@@ -72,28 +89,83 @@ public class RpcMetrics {
           new MutableQuantiles[intervals.length];
       deferredRpcProcessingTimeQuantiles =
           new MutableQuantiles[intervals.length];
+      rpcBatchSizeQuantiles =
+          new MutableQuantiles[intervals.length];
       for (int i = 0; i < intervals.length; i++) {
         int interval = intervals[i];
-        rpcQueueTimeQuantiles[i] = registry.newQuantiles("rpcQueueTime"
+        rpcQueueTimeQuantiles[i] = newQuantiles("rpcQueueTime"
             + interval + "s", "rpc queue time in " + TIMEUNIT, "ops",
-            "latency", interval);
-        rpcLockWaitTimeQuantiles[i] = registry.newQuantiles(
+            "latency", interval, HIGHEST_TRACKED_TIME);
+        rpcLockWaitTimeQuantiles[i] = newQuantiles(
             "rpcLockWaitTime" + interval + "s",
             "rpc lock wait time in " + TIMEUNIT, "ops",
-            "latency", interval);
-        rpcProcessingTimeQuantiles[i] = registry.newQuantiles(
+            "latency", interval, HIGHEST_TRACKED_TIME);
+        rpcProcessingTimeQuantiles[i] = newQuantiles(
             "rpcProcessingTime" + interval + "s",
             "rpc processing time in " + TIMEUNIT, "ops",
-            "latency", interval);
-        deferredRpcProcessingTimeQuantiles[i] = registry.newQuantiles(
+            "latency", interval, HIGHEST_TRACKED_TIME);
+        deferredRpcProcessingTimeQuantiles[i] = newQuantiles(
             "deferredRpcProcessingTime" + interval + "s",
             "deferred rpc processing time in " + TIMEUNIT, "ops",
-            "latency", interval);
+            "latency", interval, HIGHEST_TRACKED_TIME);
+        rpcBatchSizeQuantiles[i] = newQuantiles(
+            "rpcBatchSize" + interval + "s",
+            "number of calls per batch packet", "batches",
+            "calls", interval, HIGHEST_TRACKED_BATCH_SIZE);
       }
     }
     LOG.debug("Initialized " + registry);
   }
 
+  /**
+   * Read the percentiles to report and how to estimate them. The error
+   * allowed to SampleQuantiles is a tenth of the share of values above the
+   * percentile, as for the default percentiles.
+   */
+  private void parseQuantileEstimator(Configuration conf) {
+    String[] values = conf.getTrimmedStrings(
+        CommonConfigurationKeys.RPC_METRICS_PERCENTILES_KEY,
+        CommonConfigurationKeys.RPC_METRICS_PERCENTILES_DEFAULT);
+    percentiles = new Quantile[values.length];
+    for (int i = 0; i < values.length; i++) {
+      // in decimal, so that 99.9 is the double nearest to 0.999 and the
+      // metric is named 999thPercentile
+      BigDecimal quantile = new BigDecimal(values[i]).movePointLeft(2);
+      Preconditions.checkArgument(quantile.signum() > 0 &&
+          quantile.compareTo(BigDecimal.ONE) < 0,
+          "%s must be between 0 and 100: %s",
+          CommonConfigurationKeys.RPC_METRICS_PERCENTILES_KEY, values[i]);
+      percentiles[i] = new Quantile(quantile.doubleValue(),
+          BigDecimal.ONE.subtract(quantile).movePointLeft(1).doubleValue());
+    }
+    String estimator = conf.getTrimmed(
+        CommonConfigurationKeys.RPC_METRICS_QUANTILE_ESTIMATOR_KEY,
+        CommonConfigurationKeys.RPC_METRICS_QUANTILE_ESTIMATOR_DEFAULT);
+    if ("histogram".equalsIgnoreCase(estimator)) {
+      histogramPrecisionBits = conf.getInt(
+          CommonConfigurationKeys.RPC_METRICS_HISTOGRAM_PRECISION_BITS_KEY,
+          CommonConfigurationKeys.RPC_METRICS_HISTOGRAM_PRECISION_BITS_DEFAULT);
+      Preconditions.checkArgument(histogramPrecisionBits > 0,
+          "%s must be positive",
+          CommonConfigurationKeys.RPC_METRICS_HISTOGRAM_PRECISION_BITS_KEY);
+    } else {
+      Preconditions.checkArgument("sample".equalsIgnoreCase(estimator),
+          "%s must be sample or histogram: %s",
+          CommonConfigurationKeys.RPC_METRICS_QUANTILE_ESTIMATOR_KEY,
+          estimator);
+    }
+  }
+
+  private MutableQuantiles newQuantiles(String name, String desc,
+      String sampleName, String valueName, int interval, long highestValue) {
+    QuantileEstimator estimator = histogramPrecisionBits > 0
+        ? new LogLinearHistogram(percentiles, histogramPrecisionBits,
+            highestValue)
+        : new SampleQuantiles(percentiles);
+    return registry.newQuantiles(name, desc, sampleName, valueName, interval,
+        percentiles, estimator);
+  }
+
   public String name() { return name; }
 
   public static RpcMetrics create(Server server, Configuration conf) {
@@ -111,6 +183,8 @@ public class RpcMetrics {
   MutableQuantiles[] rpcProcessingTimeQuantiles;
   @Metric("Deferred Processing time") MutableRate deferredRpcProcessingTime;
   MutableQuantiles[] deferredRpcProcessingTimeQuantiles;
+  MutableStat rpcBatchSize;
+  MutableQuantiles[] rpcBatchSizeQuantiles;
   @Metric("Number of authentication failures")
   MutableCounterLong rpcAuthenticationFailures;
   @Metric("Number of authentication successes")
@@ -123,6 +197,10 @@ public class RpcMetrics {
   MutableCounterLong rpcClientBackoff;
   @Metric("Number of Slow RPC calls")
   MutableCounterLong rpcSlowCalls;
+  @Metric("Number of calls dropped unprocessed after their deadline")
+  MutableCounterLong rpcExpiredCallsDropped;
+  @Metric("Number of responses not sent after their deadline")
+  MutableCounterLong rpcExpiredResponsesDropped;
 
   @Metric("Number of open connections") public int numOpenConnections() {
     return server.getNumOpenConnections();
@@ -141,6 +219,21 @@ public class RpcMetrics {
     return server.getNumDroppedConnections();
   }
 
+  @Metric("Number of request buffers reused from the pool")
+  public long requestBufferPoolHits() {
+    return server.getRequestBufferPoolHits();
+  }
+
+  @Metric("Number of request buffers allocated on a pool miss")
+  public long requestBufferPoolMisses() {
+    return server.getRequestBufferPoolMisses();
+  }
+
+  @Metric("Bytes retained by idle pooled request buffers")
+  public long requestBufferPoolRetainedBytes() {
+    return server.getRequestBufferPoolRetainedBytes();
+  }
+
   // Public instrumentation methods that could be extracted to an
   // abstract class if we decide to do custom instrumentation classes a la
   // JobTrackerInstrumentation. The methods with //@Override comment are
@@ -248,6 +341,19 @@ public class RpcMetrics {
     }
   }
 
+  /**
+   * Add the number of calls of a batch packet
+   * @param numCalls the number of calls
+   */
+  public void addRpcBatchSize(int numCalls) {
+    rpcBatchSize.add(numCalls);
+    if (rpcQuantileEnable) {
+      for (MutableQuantiles q : rpcBatchSizeQuantiles) {
+        q.add(numCalls);
+      }
+    }
+  }
+
   /**
    * One client backoff event
    */
@@ -262,6 +368,20 @@ public class RpcMetrics {
   public  void incrSlowRpc() {
     rpcSlowCalls.incr();
   }
+
+  /**
+   * One call taken from the queue after its deadline, and not processed.
+   */
+  public void incrExpiredCallsDropped() {
+    rpcExpiredCallsDropped.incr();
+  }
+
+  /**
+   * One response not sent, because its call passed the deadline.
+   */
+  public void incrExpiredResponsesDropped() {
+    rpcExpiredResponsesDropped.incr();
+  }
   /**
    * Returns a MutableRate Counter.
    * @return Mutable Rate
@@ -21,10 +21,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A cached implementation of DNSToSwitchMapping that takes an
@@ -32,12 +43,30 @@ import org.apache.hadoop.classification.InterfaceStability;
  * a cache. The following calls to a resolved network location
  * will get its location from the cache. 
  *
+ * <p/>If
+ * {@link CommonConfigurationKeysPublic#NET_TOPOLOGY_ASYNC_RESOLUTION_ENABLED_KEY}
+ * is set, cache misses are not resolved on the thread of the caller. They
+ * are collected for
+ * {@link CommonConfigurationKeysPublic#NET_TOPOLOGY_ASYNC_BATCH_WINDOW_MS_KEY}
+ * and resolved together on a background thread, so concurrent callers share
+ * one invocation of the raw mapping, such as one run of a topology script.
+ * {@link #resolve(List)} waits for the batch, while
+ * {@link #resolveOrDefault(List)} returns {@link NetworkTopology#DEFAULT_RACK}
+ * for the misses at once. Cached locations older than
+ * {@link CommonConfigurationKeysPublic#NET_TOPOLOGY_ASYNC_REFRESH_MS_KEY}
+ * are resolved again in the background when they are next used.
  */
 @InterfaceAudience.Public
 @InterfaceStability.Evolving
 public class CachedDNSToSwitchMapping extends AbstractDNSToSwitchMapping {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CachedDNSToSwitchMapping.class);
+
   private Map<String, String> cache = new ConcurrentHashMap<String, String>();
 
+  /** Resolves cache misses in the background, null unless enabled. */
+  private volatile AsyncResolver asyncResolver;
+
   /**
    * The uncached mapping
    */
@@ -103,6 +132,39 @@ public class CachedDNSToSwitchMapping extends AbstractDNSToSwitchMapping {
     return result;
   }
 
+  /**
+   * Enable or disable asynchronous resolution as configured, in addition
+   * to keeping the configuration.
+   * @param conf the configuration
+   */
+  @Override
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    // shut down the previous resolver first, so that the new one can
+    // register its metrics under the same name; callers resolve
+    // synchronously meanwhile
+    AsyncResolver previous = asyncResolver;
+    asyncResolver = null;
+    if (previous != null) {
+      previous.shutdown();
+    }
+    if (conf != null && conf.getBoolean(
+        CommonConfigurationKeysPublic.NET_TOPOLOGY_ASYNC_RESOLUTION_ENABLED_KEY,
+        CommonConfigurationKeysPublic
+            .NET_TOPOLOGY_ASYNC_RESOLUTION_ENABLED_DEFAULT)) {
+      asyncResolver = new AsyncResolver(
+          conf.getLong(
+              CommonConfigurationKeysPublic
+                  .NET_TOPOLOGY_ASYNC_BATCH_WINDOW_MS_KEY,
+              CommonConfigurationKeysPublic
+                  .NET_TOPOLOGY_ASYNC_BATCH_WINDOW_MS_DEFAULT),
+          conf.getLong(
+              CommonConfigurationKeysPublic.NET_TOPOLOGY_ASYNC_REFRESH_MS_KEY,
+              CommonConfigurationKeysPublic
+                  .NET_TOPOLOGY_ASYNC_REFRESH_MS_DEFAULT));
+    }
+  }
+
   @Override
   public List<String> resolve(List<String> names) {
     // normalize all input names to be in the form of IP addresses
@@ -113,6 +175,11 @@ public class CachedDNSToSwitchMapping extends AbstractDNSToSwitchMapping {
       return result;
     }
 
+    AsyncResolver resolver = asyncResolver;
+    if (resolver != null) {
+      return resolver.resolve(names, true);
+    }
+
     List<String> uncachedHosts = getUncachedHosts(names);
 
     // Resolve the uncached hosts
@@ -124,6 +191,25 @@ public class CachedDNSToSwitchMapping extends AbstractDNSToSwitchMapping {
 
   }
 
+  /**
+   * Resolve a list of names without waiting for the names not cached yet.
+   * With asynchronous resolution enabled, those names are resolved in the
+   * background and get {@link NetworkTopology#DEFAULT_RACK} for now, which
+   * is not cached; otherwise this is {@link #resolve(List)}.
+   *
+   * @param names the list of hosts to resolve (can be empty)
+   * @return list of resolved network paths, or null as for
+   *         {@link #resolve(List)}
+   */
+  public List<String> resolveOrDefault(List<String> names) {
+    AsyncResolver resolver = asyncResolver;
+    if (resolver == null) {
+      return resolve(names);
+    }
+    names = NetUtils.normalizeHostNames(names);
+    return resolver.resolve(names, false);
+  }
+
   /**
    * Get the (host x switch) map.
    * @return a copy of the cached map of hosts to rack
@@ -153,12 +239,238 @@ public class CachedDNSToSwitchMapping extends AbstractDNSToSwitchMapping {
   @Override
   public void reloadCachedMappings() {
     cache.clear();
+    AsyncResolver resolver = asyncResolver;
+    if (resolver != null) {
+      resolver.resolvedTimes.clear();
+    }
   }
 
   @Override
   public void reloadCachedMappings(List<String> names) {
+    AsyncResolver resolver = asyncResolver;
     for (String name : names) {
       cache.remove(name);
+      if (resolver != null) {
+        resolver.resolvedTimes.remove(name);
+      }
+    }
+  }
+
+  /** A host waiting to be resolved in the background. */
+  private static final class PendingHost {
+    private final String host;
+    // whether the host is cached already, and only resolved again
+    private final boolean refresh;
+    private final long submitNanos = System.nanoTime();
+    private final CompletableFuture<String> location =
+        new CompletableFuture<String>();
+
+    PendingHost(String host, boolean refresh) {
+      this.host = host;
+      this.refresh = refresh;
+    }
+  }
+
+  /**
+   * Collects the hosts to resolve for a short window and resolves them with
+   * one call to the raw mapping on a background thread.
+   */
+  private final class AsyncResolver {
+    private final long batchWindowMs;
+    // 0 to never refresh
+    private final long refreshNanos;
+    private final ScheduledExecutorService executor;
+    private final TopologyResolutionMetrics metrics;
+    // every host submitted and not resolved yet
+    private final Map<String, PendingHost> pending =
+        new ConcurrentHashMap<String, PendingHost>();
+    // time each cached host was resolved at, to refresh it when it ages
+    private final Map<String, Long> resolvedTimes =
+        new ConcurrentHashMap<String, Long>();
+    // the hosts to resolve in the next batch, guarded by this
+    private List<PendingHost> batch = new ArrayList<PendingHost>();
+    private boolean flushScheduled;
+
+    AsyncResolver(long batchWindowMs, long refreshMs) {
+      this.batchWindowMs = batchWindowMs;
+      this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMs);
+      String mappingName =
+          CachedDNSToSwitchMapping.this.getClass().getSimpleName();
+      this.executor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("Topology Resolver for " + mappingName)
+          .build());
+      this.metrics = TopologyResolutionMetrics.create(mappingName);
+    }
+
+    /**
+     * Resolve names from the cache, submitting the misses and the aged
+     * entries to be resolved.
+     * @param names normalized names
+     * @param wait whether to wait for the misses to be resolved, or to
+     *     return the default rack for them
+     */
+    List<String> resolve(List<String> names, boolean wait) {
+      List<String> result = new ArrayList<String>(names.size());
+      PendingHost[] misses = null;
+      long now = System.nanoTime();
+      for (int i = 0; i < names.size(); i++) {
+        String name = names.get(i);
+        String location = cache.get(name);
+        if (location != null) {
+          result.add(location);
+          refreshIfAged(name, now);
+        } else if (wait) {
+          if (misses == null) {
+            misses = new PendingHost[names.size()];
+          }
+          misses[i] = submit(name, false);
+          result.add(null);
+        } else {
+          submit(name, false);
+          result.add(NetworkTopology.DEFAULT_RACK);
+        }
+      }
+      if (misses != null) {
+        for (int i = 0; i < misses.length; i++) {
+          if (misses[i] != null) {
+            String location = await(misses[i]);
+            if (location == null) {
+              return null;
+            }
+            result.set(i, location);
+          }
+        }
+      }
+      return result;
+    }
+
+    private void refreshIfAged(String name, long now) {
+      if (refreshNanos <= 0) {
+        return;
+      }
+      Long resolvedTime = resolvedTimes.putIfAbsent(name, now);
+      if (resolvedTime != null && now - resolvedTime > refreshNanos &&
+          !pending.containsKey(name)) {
+        submit(name, true);
+      }
+    }
+
+    /**
+     * @return the pending resolution of a host, shared with any other caller
+     *         waiting for the same host
+     */
+    private PendingHost submit(String host, boolean refresh) {
+      PendingHost p = pending.get(host);
+      if (p != null) {
+        return p;
+      }
+      boolean flushNow = false;
+      synchronized (this) {
+        p = pending.get(host);
+        if (p != null) {
+          return p;
+        }
+        p = new PendingHost(host, refresh);
+        pending.put(host, p);
+        batch.add(p);
+        if (!flushScheduled) {
+          flushScheduled = true;
+          try {
+            executor.schedule(this::flush, batchWindowMs,
+                TimeUnit.MILLISECONDS);
+          } catch (RejectedExecutionException e) {
+            // shut down by a new configuration
+            flushNow = true;
+          }
+        }
+      }
+      if (flushNow) {
+        flush();
+      }
+      return p;
+    }
+
+    /** Resolve the hosts submitted since the last batch. */
+    private void flush() {
+      List<PendingHost> hosts;
+      synchronized (this) {
+        hosts = batch;
+        batch = new ArrayList<PendingHost>();
+        flushScheduled = false;
+      }
+      if (hosts.isEmpty()) {
+        return;
+      }
+      List<String> names = new ArrayList<String>(hosts.size());
+      for (PendingHost p : hosts) {
+        names.add(p.host);
+      }
+      List<String> locations = null;
+      try {
+        locations = rawMapping.resolve(names);
+        if (locations != null && locations.size() != names.size()) {
+          LOG.warn("Resolved {} hosts to {} locations", names.size(),
+              locations.size());
+          locations = null;
+        }
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to resolve {} hosts", names.size(), e);
+      }
+      metrics.addBatchSize(names.size());
+      if (locations == null) {
+        metrics.incrResolutionFailures(names.size());
+      }
+      long now = System.nanoTime();
+      try {
+        for (int i = 0; i < hosts.size(); i++) {
+          PendingHost p = hosts.get(i);
+          String location = locations == null ? null : locations.get(i);
+          if (location != null) {
+            cache.put(p.host, location);
+          } else if (p.refresh) {
+            // keep using the location cached
+            location = cache.get(p.host);
+          }
+          if (refreshNanos > 0 && location != null) {
+            resolvedTimes.put(p.host, now);
+          }
+          if (p.refresh) {
+            metrics.incrRefreshes();
+          } else {
+            metrics.addMissLatency(
+                TimeUnit.NANOSECONDS.toMillis(now - p.submitNanos));
+          }
+          pending.remove(p.host, p);
+          p.location.complete(location);
+        }
+      } finally {
+        // never leave a caller waiting
+        for (PendingHost p : hosts) {
+          if (!p.location.isDone()) {
+            pending.remove(p.host, p);
+            p.location.complete(null);
+          }
+        }
+      }
+    }
+
+    private String await(PendingHost p) {
+      try {
+        return p.location.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        return null;
+      }
+    }
+
+    void shutdown() {
+      // batches already scheduled still run
+      executor.shutdown();
+      metrics.shutdown();
     }
   }
 }
@@ -19,7 +19,6 @@ package org.apache.hadoop.net;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
@@ -799,51 +798,72 @@ public class NetworkTopology {
     //Start off by initializing to Integer.MAX_VALUE
     int weight = Integer.MAX_VALUE;
     if(reader != null && node != null) {
-      String readerPath = normalizeNetworkLocationPath(
-          reader.getNetworkLocation());
-      String nodePath = normalizeNetworkLocationPath(
-          node.getNetworkLocation());
+      // Compare the paths in place rather than splitting them, as this runs
+      // for every replica of every block located
+      String readerPath = reader.getNetworkLocation();
+      String nodePath = node.getNetworkLocation();
+      int readerLength = normalizedLength(readerPath);
+      int nodeLength = normalizedLength(nodePath);
+      if (readerLength < 0) {
+        readerPath = ROOT;
+        readerLength = ROOT.length();
+      }
+      if (nodeLength < 0) {
+        nodePath = ROOT;
+        nodeLength = ROOT.length();
+      }
 
       //same rack
-      if(readerPath.equals(nodePath)) {
+      if(readerLength == nodeLength &&
+          readerPath.regionMatches(0, nodePath, 0, readerLength)) {
         if(reader.getName().equals(node.getName())) {
           weight = 0;
         } else {
           weight = 2;
         }
       } else {
-        String[] readerPathToken = readerPath.split(PATH_SEPARATOR_STR);
-        String[] nodePathToken = nodePath.split(PATH_SEPARATOR_STR);
-        int maxLevelToCompare = readerPathToken.length > nodePathToken.length ?
-            nodePathToken.length : readerPathToken.length;
+        int readerTokens = countPathTokens(readerPath, readerLength);
+        int nodeTokens = countPathTokens(nodePath, nodeLength);
+        int maxLevelToCompare = readerTokens > nodeTokens ?
+            nodeTokens : readerTokens;
         int currentLevel = 1;
+        // the first token is empty, as the paths start with a separator
+        int readerStart = 1;
+        int nodeStart = 1;
         //traverse through the path and calculate the distance
         while(currentLevel < maxLevelToCompare) {
-          if(!readerPathToken[currentLevel]
-              .equals(nodePathToken[currentLevel])){
+          int readerEnd = tokenEnd(readerPath, readerStart, readerLength);
+          int nodeEnd = tokenEnd(nodePath, nodeStart, nodeLength);
+          if(readerEnd - readerStart != nodeEnd - nodeStart ||
+              !readerPath.regionMatches(readerStart, nodePath, nodeStart,
+                  readerEnd - readerStart)) {
             break;
           }
+          readerStart = readerEnd + 1;
+          nodeStart = nodeEnd + 1;
           currentLevel++;
         }
         // +2 to correct the weight between reader and node rather than
         // between parent of reader and parent of node.
-        weight = (readerPathToken.length - currentLevel) +
-            (nodePathToken.length - currentLevel) + 2;
+        weight = (readerTokens - currentLevel) +
+            (nodeTokens - currentLevel) + 2;
       }
     }
     return weight;
   }
 
-  /** Normalize a path by stripping off any trailing {@link #PATH_SEPARATOR}.
+  /**
+   * The length of a path once normalized by stripping off any trailing
+   * {@link #PATH_SEPARATOR}.
    * @param path path to normalize.
-   * @return the normalised path
-   * If <i>path</i>is null or empty {@link #ROOT} is returned
+   * @return the length of the normalized path, a prefix of <i>path</i>,
+   * or -1 if it normalizes to {@link #ROOT}
    * @throws IllegalArgumentException if the first character of a non empty path
    * is not {@link #PATH_SEPARATOR}
    */
-  private static String normalizeNetworkLocationPath(String path) {
+  private static int normalizedLength(String path) {
     if (path == null || path.length() == 0) {
-      return ROOT;
+      return -1;
     }
 
     if (path.charAt(0) != PATH_SEPARATOR) {
@@ -853,9 +873,40 @@ public class NetworkTopology {
 
     int len = path.length();
     if (path.charAt(len-1) == PATH_SEPARATOR) {
-      return path.substring(0, len-1);
+      return len-1;
+    }
+    return len;
+  }
+
+  /**
+   * @return the number of tokens {@link String#split(String)} would return
+   * for the first <i>length</i> characters of <i>path</i> split on
+   * {@link #PATH_SEPARATOR_STR}
+   */
+  private static int countPathTokens(String path, int length) {
+    if (length == 0) {
+      return 1;
+    }
+    // trailing empty tokens are dropped
+    int end = length;
+    while (end > 0 && path.charAt(end - 1) == PATH_SEPARATOR) {
+      end--;
+    }
+    if (end == 0) {
+      return 0;
+    }
+    int tokens = 1;
+    for (int i = 0; i < end; i++) {
+      if (path.charAt(i) == PATH_SEPARATOR) {
+        tokens++;
+      }
     }
-    return path;
+    return tokens;
+  }
+
+  private static int tokenEnd(String path, int start, int length) {
+    int end = path.indexOf(PATH_SEPARATOR, start);
+    return end < 0 || end > length ? length : end;
   }
 
   /**
@@ -949,49 +1000,137 @@ public class NetworkTopology {
    * <p>
    * As an additional twist, we also randomize the nodes at each network
    * distance. This helps with load balancing when there is data skew.
+   * <p>
+   * The nodes are bucketed by weight, of which there are only a few, using
+   * scratch arrays kept per thread, so sorting allocates nothing. Each
+   * bucket is handed to <i>secondarySort</i> as a fixed-size view of the
+   * nodes array, valid only during the call.
    *
    * @param reader    Node where data will be read
    * @param nodes     Available replicas with the requested data
    * @param activeLen Number of active nodes at the front of the array
    * @param nonDataNodeReader True if the reader is not a datanode
    */
+  @SuppressWarnings("unchecked")
   private <T extends Node> void sortByDistance(Node reader, T[] nodes,
       int activeLen, Consumer<List<T>> secondarySort,
       boolean nonDataNodeReader) {
-    /** Sort weights for the nodes array */
-    int[] weights = new int[activeLen];
-    for (int i=0; i<activeLen; i++) {
-      if(nonDataNodeReader) {
-        weights[i] = getWeightUsingNetworkLocation(reader, nodes[i]);
-      } else {
-        weights[i] = getWeight(reader, nodes[i]);
-      }
+    SortScratch scratch = SORT_SCRATCH.get();
+    if (scratch.inUse) {
+      // re-entered from secondarySort
+      scratch = new SortScratch();
     }
-    // Add weight/node pairs to a TreeMap to sort
-    TreeMap<Integer, List<T>> tree = new TreeMap<>();
-    for (int i=0; i<activeLen; i++) {
-      int weight = weights[i];
-      T node = nodes[i];
-      List<T> list = tree.get(weight);
-      if (list == null) {
-        list = Lists.newArrayListWithExpectedSize(1);
-        tree.put(weight, list);
+    scratch.inUse = true;
+    try {
+      scratch.ensureCapacity(activeLen);
+      int[] weights = scratch.weights;
+      int[] bucketWeights = scratch.bucketWeights;
+      int[] bucketEnds = scratch.bucketEnds;
+      Object[] buffer = scratch.buffer;
+      // Collect the distinct weights in ascending order
+      int buckets = 0;
+      for (int i = 0; i < activeLen; i++) {
+        int weight = nonDataNodeReader ?
+            getWeightUsingNetworkLocation(reader, nodes[i]) :
+            getWeight(reader, nodes[i]);
+        weights[i] = weight;
+        int bucket = Arrays.binarySearch(bucketWeights, 0, buckets, weight);
+        if (bucket < 0) {
+          bucket = -bucket - 1;
+          System.arraycopy(bucketWeights, bucket, bucketWeights, bucket + 1,
+              buckets - bucket);
+          System.arraycopy(bucketEnds, bucket, bucketEnds, bucket + 1,
+              buckets - bucket);
+          bucketWeights[bucket] = weight;
+          bucketEnds[bucket] = 0;
+          buckets++;
+        }
+        bucketEnds[bucket]++;
       }
-      list.add(node);
+      // Turn the bucket sizes into start offsets
+      int offset = 0;
+      for (int b = 0; b < buckets; b++) {
+        int size = bucketEnds[b];
+        bucketEnds[b] = offset;
+        offset += size;
+      }
+      // Place the nodes in their buckets keeping their order, after which
+      // bucketEnds holds the end offset of each bucket
+      for (int i = 0; i < activeLen; i++) {
+        int bucket = Arrays.binarySearch(bucketWeights, 0, buckets,
+            weights[i]);
+        buffer[bucketEnds[bucket]++] = nodes[i];
+      }
+      System.arraycopy(buffer, 0, nodes, 0, activeLen);
+      Arrays.fill(buffer, 0, activeLen, null);
+      // Sort nodes which have the same weight using secondarySort.
+      int start = 0;
+      for (int b = 0; b < buckets; b++) {
+        scratch.slice.reset(nodes, start, bucketEnds[b]);
+        secondarySort.accept((List<T>) (List<?>) scratch.slice);
+        start = bucketEnds[b];
+      }
+    } finally {
+      scratch.slice.reset(null, 0, 0);
+      scratch.inUse = false;
     }
-    // Sort nodes which have the same weight using secondarySort.
-    int idx = 0;
-    for (List<T> list: tree.values()) {
-      if (list != null) {
-        secondarySort.accept(list);
-        for (T n: list) {
-          nodes[idx] = n;
-          idx++;
-        }
+  }
+
+  private static final ThreadLocal<SortScratch> SORT_SCRATCH =
+      ThreadLocal.withInitial(SortScratch::new);
+
+  /** Arrays reused by {@link #sortByDistance} on one thread. */
+  private static final class SortScratch {
+    private int[] weights = new int[0];
+    // the distinct weights in ascending order
+    private int[] bucketWeights = new int[0];
+    private int[] bucketEnds = new int[0];
+    private Object[] buffer = new Object[0];
+    private final ArraySlice slice = new ArraySlice();
+    private boolean inUse;
+
+    void ensureCapacity(int length) {
+      if (weights.length < length) {
+        int capacity = Math.max(length, 16);
+        weights = new int[capacity];
+        bucketWeights = new int[capacity];
+        bucketEnds = new int[capacity];
+        buffer = new Object[capacity];
       }
     }
-    Preconditions.checkState(idx == activeLen,
-        "Sorted the wrong number of nodes!");
+  }
+
+  /** A fixed-size list view of a range of an array. */
+  private static final class ArraySlice extends AbstractList<Object>
+      implements RandomAccess {
+    private Object[] array;
+    private int from;
+    private int size;
+
+    void reset(Object[] array, int from, int to) {
+      this.array = array;
+      this.from = from;
+      this.size = to - from;
+    }
+
+    @Override
+    public Object get(int index) {
+      Preconditions.checkElementIndex(index, size);
+      return array[from + index];
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+      Preconditions.checkElementIndex(index, size);
+      Object previous = array[from + index];
+      array[from + index] = element;
+      return previous;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
   }
 
   /**
@@ -0,0 +1,353 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToLongFunction;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Randomly chooses leaves of a {@link NetworkTopology}, each with a
+ * probability proportional to its weight, for example the free capacity of
+ * a datanode. With the default weight of 1 every leaf is equally likely, as
+ * with {@link NetworkTopology#chooseRandom(String, Collection)}.
+ *
+ * <p/>The selector copies the leaves of the topology in depth-first order,
+ * so the leaves under any inner node have consecutive indexes, and keeps
+ * their weights in a Fenwick tree indexed the same way. The weight of the
+ * subtree of an inner node is then the sum of a range, and a leaf is chosen
+ * by descending the Fenwick tree, in O(log n) whatever the scope. Excluded
+ * leaves are kept in a {@link BitSet} by index and weigh nothing until
+ * included again, so choosing never retries or scans them.
+ *
+ * <p/>A selector is a view of the topology when it was built; call
+ * {@link #refresh()} after nodes are added to or removed from the topology.
+ * A selector is not thread safe: a thread choosing nodes should use its own,
+ * which it can refresh and clear between choices.
+ */
+@InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
+@InterfaceStability.Unstable
+public class NetworkTopologyNodeSelector {
+
+  private final NetworkTopology topology;
+  private final ToLongFunction<Node> weigher;
+
+  private Node[] leaves = new Node[0];
+  // path of every node to the range of its leaves, start << 32 | end
+  private Map<String, Long> ranges = new HashMap<String, Long>();
+  private long[] weights = new long[0];
+  // Fenwick tree of the weights of the leaves not excluded; tree[i] is the
+  // sum of the weights of the leaves in [i - lowestOneBit(i), i)
+  private long[] tree = new long[1];
+  private final BitSet excluded = new BitSet();
+
+  /**
+   * Create a selector giving every leaf the same weight.
+   * @param topology the topology to choose leaves of
+   */
+  public NetworkTopologyNodeSelector(NetworkTopology topology) {
+    this(topology, node -> 1L);
+  }
+
+  /**
+   * Create a selector weighing the leaves with a function.
+   * @param topology the topology to choose leaves of
+   * @param weigher gives the initial, non-negative weight of a leaf
+   */
+  public NetworkTopologyNodeSelector(NetworkTopology topology,
+      ToLongFunction<Node> weigher) {
+    this.topology = Preconditions.checkNotNull(topology);
+    this.weigher = Preconditions.checkNotNull(weigher);
+    refresh();
+  }
+
+  /**
+   * Copy the leaves of the topology again and weigh them, clearing the
+   * exclusions.
+   */
+  public void refresh() {
+    List<Node> leafList;
+    Map<String, Long> newRanges = new HashMap<String, Long>();
+    topology.netlock.readLock().lock();
+    try {
+      InnerNode root = topology.clusterMap;
+      leafList = new ArrayList<Node>(root.getNumOfLeaves());
+      addLeaves(root, NodeBase.ROOT, leafList, newRanges);
+    } finally {
+      topology.netlock.readLock().unlock();
+    }
+    int n = leafList.size();
+    Node[] newLeaves = leafList.toArray(new Node[n]);
+    long[] newWeights = new long[n];
+    for (int i = 0; i < n; i++) {
+      newWeights[i] = checkWeight(weigher.applyAsLong(newLeaves[i]));
+    }
+    leaves = newLeaves;
+    ranges = newRanges;
+    weights = newWeights;
+    excluded.clear();
+    buildTree();
+  }
+
+  private static void addLeaves(Node node, String path, List<Node> leafList,
+      Map<String, Long> ranges) {
+    int start = leafList.size();
+    if (node instanceof InnerNode) {
+      for (Node child : ((InnerNode) node).getChildren()) {
+        addLeaves(child, NodeBase.getPath(child), leafList, ranges);
+      }
+    } else {
+      leafList.add(node);
+    }
+    ranges.put(path, range(start, leafList.size()));
+  }
+
+  private void buildTree() {
+    int n = leaves.length;
+    tree = new long[n + 1];
+    for (int i = 0; i < n; i++) {
+      if (!excluded.get(i)) {
+        tree[i + 1] = weights[i];
+      }
+    }
+    for (int i = 1; i <= n; i++) {
+      int parent = i + Integer.lowestOneBit(i);
+      if (parent <= n) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+  /**
+   * Change the weight of a leaf.
+   * @param node a leaf of the topology
+   * @param weight its new, non-negative weight
+   * @return false if the node is not a leaf of the topology as last
+   *         refreshed
+   */
+  public boolean setWeight(Node node, long weight) {
+    checkWeight(weight);
+    int index = getLeafIndex(node);
+    if (index < 0) {
+      return false;
+    }
+    if (!excluded.get(index)) {
+      addToTree(index, weight - weights[index]);
+    }
+    weights[index] = weight;
+    return true;
+  }
+
+  /**
+   * Exclude a node from the choices until it is included again.
+   * @param node a leaf, or an inner node to exclude all the leaves under it
+   * @return the number of leaves newly excluded
+   */
+  public int exclude(Node node) {
+    Long range = node == null ? null : ranges.get(NodeBase.getPath(node));
+    if (range == null) {
+      return 0;
+    }
+    int count = 0;
+    for (int i = excluded.nextClearBit(start(range)); i < end(range);
+        i = excluded.nextClearBit(i + 1)) {
+      excluded.set(i);
+      addToTree(i, -weights[i]);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Exclude nodes from the choices until they are included again.
+   * @param nodes leaves, or inner nodes to exclude all the leaves under them
+   * @return the number of leaves newly excluded
+   */
+  public int exclude(Collection<? extends Node> nodes) {
+    int count = 0;
+    for (Node node : nodes) {
+      count += exclude(node);
+    }
+    return count;
+  }
+
+  /**
+   * Make an excluded node a choice again.
+   * @param node a leaf, or an inner node to include all the leaves under it
+   * @return the number of leaves no longer excluded
+   */
+  public int include(Node node) {
+    Long range = node == null ? null : ranges.get(NodeBase.getPath(node));
+    if (range == null) {
+      return 0;
+    }
+    int count = 0;
+    for (int i = excluded.nextSetBit(start(range)); i >= 0 && i < end(range);
+        i = excluded.nextSetBit(i + 1)) {
+      excluded.clear(i);
+      addToTree(i, weights[i]);
+      count++;
+    }
+    return count;
+  }
+
+  /** Make every leaf a choice again. */
+  public void clearExclusions() {
+    for (int i = excluded.nextSetBit(0); i >= 0;
+        i = excluded.nextSetBit(i + 1)) {
+      addToTree(i, weights[i]);
+    }
+    excluded.clear();
+  }
+
+  /**
+   * Randomly choose a leaf from <i>scope</i> which is not excluded.
+   *
+   * If scope starts with ~, choose one from the all nodes except for the
+   * ones in <i>scope</i>; otherwise, choose one from <i>scope</i>.
+   *
+   * @param scope range of nodes from which a node will be chosen
+   * @return the chosen node, null if no leaf with a positive weight is left
+   */
+  public Node chooseRandom(String scope) {
+    boolean outside = scope.startsWith("~");
+    Long range = ranges.get(NodeBase.normalize(outside ?
+        scope.substring(1) : scope));
+    if (!outside) {
+      return range == null ? null : chooseRandom(start(range), end(range),
+          0, 0);
+    } else if (range == null) {
+      return chooseRandom(0, leaves.length, 0, 0);
+    } else {
+      return chooseRandom(0, start(range), end(range), leaves.length);
+    }
+  }
+
+  /**
+   * Randomly choose distinct leaves from <i>scope</i> which are not
+   * excluded, each chosen with a probability proportional to its weight
+   * among the leaves left. The chosen leaves stay excluded.
+   *
+   * @param scope range of nodes from which nodes will be chosen, as for
+   *     {@link #chooseRandom(String)}
+   * @param count the number of nodes to choose
+   * @return the chosen nodes, fewer than <i>count</i> if no leaf with a
+   *         positive weight is left
+   */
+  public List<Node> chooseRandom(String scope, int count) {
+    Preconditions.checkArgument(count >= 0, "Invalid count %s", count);
+    List<Node> chosen = new ArrayList<Node>(count);
+    for (int i = 0; i < count; i++) {
+      Node node = chooseRandom(scope);
+      if (node == null) {
+        break;
+      }
+      exclude(node);
+      chosen.add(node);
+    }
+    return chosen;
+  }
+
+  /**
+   * Choose a leaf in [start1, end1) or [start2, end2) with a probability
+   * proportional to its weight.
+   */
+  private Node chooseRandom(int start1, int end1, int start2, int end2) {
+    long base1 = prefixSum(start1);
+    long weight1 = prefixSum(end1) - base1;
+    long base2 = prefixSum(start2);
+    long weight2 = prefixSum(end2) - base2;
+    if (weight1 + weight2 <= 0) {
+      return null;
+    }
+    long target = ThreadLocalRandom.current().nextLong(weight1 + weight2);
+    if (target < weight1) {
+      target += base1;
+    } else {
+      target += base2 - weight1;
+    }
+    return leaves[findLeaf(target)];
+  }
+
+  /** @return the sum of the weights of the leaves in [0, end) */
+  private long prefixSum(int end) {
+    long sum = 0;
+    for (int i = end; i > 0; i -= Integer.lowestOneBit(i)) {
+      sum += tree[i];
+    }
+    return sum;
+  }
+
+  /**
+   * @return the index i of the leaf where
+   *         prefixSum(i) &lt;= target &lt; prefixSum(i + 1)
+   */
+  private int findLeaf(long target) {
+    int index = 0;
+    for (int step = Integer.highestOneBit(leaves.length); step > 0;
+        step >>= 1) {
+      int next = index + step;
+      if (next <= leaves.length && tree[next] <= target) {
+        index = next;
+        target -= tree[next];
+      }
+    }
+    return index;
+  }
+
+  private void addToTree(int index, long delta) {
+    for (int i = index + 1; i < tree.length; i += Integer.lowestOneBit(i)) {
+      tree[i] += delta;
+    }
+  }
+
+  private int getLeafIndex(Node node) {
+    Long range = node == null ? null : ranges.get(NodeBase.getPath(node));
+    if (range == null || end(range) - start(range) != 1 ||
+        node instanceof InnerNode) {
+      return -1;
+    }
+    return start(range);
+  }
+
+  private static long checkWeight(long weight) {
+    Preconditions.checkArgument(weight >= 0, "Negative weight %s", weight);
+    return weight;
+  }
+
+  private static long range(int start, int end) {
+    return ((long) start << 32) | end;
+  }
+
+  private static int start(long range) {
+    return (int) (range >>> 32);
+  }
+
+  private static int end(long range) {
+    return (int) range;
+  }
+}
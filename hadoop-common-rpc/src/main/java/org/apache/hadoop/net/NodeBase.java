@@ -130,12 +130,55 @@ public class NodeBase implements Node {
     if (!(to instanceof NodeBase)) {
       return false;
     }
-    return getPath(this).equals(getPath((NodeBase)to));
+    return pathEquals(this, (NodeBase)to);
   }
 
   @Override
   public int hashCode() {
-    return getPath(this).hashCode();
+    // the hash code of getPath(this), without building the path
+    String location = String.valueOf(getNetworkLocation());
+    String name = String.valueOf(getName());
+    int length = location.length() + 1 + name.length();
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + pathCharAt(location, name, i);
+    }
+    return hash;
+  }
+
+  /**
+   * Compare the paths of two nodes without building them, as this runs
+   * for every level of every distance computed.
+   */
+  private static boolean pathEquals(Node node1, Node node2) {
+    String location1 = String.valueOf(node1.getNetworkLocation());
+    String name1 = String.valueOf(node1.getName());
+    String location2 = String.valueOf(node2.getNetworkLocation());
+    String name2 = String.valueOf(node2.getName());
+    if (location1.length() == location2.length()) {
+      return location1.equals(location2) && name1.equals(name2);
+    }
+    int length = location1.length() + 1 + name1.length();
+    if (length != location2.length() + 1 + name2.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (pathCharAt(location1, name1, i) != pathCharAt(location2, name2, i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the character at <i>index</i> of the path of a node */
+  private static char pathCharAt(String location, String name, int index) {
+    if (index < location.length()) {
+      return location.charAt(index);
+    }
+    if (index == location.length()) {
+      return PATH_SEPARATOR;
+    }
+    return name.charAt(index - location.length() - 1);
   }
 
   /** @return this node's path as its string representation */
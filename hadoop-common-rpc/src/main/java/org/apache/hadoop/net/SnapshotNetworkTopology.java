@@ -0,0 +1,418 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * A {@link NetworkTopology} whose queries read an immutable snapshot of the
+ * tree instead of taking {@link #netlock}. Nodes are still added and removed
+ * under the write lock; the first query after a change takes the read lock
+ * once to copy the tree into a new snapshot, and every later query reads
+ * that snapshot without locking until the next change.
+ *
+ * <p/>In a snapshot every leaf carries the ids of its ancestors, so
+ * {@link #getDistance(Node, Node)} and {@link #isOnSameRack(Node, Node)}
+ * compare two small arrays instead of walking parent links. The leaves are
+ * laid out so that every inner node covers a contiguous range of them, which
+ * lets {@link #chooseRandom(String, Collection)} and
+ * {@link #countNumOfAvailableNodes(String, Collection)} work on index ranges.
+ * Nodes that are not in the snapshot, inner nodes among them, are handled by
+ * the locking implementation.
+ *
+ * <p/>Use it by setting
+ * {@link org.apache.hadoop.fs.CommonConfigurationKeysPublic#NET_TOPOLOGY_IMPL_KEY}
+ * to this class. Random choices use {@link ThreadLocalRandom}, so
+ * {@link #setRandomSeed(long)} has no effect on them.
+ */
+@InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
+@InterfaceStability.Unstable
+public class SnapshotNetworkTopology extends NetworkTopology {
+
+  /** Number of changes to the tree, only changed under the write lock. */
+  private volatile long version;
+  private volatile Snapshot snapshot;
+  private final Object snapshotLock = new Object();
+
+  /** The leaves under an inner node, or a leaf itself. */
+  private static final class Entry {
+    // first and last + 1 index in Snapshot#leaves
+    private final int start;
+    private final int end;
+    // ids of the inner nodes from the root down to the parent of a leaf,
+    // null for inner nodes
+    private final int[] ancestorIds;
+
+    Entry(int start, int end, int[] ancestorIds) {
+      this.start = start;
+      this.end = end;
+      this.ancestorIds = ancestorIds;
+    }
+  }
+
+  /** An immutable copy of the tree. */
+  private static final class Snapshot {
+    private final long version;
+    private final Node[] leaves;
+    // normalized path to node
+    private final Map<String, Node> nodes;
+    private final IdentityHashMap<Node, Entry> entries;
+
+    private Snapshot(long version, InnerNode root) {
+      this.version = version;
+      List<Node> leafList = new ArrayList<Node>(root.getNumOfLeaves());
+      this.nodes = new HashMap<String, Node>();
+      this.entries = new IdentityHashMap<Node, Entry>();
+      nodes.put(NodeBase.ROOT, root);
+      add(root, new int[0], new int[] {0}, leafList);
+      this.leaves = leafList.toArray(new Node[leafList.size()]);
+    }
+
+    private void add(InnerNode node, int[] parentIds, int[] nextId,
+        List<Node> leafList) {
+      int start = leafList.size();
+      int[] ids = Arrays.copyOf(parentIds, parentIds.length + 1);
+      ids[parentIds.length] = nextId[0]++;
+      for (Node child : node.getChildren()) {
+        nodes.put(NodeBase.getPath(child), child);
+        if (child instanceof InnerNode) {
+          add((InnerNode) child, ids, nextId, leafList);
+        } else {
+          entries.put(child,
+              new Entry(leafList.size(), leafList.size() + 1, ids));
+          leafList.add(child);
+        }
+      }
+      entries.put(node, new Entry(start, leafList.size(), null));
+    }
+
+    Node getNode(String loc) {
+      return nodes.get(NodeBase.normalize(loc));
+    }
+
+    /** @return the entry of the node at the path of the given node */
+    Entry getEntryByPath(Node node) {
+      Node n = nodes.get(NodeBase.getPath(node));
+      return n == null ? null : entries.get(n);
+    }
+
+    int[] getAncestorIds(Node node) {
+      Entry entry = entries.get(node);
+      return entry == null ? null : entry.ancestorIds;
+    }
+  }
+
+  /**
+   * @return the snapshot of the current tree, null if the current thread
+   *         holds the write lock, in which case the tree must be read
+   *         directly
+   */
+  private Snapshot getSnapshot() {
+    if (netlock instanceof ReentrantReadWriteLock &&
+        ((ReentrantReadWriteLock) netlock).isWriteLockedByCurrentThread()) {
+      return null;
+    }
+    Snapshot current = snapshot;
+    if (current != null && current.version == version) {
+      return current;
+    }
+    netlock.readLock().lock();
+    try {
+      synchronized (snapshotLock) {
+        // the version does not change while the read lock is held
+        current = snapshot;
+        if (current == null || current.version != version) {
+          current = new Snapshot(version, clusterMap);
+          snapshot = current;
+        }
+        return current;
+      }
+    } finally {
+      netlock.readLock().unlock();
+    }
+  }
+
+  @Override
+  protected NetworkTopology init(InnerNode.Factory factory) {
+    netlock.writeLock().lock();
+    try {
+      return super.init(factory);
+    } finally {
+      version++;
+      netlock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void add(Node node) {
+    netlock.writeLock().lock();
+    try {
+      super.add(node);
+    } finally {
+      version++;
+      netlock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void remove(Node node) {
+    netlock.writeLock().lock();
+    try {
+      super.remove(node);
+    } finally {
+      version++;
+      netlock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean contains(Node node) {
+    Snapshot s = getSnapshot();
+    if (s == null || node == null) {
+      return super.contains(node);
+    }
+    return node != clusterMap && s.entries.containsKey(node);
+  }
+
+  @Override
+  public Node getNode(String loc) {
+    Snapshot s = getSnapshot();
+    return s == null ? super.getNode(loc) : s.getNode(loc);
+  }
+
+  @Override
+  public int getNumOfLeaves() {
+    Snapshot s = getSnapshot();
+    return s == null ? super.getNumOfLeaves() : s.leaves.length;
+  }
+
+  @Override
+  public int getDistance(Node node1, Node node2) {
+    Snapshot s = null;
+    if (node1 != null && node2 != null && !node1.equals(node2)) {
+      s = getSnapshot();
+    }
+    if (s != null) {
+      int[] ids1 = s.getAncestorIds(node1);
+      int[] ids2 = s.getAncestorIds(node2);
+      if (ids1 != null && ids2 != null) {
+        int common = 0;
+        if (ids1.length == ids2.length) {
+          // ancestors are the same above the lowest common one
+          common = ids1.length;
+          while (common > 0 && ids1[common - 1] != ids2[common - 1]) {
+            common--;
+          }
+        } else {
+          int min = Math.min(ids1.length, ids2.length);
+          while (common < min && ids1[common] == ids2[common]) {
+            common++;
+          }
+        }
+        return ids1.length + ids2.length - 2 * common + 2;
+      }
+    }
+    return super.getDistance(node1, node2);
+  }
+
+  @Override
+  public boolean isOnSameRack(Node node1, Node node2) {
+    if (node1 == null || node2 == null) {
+      return false;
+    }
+    Snapshot s = getSnapshot();
+    if (s != null) {
+      int[] ids1 = s.getAncestorIds(node1);
+      int[] ids2 = s.getAncestorIds(node2);
+      if (ids1 != null && ids2 != null) {
+        return ids1[ids1.length - 1] == ids2[ids2.length - 1];
+      }
+    }
+    return super.isOnSameRack(node1, node2);
+  }
+
+  @Override
+  public Node chooseRandom(final String scope,
+      final Collection<Node> excludedNodes) {
+    if (scope.startsWith("~")) {
+      return chooseRandom(NodeBase.ROOT, scope.substring(1), excludedNodes);
+    } else {
+      return chooseRandom(scope, null, excludedNodes);
+    }
+  }
+
+  @Override
+  protected Node chooseRandom(final String scope, String excludedScope,
+      final Collection<Node> excludedNodes) {
+    Snapshot s = getSnapshot();
+    if (s == null) {
+      return super.chooseRandom(scope, excludedScope, excludedNodes);
+    }
+    if (excludedScope != null) {
+      if (isChildScope(scope, excludedScope)) {
+        return null;
+      }
+      if (!isChildScope(excludedScope, scope)) {
+        excludedScope = null;
+      }
+    }
+    Node node = s.getNode(scope);
+    if (!(node instanceof InnerNode)) {
+      return excludedNodes != null && excludedNodes.contains(node) ?
+          null : node;
+    }
+    Entry scopeEntry = s.entries.get(node);
+    List<Entry> excluded = new ArrayList<Entry>();
+    if (excludedScope != null) {
+      Node excludedScopeNode = s.getNode(excludedScope);
+      if (excludedScopeNode != null) {
+        excluded.add(s.entries.get(excludedScopeNode));
+      }
+    }
+    if (excludedNodes != null) {
+      for (Node excludedNode : excludedNodes) {
+        Entry entry = s.getEntryByPath(excludedNode);
+        if (entry != null) {
+          excluded.add(entry);
+        }
+      }
+    }
+    int[] ranges = mergeRanges(excluded, scopeEntry);
+    int availableNodes = scopeEntry.end - scopeEntry.start;
+    for (int i = 0; i < ranges.length; i += 2) {
+      availableNodes -= ranges[i + 1] - ranges[i];
+    }
+    if (availableNodes <= 0) {
+      LOG.debug("Failed to find datanode (scope=\"{}\" excludedScope=\"{}\")."
+          + " availableNodes={}", scope, excludedScope, availableNodes);
+      return null;
+    }
+    // the nth leaf of the scope that is not excluded
+    int index = scopeEntry.start +
+        ThreadLocalRandom.current().nextInt(availableNodes);
+    for (int i = 0; i < ranges.length && ranges[i] <= index; i += 2) {
+      index += ranges[i + 1] - ranges[i];
+    }
+    Node ret = s.leaves[index];
+    LOG.debug("chooseRandom returning {}", ret);
+    return ret;
+  }
+
+  /**
+   * @return the ranges of the given entries within the scope, sorted and
+   *         merged, as start and end pairs
+   */
+  private static int[] mergeRanges(List<Entry> entries, Entry scope) {
+    // start and end packed in a long, to sort them by start
+    long[] packed = new long[entries.size()];
+    int count = 0;
+    for (Entry entry : entries) {
+      int start = Math.max(entry.start, scope.start);
+      int end = Math.min(entry.end, scope.end);
+      if (start < end) {
+        packed[count++] = ((long) start << 32) | end;
+      }
+    }
+    Arrays.sort(packed, 0, count);
+    int[] ranges = new int[2 * count];
+    int merged = 0;
+    for (int i = 0; i < count; i++) {
+      int start = (int) (packed[i] >>> 32);
+      int end = (int) packed[i];
+      if (merged > 0 && start <= ranges[merged - 1]) {
+        ranges[merged - 1] = Math.max(ranges[merged - 1], end);
+      } else {
+        ranges[merged++] = start;
+        ranges[merged++] = end;
+      }
+    }
+    return Arrays.copyOf(ranges, merged);
+  }
+
+  @Override
+  public List<Node> getLeaves(String scope) {
+    Snapshot s = getSnapshot();
+    if (s == null) {
+      return super.getLeaves(scope);
+    }
+    Node node = s.getNode(scope);
+    List<Node> leafNodes = new ArrayList<Node>();
+    if (!(node instanceof InnerNode)) {
+      leafNodes.add(node);
+    } else {
+      Entry entry = s.entries.get(node);
+      leafNodes.addAll(
+          Arrays.asList(s.leaves).subList(entry.start, entry.end));
+    }
+    return leafNodes;
+  }
+
+  @Override
+  public int countNumOfAvailableNodes(String scope,
+      Collection<Node> excludedNodes) {
+    Snapshot s = getSnapshot();
+    if (s == null) {
+      return super.countNumOfAvailableNodes(scope, excludedNodes);
+    }
+    boolean isExcluded = false;
+    if (scope.startsWith("~")) {
+      isExcluded = true;
+      scope = scope.substring(1);
+    }
+    scope = NodeBase.normalize(scope);
+    // the number of nodes in both scope & excludedNodes
+    int excludedCountInScope = 0;
+    // the number of nodes outside scope & excludedNodes
+    int excludedCountOffScope = 0;
+    if (excludedNodes != null) {
+      for (Node node : excludedNodes) {
+        Entry entry = s.getEntryByPath(node);
+        if (entry == null) {
+          continue;
+        }
+        if (isNodeInScope(node, scope)) {
+          excludedCountInScope += entry.end - entry.start;
+        } else {
+          excludedCountOffScope++;
+        }
+      }
+    }
+    Node n = s.getNode(scope);
+    int scopeNodeCount = 0;
+    if (n != null) {
+      Entry entry = s.entries.get(n);
+      scopeNodeCount = entry.end - entry.start;
+    }
+    if (isExcluded) {
+      return s.leaves.length - scopeNodeCount - excludedCountOffScope;
+    } else {
+      return scopeNodeCount - excludedCountInScope;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.annotation.Metrics;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+import org.apache.hadoop.metrics2.lib.MutableStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is for maintaining the statistics of the asynchronous
+ * resolution of a {@link CachedDNSToSwitchMapping} and publishing them
+ * through the metrics interfaces.
+ */
+@InterfaceAudience.Private
+@Metrics(about="Topology resolution metrics", context="rpc")
+public class TopologyResolutionMetrics {
+
+  static final Logger LOG =
+      LoggerFactory.getLogger(TopologyResolutionMetrics.class);
+  final MetricsRegistry registry;
+  final String name;
+  private boolean registered;
+
+  TopologyResolutionMetrics(String mappingName) {
+    name = "TopologyResolution." + mappingName;
+    registry = new MetricsRegistry(name);
+    // created here rather than by annotations, so that they are usable when
+    // the metrics are not registered
+    missLatency = registry.newRate("missLatency",
+        "Time from a cache miss to its resolution in milliseconds");
+    batchSize = registry.newStat("batchSize",
+        "Number of hosts resolved per batch", "Batches", "Hosts", true);
+    resolutionFailures = registry.newCounter("resolutionFailures",
+        "Number of hosts the mapping failed to resolve", 0L);
+    refreshes = registry.newCounter("refreshes",
+        "Number of cached locations refreshed", 0L);
+    LOG.debug("Initialized {}", registry);
+  }
+
+  /**
+   * Create the metrics of a mapping and register them, unless metrics of
+   * another mapping of the same name are registered already.
+   * @param mappingName the name of the mapping
+   * @return the metrics
+   */
+  public static TopologyResolutionMetrics create(String mappingName) {
+    TopologyResolutionMetrics m = new TopologyResolutionMetrics(mappingName);
+    try {
+      DefaultMetricsSystem.instance().register(m.name, null, m);
+      m.registered = true;
+    } catch (MetricsException e) {
+      LOG.debug("Not registering {}", m.name, e);
+    }
+    return m;
+  }
+
+  final MutableRate missLatency;
+  final MutableStat batchSize;
+  final MutableCounterLong resolutionFailures;
+  final MutableCounterLong refreshes;
+
+  /**
+   * Add the time taken to resolve a cache miss
+   * @param millis the time in milliseconds
+   */
+  public void addMissLatency(long millis) {
+    missLatency.add(millis);
+  }
+
+  /**
+   * Add the size of a batch of hosts resolved together
+   * @param hosts the number of hosts
+   */
+  public void addBatchSize(int hosts) {
+    batchSize.add(hosts);
+  }
+
+  /**
+   * Increment the hosts the mapping failed to resolve by count
+   * @param count the number of hosts
+   */
+  public void incrResolutionFailures(int count) {
+    resolutionFailures.incr(count);
+  }
+
+  /**
+   * One cached location refreshed
+   */
+  public void incrRefreshes() {
+    refreshes.incr();
+  }
+
+  /**
+   * Unregister the metrics
+   */
+  public void shutdown() {
+    if (registered) {
+      DefaultMetricsSystem.instance().unregisterSource(name);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A {@link Socket} of a connected UNIX domain socket channel, so that code
+ * written for the sockets of a socket factory, such as the IPC client, can
+ * use it through {@link org.apache.hadoop.net.NetUtils#getInputStream} and
+ * {@link org.apache.hadoop.net.NetUtils#getOutputStream}. The channel has
+ * no IP address, so the TCP options are ignored and the addresses are null.
+ */
+@InterfaceAudience.Private
+class UnixDomainSocketAdapter extends Socket {
+  private final SocketChannel channel;
+  private final String path;
+  private volatile int soTimeout;
+
+  UnixDomainSocketAdapter(SocketChannel channel, String path) {
+    this.channel = channel;
+    this.path = path;
+  }
+
+  @Override
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public void connect(SocketAddress endpoint, int timeout)
+      throws IOException {
+    throw new SocketException("Already connected to " + path);
+  }
+
+  @Override
+  public void bind(SocketAddress bindpoint) throws IOException {
+    throw new SocketException("Already connected to " + path);
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return null;
+  }
+
+  @Override
+  public InetAddress getLocalAddress() {
+    return null;
+  }
+
+  @Override
+  public int getPort() {
+    return 0;
+  }
+
+  @Override
+  public int getLocalPort() {
+    return -1;
+  }
+
+  @Override
+  public SocketAddress getRemoteSocketAddress() {
+    return null;
+  }
+
+  @Override
+  public SocketAddress getLocalSocketAddress() {
+    return null;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return Channels.newInputStream(channel);
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return Channels.newOutputStream(channel);
+  }
+
+  /** The timeout is applied by the streams of the channel. */
+  @Override
+  public void setSoTimeout(int timeout) throws SocketException {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout can't be negative");
+    }
+    soTimeout = timeout;
+  }
+
+  @Override
+  public int getSoTimeout() {
+    return soTimeout;
+  }
+
+  @Override
+  public void setTcpNoDelay(boolean on) {
+  }
+
+  @Override
+  public void setKeepAlive(boolean on) {
+  }
+
+  @Override
+  public void setTrafficClass(int tc) {
+  }
+
+  @Override
+  public void setReuseAddress(boolean on) {
+  }
+
+  @Override
+  public void setPerformancePreferences(int connectionTime, int latency,
+      int bandwidth) {
+  }
+
+  @Override
+  public void shutdownInput() throws IOException {
+    channel.shutdownInput();
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    channel.shutdownOutput();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public boolean isBound() {
+    return true;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return !channel.isOpen();
+  }
+
+  @Override
+  public String toString() {
+    return "UnixDomainSocket[path=" + path + "]";
+  }
+}
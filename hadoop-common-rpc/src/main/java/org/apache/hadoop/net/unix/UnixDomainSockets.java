@@ -0,0 +1,368 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net.unix;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UNIX domain sockets through the channels of the JDK, without native code.
+ *
+ * Unlike {@link DomainSocket}, which needs libhadoop, these are the
+ * ordinary {@link SocketChannel}s and {@link ServerSocketChannel}s of the
+ * UNIX protocol family, so they can be selected with the TCP channels of the
+ * IPC client and server. The JDK supports them from Java 16; the classes are
+ * looked up by reflection, and {@link #isSupported()} is false on older
+ * runtimes.
+ *
+ * An address of a UNIX domain socket is a URI of the unix scheme, such as
+ * unix:///var/run/hadoop/ipc._PORT.sock. As with {@link DomainSocket}, the
+ * string _PORT in its path is replaced by the TCP port of the server. The
+ * path must contain it: a client finds the socket of a server by its port,
+ * and every server of a host needs a socket of its own.
+ *
+ * The directories above a socket must not be writable by other users, see
+ * {@link #validatePath(String)}, and a socket a server still listens on is
+ * never replaced.
+ */
+@InterfaceAudience.Private
+public final class UnixDomainSockets {
+  static final Logger LOG = LoggerFactory.getLogger(UnixDomainSockets.class);
+
+  /** The scheme of the addresses of UNIX domain sockets. */
+  public static final String SCHEME = "unix";
+  private static final String PORT = "_PORT";
+  private static final Set<PosixFilePermission> SOCKET_PERMISSIONS =
+      PosixFilePermissions.fromString("rw-rw-rw-");
+  private static final int STICKY_BIT = 01000;
+
+  private static final String loadingFailureReason;
+  private static final ProtocolFamily UNIX;
+  private static final Class<?> ADDRESS_CLASS;
+  private static final Method NEW_ADDRESS;
+  private static final Method OPEN_SERVER_CHANNEL;
+  private static final Method OPEN_CHANNEL;
+
+  static {
+    ProtocolFamily unix = null;
+    Class<?> addressClass = null;
+    Method newAddress = null;
+    Method openServerChannel = null;
+    Method openChannel = null;
+    String problem = null;
+    try {
+      unix = StandardProtocolFamily.valueOf("UNIX");
+      addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+      newAddress = addressClass.getMethod("of", String.class);
+      openServerChannel =
+          ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+      openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+    } catch (IllegalArgumentException | ReflectiveOperationException e) {
+      problem = "UNIX domain socket channels need Java 16 or later: " + e;
+    }
+    loadingFailureReason = problem;
+    UNIX = unix;
+    ADDRESS_CLASS = addressClass;
+    NEW_ADDRESS = newAddress;
+    OPEN_SERVER_CHANNEL = openServerChannel;
+    OPEN_CHANNEL = openChannel;
+  }
+
+  private UnixDomainSockets() {
+  }
+
+  /**
+   * @return true if the runtime supports UNIX domain socket channels
+   */
+  public static boolean isSupported() {
+    return loadingFailureReason == null;
+  }
+
+  /**
+   * @return the reason UNIX domain socket channels are not supported, null
+   *         if they are
+   */
+  public static String getLoadingFailureReason() {
+    return loadingFailureReason;
+  }
+
+  /**
+   * Get the path of the socket of an address with the unix scheme.
+   *
+   * @param address an address, such as unix:///var/run/hadoop/ipc._PORT.sock
+   * @param port    the TCP port of the server, to replace _PORT with
+   * @return the path, null if the address is empty or of another scheme
+   * @throws IllegalArgumentException if the address has the unix scheme
+   *         but no absolute path containing _PORT
+   */
+  public static String getPath(String address, int port) {
+    if (address == null || address.isEmpty()) {
+      return null;
+    }
+    URI uri;
+    try {
+      uri = new URI(address);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid address " + address, e);
+    }
+    if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+      return null;
+    }
+    String path = uri.getPath();
+    if (path == null || !path.startsWith("/") || !path.contains(PORT)) {
+      throw new IllegalArgumentException("No absolute path containing " +
+          PORT + " in UNIX domain socket address " + address);
+    }
+    return path.replace(PORT, String.valueOf(port));
+  }
+
+  /**
+   * Bind a new server channel to a path, replacing the socket file a
+   * previous server may have left behind.  The socket is readable and
+   * writable by everybody, so any local user can connect, as with
+   * {@link DomainSocket}.
+   *
+   * @param path    the path of the socket
+   * @param backlog the maximum number of pending connections
+   * @return the bound channel, in blocking mode
+   * @throws IOException if the path is not safe, see
+   *         {@link #validatePath(String)}, another server listens on it,
+   *         or the channel cannot be bound
+   */
+  public static ServerSocketChannel bind(String path, int backlog)
+      throws IOException {
+    checkSupported();
+    validatePath(path);
+    removeStaleSocket(path);
+    ServerSocketChannel channel =
+        (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, UNIX);
+    try {
+      channel.bind(newAddress(path), backlog);
+    } catch (IOException e) {
+      channel.close();
+      throw new IOException("Failed to bind to " + path + ": " + e, e);
+    }
+    try {
+      // not left to the umask, clients of other users must be able to connect
+      Files.setPosixFilePermissions(Paths.get(path), SOCKET_PERMISSIONS);
+    } catch (IOException | UnsupportedOperationException e) {
+      channel.close();
+      delete(path);
+      throw new IOException("Failed to set the permissions of " + path +
+          ": " + e, e);
+    }
+    return channel;
+  }
+
+  /**
+   * Check that no other user can replace the socket at a path, the pure
+   * Java counterpart of {@link DomainSocket#validateSocketPathSecurity0}.
+   * A client picks the socket of a server by its path only, so whoever
+   * could move the socket out of the way and bind their own would get the
+   * connection headers, SASL exchanges and calls of every local client.
+   *
+   * Every directory above the socket must be owned by this user or root,
+   * and must not be writable by the group or others unless it has the
+   * sticky bit, such as /tmp.  Like DomainSocket, the path is only checked
+   * once, when it is bound.
+   *
+   * @param path the path of the socket
+   * @throws IOException if the path is not safe or cannot be checked
+   */
+  static void validatePath(String path) throws IOException {
+    String user = System.getProperty("user.name");
+    Path dir = Paths.get(path).toAbsolutePath().getParent();
+    for (; dir != null; dir = dir.getParent()) {
+      PosixFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(dir, PosixFileAttributes.class);
+      } catch (UnsupportedOperationException e) {
+        throw new IOException("Cannot check the permissions of " + dir +
+            " for the UNIX domain socket " + path, e);
+      }
+      String owner = attributes.owner().getName();
+      if (!owner.equals(user) && !owner.equals("root")) {
+        throw new IOException("The path component " + dir + " of " + path +
+            " is owned by " + owner + ", not by root or " + user + ". " +
+            "Another user could replace the UNIX domain socket.");
+      }
+      Set<PosixFilePermission> permissions = attributes.permissions();
+      if ((permissions.contains(PosixFilePermission.GROUP_WRITE) ||
+          permissions.contains(PosixFilePermission.OTHERS_WRITE)) &&
+          !isSticky(dir)) {
+        throw new IOException("The path component " + dir + " of " + path +
+            " is writable by " +
+            (permissions.contains(PosixFilePermission.OTHERS_WRITE)
+                ? "others" : "its group") + " and not sticky. " +
+            "Another user could replace the UNIX domain socket.");
+      }
+    }
+  }
+
+  /** @return true if the sticky bit of a directory is known to be set */
+  private static boolean isSticky(Path dir) {
+    try {
+      // the mode is only available through the JDK's unix attribute view
+      Object mode = Files.getAttribute(dir, "unix:mode");
+      return mode instanceof Integer && ((Integer) mode & STICKY_BIT) != 0;
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Delete the socket a previous server left behind at a path.  Anything
+   * but a socket is left alone, and so is the socket of a server that
+   * still listens on it, e.g. a server on another address of this host
+   * with the same port.
+   */
+  private static void removeStaleSocket(String path) throws IOException {
+    if (!isSocketFile(Paths.get(path))) {
+      // bind fails on whatever else is there
+      return;
+    }
+    boolean live;
+    SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    try {
+      channel.connect(newAddress(path));
+      live = true;
+    } catch (IOException e) {
+      live = false;
+    } finally {
+      channel.close();
+    }
+    if (live) {
+      throw new IOException("Another server listens on " + path);
+    }
+    Files.deleteIfExists(Paths.get(path));
+  }
+
+  /**
+   * @return true if the file at a path is neither a regular file, nor a
+   *         directory, nor a link, i.e. most likely a socket
+   */
+  private static boolean isSocketFile(Path path) throws IOException {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class,
+          LinkOption.NOFOLLOW_LINKS).isOther();
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Connect to the socket at a path.
+   *
+   * @param path the path of the socket
+   * @return a socket of the connected channel, which supports
+   *         {@link Socket#getChannel()} and the read timeout, but none of
+   *         the TCP options
+   * @throws IOException if the socket cannot be connected
+   */
+  public static Socket connect(String path) throws IOException {
+    checkSupported();
+    SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    try {
+      channel.connect(newAddress(path));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return new UnixDomainSocketAdapter(channel, path);
+  }
+
+  /**
+   * Delete the socket file at a path, if any.  Anything but a socket is
+   * left alone.
+   * @param path the path of the socket
+   */
+  public static void delete(String path) {
+    try {
+      if (isSocketFile(Paths.get(path))) {
+        Files.deleteIfExists(Paths.get(path));
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to delete UNIX domain socket " + path, e);
+    }
+  }
+
+  /**
+   * @param channel a bound or connected channel
+   * @return true if the channel is a UNIX domain socket
+   */
+  public static boolean isUnixDomain(NetworkChannel channel) {
+    if (ADDRESS_CLASS == null) {
+      return false;
+    }
+    try {
+      return ADDRESS_CLASS.isInstance(channel.getLocalAddress());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static SocketAddress newAddress(String path) throws IOException {
+    return (SocketAddress) invoke(NEW_ADDRESS, path);
+  }
+
+  private static void checkSupported() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(loadingFailureReason);
+    }
+  }
+
+  private static Object invoke(Method method, Object arg) throws IOException {
+    try {
+      return method.invoke(null, arg);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -173,9 +173,24 @@ public abstract class ProtoUtil {
   public static RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
       RpcRequestHeaderProto.OperationProto operation, int callId,
       int retryCount, byte[] uuid, AlignmentContext alignmentContext) {
+    return makeRpcRequestHeader(rpcKind, operation, callId, retryCount, uuid,
+        alignmentContext, 0);
+  }
+
+  /**
+   * @param timeoutMs how long the caller waits for the response, 0 if it
+   *        does not say
+   */
+  public static RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
+      RpcRequestHeaderProto.OperationProto operation, int callId,
+      int retryCount, byte[] uuid, AlignmentContext alignmentContext,
+      long timeoutMs) {
     RpcRequestHeaderProto.Builder result = RpcRequestHeaderProto.newBuilder();
     result.setRpcKind(convert(rpcKind)).setRpcOp(operation).setCallId(callId)
         .setRetryCount(retryCount).setClientId(ByteString.copyFrom(uuid));
+    if (timeoutMs > 0) {
+      result.setTimeoutMs(timeoutMs);
+    }
 
     // Add tracing info if we are currently tracing.
     Span span = Tracer.getCurrentSpan();
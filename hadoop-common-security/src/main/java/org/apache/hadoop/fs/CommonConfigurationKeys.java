@@ -88,6 +88,78 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final int IPC_MAXIMUM_RESPONSE_LENGTH_DEFAULT =
       128 * 1024 * 1024;
 
+  /** Recycle request packet buffers through a shared size-classed pool. */
+  public static final String IPC_SERVER_REQUEST_BUFFER_POOL_ENABLED_KEY =
+      "ipc.server.request-buffer-pool.enabled";
+  /** Default value for IPC_SERVER_REQUEST_BUFFER_POOL_ENABLED_KEY. */
+  public static final boolean IPC_SERVER_REQUEST_BUFFER_POOL_ENABLED_DEFAULT =
+      false;
+  /** Largest request packet, in bytes, that is served from the pool. */
+  public static final String IPC_SERVER_REQUEST_BUFFER_POOL_MAX_BUFFER_SIZE_KEY =
+      "ipc.server.request-buffer-pool.max-buffer-size";
+  /** Default value for IPC_SERVER_REQUEST_BUFFER_POOL_MAX_BUFFER_SIZE_KEY. */
+  public static final int
+      IPC_SERVER_REQUEST_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT = 64 * 1024;
+  /** Upper bound on the bytes held by idle pooled request buffers. */
+  public static final String IPC_SERVER_REQUEST_BUFFER_POOL_MAX_RETAINED_KEY =
+      "ipc.server.request-buffer-pool.max-retained-bytes";
+  /** Default value for IPC_SERVER_REQUEST_BUFFER_POOL_MAX_RETAINED_KEY. */
+  public static final long IPC_SERVER_REQUEST_BUFFER_POOL_MAX_RETAINED_DEFAULT =
+      64L * 1024 * 1024;
+
+  /**
+   * Decode bytes fields of requests as views of the request packet instead
+   * of copies.  Packets recycled by the request buffer pool are still
+   * copied out of.  A service that keeps such a field keeps the whole
+   * packet reachable.
+   */
+  public static final String IPC_SERVER_REQUEST_ALIASING_ENABLED_KEY =
+      "ipc.server.request-aliasing.enabled";
+  /** Default value for IPC_SERVER_REQUEST_ALIASING_ENABLED_KEY. */
+  public static final boolean IPC_SERVER_REQUEST_ALIASING_ENABLED_DEFAULT =
+      false;
+  /**
+   * Drop calls taken from the call queue after the deadline their client
+   * sent, and the responses of calls done after it.  The client fails a
+   * call with a SocketTimeoutException at that deadline, so nobody waits
+   * for a dropped response.
+   */
+  public static final String IPC_SERVER_DEADLINE_SHEDDING_ENABLED_KEY =
+      "ipc.server.deadline-shedding.enabled";
+  /** Default value for IPC_SERVER_DEADLINE_SHEDDING_ENABLED_KEY. */
+  public static final boolean IPC_SERVER_DEADLINE_SHEDDING_ENABLED_DEFAULT =
+      false;
+  /**
+   * Serialize protobuf responses into pooled direct buffers, and flush
+   * queued responses of a connection with gathering writes.
+   */
+  public static final String IPC_SERVER_RESPONSE_BUFFER_POOL_ENABLED_KEY =
+      "ipc.server.response-buffer-pool.enabled";
+  /** Default value for IPC_SERVER_RESPONSE_BUFFER_POOL_ENABLED_KEY. */
+  public static final boolean IPC_SERVER_RESPONSE_BUFFER_POOL_ENABLED_DEFAULT =
+      false;
+  /** Largest response, in bytes, that is written from a direct buffer. */
+  public static final String IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_BUFFER_SIZE_KEY =
+      "ipc.server.response-buffer-pool.max-buffer-size";
+  /** Default value for IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_BUFFER_SIZE_KEY. */
+  public static final int
+      IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT = 64 * 1024;
+  /** Upper bound on the bytes held by idle pooled response buffers. */
+  public static final String IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_RETAINED_KEY =
+      "ipc.server.response-buffer-pool.max-retained-bytes";
+  /** Default value for IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_RETAINED_KEY. */
+  public static final long IPC_SERVER_RESPONSE_BUFFER_POOL_MAX_RETAINED_DEFAULT =
+      32L * 1024 * 1024;
+
+  /**
+   * Accept batch packets from clients that ask for them.  The responses of
+   * a batch are held until all of its calls are done and written together.
+   */
+  public static final String IPC_SERVER_BATCH_ENABLED_KEY =
+      "ipc.server.batch.enabled";
+  /** Default value for IPC_SERVER_BATCH_ENABLED_KEY. */
+  public static final boolean IPC_SERVER_BATCH_ENABLED_DEFAULT = false;
+
   /** How many calls per handler are allowed in the queue. */
   public static final String  IPC_SERVER_HANDLER_QUEUE_SIZE_KEY =
     "ipc.server.handler.queue.size";
@@ -104,6 +176,13 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final String IPC_SCHEDULER_IMPL_KEY = "scheduler.impl";
   public static final String IPC_IDENTITY_PROVIDER_KEY = "identity-provider.impl";
   public static final String IPC_COST_PROVIDER_KEY = "cost-provider.impl";
+  /**
+   * Admission controller deciding whether a call may be queued at all, see
+   * {@link org.apache.hadoop.ipc.AdmissionController}. Unset by default,
+   * which admits every call.
+   */
+  public static final String IPC_ADMISSION_CONTROLLER_KEY =
+      "admission-controller.impl";
   public static final String IPC_BACKOFF_ENABLE = "backoff.enable";
   public static final boolean IPC_BACKOFF_ENABLE_DEFAULT = false;
   // Callqueue overflow trigger failover for stateless servers.
@@ -111,6 +190,13 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
       "callqueue.overflow.trigger.failover";
   public static final boolean IPC_CALLQUEUE_SERVER_FAILOVER_ENABLE_DEFAULT =
       false;
+  /**
+   * Number of partitions of a PartitionedCallQueue.  A value &lt;= 0 uses
+   * one partition per reader thread.
+   */
+  public static final String IPC_CALLQUEUE_PARTITIONS_KEY =
+      "callqueue.partitions";
+  public static final int IPC_CALLQUEUE_PARTITIONS_DEFAULT = 0;
 
   /**
    * IPC scheduler priority levels.
@@ -358,6 +444,37 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
     "ipc.client.connect.max.retries.on.sasl";
   public static final int    IPC_CLIENT_CONNECT_MAX_RETRIES_ON_SASL_DEFAULT = 5;
 
+  /**
+   * Read the responses of all client connections with a few shared selector
+   * threads instead of a reader thread per connection.
+   */
+  public static final String IPC_CLIENT_SELECTOR_ENABLED_KEY =
+      "ipc.client.selector.enabled";
+  /** Default value for IPC_CLIENT_SELECTOR_ENABLED_KEY. */
+  public static final boolean IPC_CLIENT_SELECTOR_ENABLED_DEFAULT = false;
+  /**
+   * Number of selector threads.  They are shared by all clients in the jvm,
+   * so only the value of the first client that enables them is used.
+   */
+  public static final String IPC_CLIENT_SELECTOR_THREADS_KEY =
+      "ipc.client.selector.threads";
+  /** Default value for IPC_CLIENT_SELECTOR_THREADS_KEY. */
+  public static final int IPC_CLIENT_SELECTOR_THREADS_DEFAULT = 2;
+
+  /**
+   * Send the calls queued on a connection as one batch packet when the
+   * server supports it.
+   */
+  public static final String IPC_CLIENT_BATCH_ENABLED_KEY =
+      "ipc.client.batch.enabled";
+  /** Default value for IPC_CLIENT_BATCH_ENABLED_KEY. */
+  public static final boolean IPC_CLIENT_BATCH_ENABLED_DEFAULT = false;
+  /** Maximum number of calls sent in one batch packet. */
+  public static final String IPC_CLIENT_BATCH_MAX_CALLS_KEY =
+      "ipc.client.batch.max-calls";
+  /** Default value for IPC_CLIENT_BATCH_MAX_CALLS_KEY. */
+  public static final int IPC_CLIENT_BATCH_MAX_CALLS_DEFAULT = 64;
+
   /** How often the server scans for idle connections */
   public static final String IPC_CLIENT_CONNECTION_IDLESCANINTERVAL_KEY =
       "ipc.client.connection.idle-scan-interval.ms";
@@ -373,6 +490,27 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final boolean RPC_METRICS_QUANTILE_ENABLE_DEFAULT = false;
   public static final String  RPC_METRICS_PERCENTILES_INTERVALS_KEY =
       "rpc.metrics.percentiles.intervals";
+  /** Percentiles reported by the rpc metrics, e.g. 50,99,99.9. */
+  public static final String RPC_METRICS_PERCENTILES_KEY =
+      "rpc.metrics.percentiles";
+  public static final String RPC_METRICS_PERCENTILES_DEFAULT =
+      "50,75,90,95,99";
+  /**
+   * Estimator of the rpc metrics percentiles: "sample" for SampleQuantiles,
+   * or "histogram" for a LogLinearHistogram, which handlers update without
+   * taking a lock.
+   */
+  public static final String RPC_METRICS_QUANTILE_ESTIMATOR_KEY =
+      "rpc.metrics.quantile.estimator";
+  public static final String RPC_METRICS_QUANTILE_ESTIMATOR_DEFAULT =
+      "sample";
+  /**
+   * Log2 of the buckets each power of two is split into by the histogram
+   * estimator; its relative error is at most 2^-(bits + 1).
+   */
+  public static final String RPC_METRICS_HISTOGRAM_PRECISION_BITS_KEY =
+      "rpc.metrics.histogram.precision-bits";
+  public static final int RPC_METRICS_HISTOGRAM_PRECISION_BITS_DEFAULT = 5;
   
   /** Allowed hosts for nfs exports */
   public static final String NFS_EXPORTS_ALLOWED_HOSTS_SEPARATOR = ";";
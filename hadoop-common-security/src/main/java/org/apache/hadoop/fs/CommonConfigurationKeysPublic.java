@@ -130,6 +130,39 @@ public class CommonConfigurationKeysPublic {
     "net.topology.table.file.name";
   public static final String NET_DEPENDENCY_SCRIPT_FILE_NAME_KEY = 
     "net.topology.dependency.script.file.name";
+  /**
+   * Whether a cached topology mapping resolves its cache misses in batches
+   * on a background thread.
+   * @see
+   * <a href="{@docRoot}/../hadoop-project-dist/hadoop-common/core-default.xml">
+   * core-default.xml</a>
+   */
+  public static final String  NET_TOPOLOGY_ASYNC_RESOLUTION_ENABLED_KEY =
+    "net.topology.async.resolution.enabled";
+  /** Default value for NET_TOPOLOGY_ASYNC_RESOLUTION_ENABLED_KEY */
+  public static final boolean NET_TOPOLOGY_ASYNC_RESOLUTION_ENABLED_DEFAULT =
+    false;
+  /**
+   * How long cache misses are collected before being resolved in one batch.
+   * @see
+   * <a href="{@docRoot}/../hadoop-project-dist/hadoop-common/core-default.xml">
+   * core-default.xml</a>
+   */
+  public static final String  NET_TOPOLOGY_ASYNC_BATCH_WINDOW_MS_KEY =
+    "net.topology.async.batch.window.ms";
+  /** Default value for NET_TOPOLOGY_ASYNC_BATCH_WINDOW_MS_KEY */
+  public static final long    NET_TOPOLOGY_ASYNC_BATCH_WINDOW_MS_DEFAULT = 10;
+  /**
+   * Age after which a cached location is resolved again in the background
+   * when it is next used, 0 to never refresh.
+   * @see
+   * <a href="{@docRoot}/../hadoop-project-dist/hadoop-common/core-default.xml">
+   * core-default.xml</a>
+   */
+  public static final String  NET_TOPOLOGY_ASYNC_REFRESH_MS_KEY =
+    "net.topology.async.refresh.ms";
+  /** Default value for NET_TOPOLOGY_ASYNC_REFRESH_MS_KEY */
+  public static final long    NET_TOPOLOGY_ASYNC_REFRESH_MS_DEFAULT = 0;
 
   /**
    * @see
@@ -450,6 +483,29 @@ public class CommonConfigurationKeysPublic {
       "ipc.server.reuseaddr";
   /** Default value for IPC_SERVER_REUSEADDR_KEY. */
   public static final boolean IPC_SERVER_REUSEADDR_DEFAULT = true;
+  /**
+   * Address of a UNIX domain socket, such as
+   * unix:///var/run/hadoop/ipc._PORT.sock, with _PORT replaced by the TCP
+   * port of the server. Servers listen on it as well as on their port, and
+   * clients connect to local servers through it, when the runtime supports
+   * UNIX domain socket channels. Empty to use TCP only.
+   * <p>
+   * As the path only names the port, only servers bound to the wildcard
+   * address listen on it, and never on a socket another server still
+   * listens on.
+   * The directories above the socket must be owned by the server's user
+   * or root and must not be writable by others unless they are sticky.
+   * Servers see the clients of the socket as connecting from the loopback
+   * address, so host-based ACLs, such as those of service authorization
+   * and of proxy users, cannot tell these local users apart.
+   * @see
+   * <a href="{@docRoot}/../hadoop-project-dist/hadoop-common/core-default.xml">
+   * core-default.xml</a>
+   */
+  public static final String  IPC_UNIX_DOMAIN_SOCKET_ADDRESS_KEY =
+      "ipc.unix.domain.socket.address";
+  /** Default value for IPC_UNIX_DOMAIN_SOCKET_ADDRESS_KEY. */
+  public static final String  IPC_UNIX_DOMAIN_SOCKET_ADDRESS_DEFAULT = "";
   /**
    * @see
    * <a href="{@docRoot}/../hadoop-project-dist/hadoop-common/core-default.xml">
@@ -27,11 +27,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -89,6 +91,8 @@ public class Groups {
   private Set<String> negativeCache;
   private final boolean reloadGroupsInBackground;
   private final int reloadGroupsThreadCount;
+  // ids the names of groups are interned to, replaced on refresh
+  private volatile GroupIdTable groupIdTable = new GroupIdTable();
 
   private final AtomicLong backgroundRefreshSuccess =
       new AtomicLong(0);
@@ -138,6 +142,8 @@ public class Groups {
       .refreshAfterWrite(cacheTimeout, TimeUnit.MILLISECONDS)
       .ticker(new TimerToTickerAdapter(timer))
       .expireAfterWrite(10 * cacheTimeout, TimeUnit.MILLISECONDS)
+      .removalListener(notification ->
+          groupIdTable.users.remove(notification.getKey()))
       .build(new GroupCacheLoader());
 
     if(negativeCacheTimeout > 0) {
@@ -232,6 +238,133 @@ public class Groups {
     }
   }
 
+  /**
+   * Get the ids of the group memberships of a given user, as interned by the
+   * given table. The ids are computed once for each list of groups cached.
+   */
+  private int[] getGroupIds(GroupIdTable table, String user)
+      throws IOException {
+    List<String> groups = getGroups(user);
+    UserGroupIds userIds = table.users.get(user);
+    if (userIds != null && userIds.groups == groups) {
+      return userIds.ids;
+    }
+    int[] ids = new int[groups.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = table.intern(groups.get(i));
+    }
+    table.users.put(user, new UserGroupIds(groups, ids));
+    return ids;
+  }
+
+  /**
+   * Compile a set of groups for checking the membership of users with
+   * {@link GroupSet#containsAnyGroupOf(String)}.
+   * @param groups names of the groups
+   * @return the compiled set
+   */
+  public GroupSet compile(Collection<String> groups) {
+    return new GroupSet(groups);
+  }
+
+  /**
+   * The names of groups interned to consecutive ids, along with the ids of
+   * the groups of every user. A new table is used after every refresh, so
+   * neither names nor users pile up.
+   */
+  private static final class GroupIdTable {
+    private final ConcurrentHashMap<String, Integer> ids =
+        new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentHashMap<String, UserGroupIds> users =
+        new ConcurrentHashMap<String, UserGroupIds>();
+
+    int intern(String group) {
+      Integer id = ids.get(group);
+      if (id == null) {
+        id = ids.computeIfAbsent(group, name -> nextId.getAndIncrement());
+      }
+      return id;
+    }
+  }
+
+  /** The ids of the groups of a user, with the list they were computed from. */
+  private static final class UserGroupIds {
+    private final List<String> groups;
+    private final int[] ids;
+
+    UserGroupIds(List<String> groups, int[] ids) {
+      this.groups = groups;
+      this.ids = ids;
+    }
+  }
+
+  /** The ids of a set of groups as bits, with the table that interned them. */
+  private static final class GroupBits {
+    private final GroupIdTable table;
+    private final long[] bits;
+
+    GroupBits(GroupIdTable table, long[] bits) {
+      this.table = table;
+      this.bits = bits;
+    }
+  }
+
+  /**
+   * A set of groups, such as the groups of an access control list, compiled
+   * to a bitset of group ids. Checking whether a user is a member of any of
+   * them takes a lookup of the bit of every group of the user, no matter how
+   * many groups the set has. The bitset is built again after the groups are
+   * refreshed.
+   */
+  public final class GroupSet {
+    private final List<String> names;
+    private volatile GroupBits compiled;
+
+    private GroupSet(Collection<String> names) {
+      this.names = new ArrayList<String>(names);
+    }
+
+    /**
+     * @param user User's name
+     * @return true if the user is a member of any group of this set
+     * @throws IOException if user does not exist
+     */
+    public boolean containsAnyGroupOf(String user) throws IOException {
+      if (names.isEmpty()) {
+        return false;
+      }
+      GroupIdTable table = groupIdTable;
+      long[] bits = getBits(table);
+      for (int id : getGroupIds(table, user)) {
+        int word = id >>> 6;
+        if (word < bits.length && (bits[word] & (1L << id)) != 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private long[] getBits(GroupIdTable table) {
+      GroupBits current = compiled;
+      if (current != null && current.table == table) {
+        return current.bits;
+      }
+      int[] ids = new int[names.size()];
+      int maxId = 0;
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = table.intern(names.get(i));
+        maxId = Math.max(maxId, ids[i]);
+      }
+      long[] bits = new long[(maxId >>> 6) + 1];
+      for (int id : ids) {
+        bits[id >>> 6] |= 1L << id;
+      }
+      compiled = new GroupBits(table, bits);
+      return bits;
+    }
+  }
+
   public long getBackgroundRefreshSuccess() {
     return backgroundRefreshSuccess.get();
   }
@@ -409,6 +542,7 @@ public class Groups {
       LOG.warn("Error refreshing groups cache", e);
     }
     cache.invalidateAll();
+    groupIdTable = new GroupIdTable();
     if(isNegativeCacheEnabled()) {
       negativeCache.clear();
     }
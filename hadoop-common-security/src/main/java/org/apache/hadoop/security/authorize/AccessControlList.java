@@ -63,6 +63,9 @@ public class AccessControlList implements Writable {
   private Collection<String> groups;
   // Whether all users are granted access.
   private boolean allAllowed;
+  // The groups compiled for membership checks, null until the first check
+  // after the groups change.
+  private volatile Groups.GroupSet compiledGroups;
 
   private Groups groupsMapping = Groups.getUserToGroupsMappingService(
       ConfigurationFactory.newInstance());
@@ -123,6 +126,7 @@ public class AccessControlList implements Writable {
         groupsMapping.cacheGroupsAdd(new LinkedList<String>(groups));
       }
     }
+    compiledGroups = null;
   }
   
   /**
@@ -173,6 +177,7 @@ public class AccessControlList implements Writable {
       groupsList.add(group);
       groupsMapping.cacheGroupsAdd(groupsList);
       groups.add(group);
+      compiledGroups = null;
     }
   }
 
@@ -204,6 +209,7 @@ public class AccessControlList implements Writable {
     }
     if (!isAllAllowed()) {
       groups.remove(group);
+      compiledGroups = null;
     }
   }
 
@@ -225,23 +231,36 @@ public class AccessControlList implements Writable {
 
   /**
    * Checks if a user represented by the provided {@link UserGroupInformation}
-   * is a member of the Access Control List
+   * is a member of the Access Control List. The groups of the list are
+   * compiled to a {@link Groups.GroupSet}, so the check does not depend on
+   * the number of groups of the list.
    * @param ugi UserGroupInformation to check if contained in the ACL
    * @return true if ugi is member of the list
    */
   public final boolean isUserInList(UserGroupInformation ugi) {
-    if (allAllowed || users.contains(ugi.getShortUserName())) {
+    String user = ugi.getShortUserName();
+    if (allAllowed || users.contains(user)) {
       return true;
     } else if (!groups.isEmpty()) {
-      for (String group : ugi.getGroups()) {
-        if (groups.contains(group)) {
-          return true;
-        }
+      try {
+        return getCompiledGroups().containsAnyGroupOf(user);
+      } catch (IOException e) {
+        // a user without groups is not a member of any
+        return false;
       }
     }
     return false;
   }
 
+  private Groups.GroupSet getCompiledGroups() {
+    Groups.GroupSet compiled = compiledGroups;
+    if (compiled == null) {
+      compiled = groupsMapping.compile(groups);
+      compiledGroups = compiled;
+    }
+    return compiled;
+  }
+
   public boolean isUserAllowed(UserGroupInformation ugi) {
     return isUserInList(ugi);
   }
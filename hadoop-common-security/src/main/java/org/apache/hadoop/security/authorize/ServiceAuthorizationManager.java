@@ -129,9 +129,9 @@ public class ServiceAuthorizationManager {
           " is not authorized for protocol " + protocol + cause);
     }
     if (addr != null) {
-      String hostAddress = addr.getHostAddress();
-      if (hosts.length != 2 || !hosts[0].includes(hostAddress) ||
-          hosts[1].includes(hostAddress)) {
+      if (hosts.length != 2 || !hosts[0].includes(addr) ||
+          hosts[1].includes(addr)) {
+        String hostAddress = addr.getHostAddress();
         AUDITLOG.warn(AUTHZ_FAILED_FOR + " for protocol=" + protocol
             + " from host = " +  hostAddress);
         throw new AuthorizationException("Host " + hostAddress +
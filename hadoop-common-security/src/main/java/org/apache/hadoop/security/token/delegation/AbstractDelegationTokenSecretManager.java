@@ -22,12 +22,14 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.SecretKey;
 
@@ -60,10 +62,33 @@ extends AbstractDelegationTokenIdentifier>
 
   /** 
    * Cache of currently valid tokens, mapping from DelegationTokenIdentifier 
-   * to DelegationTokenInformation. Protected by this object lock.
+   * to DelegationTokenInformation. Read without locking; a token is changed
+   * or removed holding the lock of the token, see {@link #getTokenLock}.
+   * A token added or updated outside of {@link #storeToken} and
+   * {@link #updateToken} must be passed to {@link #indexTokenExpiry} to be
+   * removed once it expires.
    */
   protected final Map<TokenIdent, DelegationTokenInformation> currentTokens 
-      = new HashMap<TokenIdent, DelegationTokenInformation>();
+      = new ConcurrentHashMap<TokenIdent, DelegationTokenInformation>();
+
+  /**
+   * The renew dates of the tokens in ascending order, so the expired tokens
+   * are found without scanning all of them. A renewal replaces the entry of
+   * the token and a cancellation removes it, holding the lock of the token.
+   */
+  private final ConcurrentSkipListSet<TokenExpiry> expiryIndex =
+      new ConcurrentSkipListSet<TokenExpiry>();
+  /** The current entry of every token in {@link #expiryIndex}. */
+  private final Map<TokenIdent, TokenExpiry> tokenExpiries =
+      new ConcurrentHashMap<TokenIdent, TokenExpiry>();
+  private final AtomicLong expirySequenceNumber = new AtomicLong();
+
+  /**
+   * Locks serializing the changes to a token, picked by the hash of the
+   * token identifier.
+   */
+  private static final int TOKEN_LOCK_STRIPES = 256;
+  private final Object[] tokenLocks = new Object[TOKEN_LOCK_STRIPES];
   
   /**
    * Sequence number to create DelegationTokenIdentifier.
@@ -72,10 +97,11 @@ extends AbstractDelegationTokenIdentifier>
   protected int delegationTokenSequenceNumber = 0;
   
   /**
-   * Access to allKeys is protected by this object lock
+   * Changes to allKeys are protected by this object lock, it is read
+   * without locking.
    */
   protected final Map<Integer, DelegationKey> allKeys 
-      = new HashMap<Integer, DelegationKey>();
+      = new ConcurrentHashMap<Integer, DelegationKey>();
   
   /**
    * Access to currentId is protected by this object lock.
@@ -123,6 +149,9 @@ extends AbstractDelegationTokenIdentifier>
     this.tokenRenewInterval = delegationTokenRenewInterval;
     this.tokenRemoverScanInterval = delegationTokenRemoverScanInterval;
     this.storeTokenTrackingId = false;
+    for (int i = 0; i < tokenLocks.length; i++) {
+      tokenLocks[i] = new Object();
+    }
   }
 
   /** should be called before this object is used */
@@ -144,6 +173,8 @@ extends AbstractDelegationTokenIdentifier>
     allKeys.clear();
     setDelegationTokenSeqNum(0);
     currentTokens.clear();
+    expiryIndex.clear();
+    tokenExpiries.clear();
   }
 
   /**
@@ -292,6 +323,7 @@ extends AbstractDelegationTokenIdentifier>
   protected void storeToken(TokenIdent ident,
       DelegationTokenInformation tokenInfo) throws IOException {
     currentTokens.put(ident, tokenInfo);
+    indexTokenExpiry(ident, tokenInfo.getRenewDate());
     storeNewToken(ident, tokenInfo.getRenewDate());
   }
 
@@ -302,9 +334,52 @@ extends AbstractDelegationTokenIdentifier>
   protected void updateToken(TokenIdent ident,
       DelegationTokenInformation tokenInfo) throws IOException {
     currentTokens.put(ident, tokenInfo);
+    indexTokenExpiry(ident, tokenInfo.getRenewDate());
     updateStoredToken(ident, tokenInfo.getRenewDate());
   }
 
+  /**
+   * Have the token removed from {@link #currentTokens} once the given renew
+   * date passes, unless it is renewed by then. The date replaces any date
+   * indexed for the token before.
+   * @param ident the token identifier
+   * @param renewDate the renew date of the token
+   */
+  protected void indexTokenExpiry(TokenIdent ident, long renewDate) {
+    TokenExpiry expiry = new TokenExpiry(renewDate,
+        expirySequenceNumber.incrementAndGet(), ident);
+    synchronized (getTokenLock(ident)) {
+      TokenExpiry previous = tokenExpiries.put(ident, expiry);
+      if (previous != null) {
+        expiryIndex.remove(previous);
+      }
+      expiryIndex.add(expiry);
+    }
+  }
+
+  /**
+   * Remove the entry of a token removed from {@link #currentTokens} from the
+   * expiry index.
+   * @param ident the token identifier
+   */
+  private void unindexTokenExpiry(TokenIdent ident) {
+    synchronized (getTokenLock(ident)) {
+      TokenExpiry expiry = tokenExpiries.remove(ident);
+      if (expiry != null) {
+        expiryIndex.remove(expiry);
+      }
+    }
+  }
+
+  /**
+   * @param ident the token identifier
+   * @return the lock held while the token is changed or removed
+   */
+  protected Object getTokenLock(TokenIdent ident) {
+    return tokenLocks[(ident.hashCode() & Integer.MAX_VALUE)
+        % tokenLocks.length];
+  }
+
   /**
    * This method is intended to be used for recovering persisted delegation
    * tokens. Tokens that have an unknown <code>DelegationKey</code> are
@@ -339,6 +414,7 @@ extends AbstractDelegationTokenIdentifier>
     if (getTokenInfo(identifier) == null) {
       currentTokens.put(identifier, new DelegationTokenInformation(renewDate,
           password, getTrackingIdIfEnabled(identifier)));
+      indexTokenExpiry(identifier, renewDate);
     } else {
       throw new IOException("Same delegation token being added twice: "
           + formatTokenId(identifier));
@@ -429,12 +505,11 @@ extends AbstractDelegationTokenIdentifier>
 
   /**
    * Find the DelegationTokenInformation for the given token id, and verify that
-   * if the token is expired. Note that this method should be called with 
-   * acquiring the secret manager's monitor.
+   * if the token is expired. This takes no lock, so it does not wait for
+   * renewals, cancellations or the removal of expired tokens.
    */
   protected DelegationTokenInformation checkToken(TokenIdent identifier)
       throws InvalidToken {
-    assert Thread.holdsLock(this);
     DelegationTokenInformation info = getTokenInfo(identifier);
     if (info == null) {
       throw new InvalidToken("token " + formatTokenId(identifier)
@@ -450,7 +525,7 @@ extends AbstractDelegationTokenIdentifier>
   }
   
   @Override
-  public synchronized byte[] retrievePassword(TokenIdent identifier)
+  public byte[] retrievePassword(TokenIdent identifier)
       throws InvalidToken {
     return checkToken(identifier).getPassword();
   }
@@ -462,7 +537,7 @@ extends AbstractDelegationTokenIdentifier>
     return null;
   }
 
-  public synchronized String getTokenTrackingId(TokenIdent identifier) {
+  public String getTokenTrackingId(TokenIdent identifier) {
     DelegationTokenInformation info = getTokenInfo(identifier);
     if (info == null) {
       return null;
@@ -476,7 +551,7 @@ extends AbstractDelegationTokenIdentifier>
    * @param password Password in the token.
    * @throws InvalidToken
    */
-  public synchronized void verifyToken(TokenIdent identifier, byte[] password)
+  public void verifyToken(TokenIdent identifier, byte[] password)
       throws InvalidToken {
     byte[] storedPassword = retrievePassword(identifier);
     if (!MessageDigest.isEqual(password, storedPassword)) {
@@ -493,7 +568,7 @@ extends AbstractDelegationTokenIdentifier>
    * @throws InvalidToken if the token is invalid
    * @throws AccessControlException if the user can't renew token
    */
-  public synchronized long renewToken(Token<TokenIdent> token,
+  public long renewToken(Token<TokenIdent> token,
                          String renewer) throws InvalidToken, IOException {
     ByteArrayInputStream buf = new ByteArrayInputStream(token.getIdentifier());
     DataInputStream in = new DataInputStream(buf);
@@ -538,11 +613,13 @@ extends AbstractDelegationTokenIdentifier>
     DelegationTokenInformation info = new DelegationTokenInformation(renewTime,
         password, trackingId);
 
-    if (getTokenInfo(id) == null) {
-      throw new InvalidToken("Renewal request for unknown token "
-          + formatTokenId(id));
+    synchronized (getTokenLock(id)) {
+      if (getTokenInfo(id) == null) {
+        throw new InvalidToken("Renewal request for unknown token "
+            + formatTokenId(id));
+      }
+      updateToken(id, info);
     }
-    updateToken(id, info);
     return renewTime;
   }
   
@@ -552,7 +629,7 @@ extends AbstractDelegationTokenIdentifier>
    * @throws InvalidToken for invalid token
    * @throws AccessControlException if the user isn't allowed to cancel
    */
-  public synchronized TokenIdent cancelToken(Token<TokenIdent> token,
+  public TokenIdent cancelToken(Token<TokenIdent> token,
       String canceller) throws IOException {
     ByteArrayInputStream buf = new ByteArrayInputStream(token.getIdentifier());
     DataInputStream in = new DataInputStream(buf);
@@ -574,11 +651,14 @@ extends AbstractDelegationTokenIdentifier>
       throw new AccessControlException(canceller
           + " is not authorized to cancel the token " + formatTokenId(id));
     }
-    DelegationTokenInformation info = currentTokens.remove(id);
-    if (info == null) {
-      throw new InvalidToken("Token not found " + formatTokenId(id));
+    synchronized (getTokenLock(id)) {
+      DelegationTokenInformation info = currentTokens.remove(id);
+      if (info == null) {
+        throw new InvalidToken("Token not found " + formatTokenId(id));
+      }
+      unindexTokenExpiry(id);
+      removeStoredToken(id);
     }
-    removeStoredToken(id);
     return id;
   }
   
@@ -622,23 +702,52 @@ extends AbstractDelegationTokenIdentifier>
     }
   }
   
-  /** Remove expired delegation tokens from cache */
+  /** An entry of the expiry index, ordered by renew date. */
+  private final class TokenExpiry implements Comparable<TokenExpiry> {
+    private final long renewDate;
+    // tells apart the entries with the same renew date
+    private final long sequenceNumber;
+    private final TokenIdent ident;
+
+    TokenExpiry(long renewDate, long sequenceNumber, TokenIdent ident) {
+      this.renewDate = renewDate;
+      this.sequenceNumber = sequenceNumber;
+      this.ident = ident;
+    }
+
+    @Override
+    public int compareTo(TokenExpiry other) {
+      int result = Long.compare(renewDate, other.renewDate);
+      return result != 0 ? result
+          : Long.compare(sequenceNumber, other.sequenceNumber);
+    }
+  }
+
+  /**
+   * Remove expired delegation tokens from cache. Only the entries of the
+   * expiry index that are due are visited.
+   */
   private void removeExpiredToken() throws IOException {
     long now = Time.now();
-    Set<TokenIdent> expiredTokens = new HashSet<TokenIdent>();
-    synchronized (this) {
-      Iterator<Map.Entry<TokenIdent, DelegationTokenInformation>> i =
-          currentTokens.entrySet().iterator();
-      while (i.hasNext()) {
-        Map.Entry<TokenIdent, DelegationTokenInformation> entry = i.next();
-        long renewDate = entry.getValue().getRenewDate();
-        if (renewDate < now) {
-          expiredTokens.add(entry.getKey());
-          i.remove();
+    List<TokenIdent> expiredTokens = new ArrayList<TokenIdent>();
+    Iterator<TokenExpiry> i = expiryIndex.iterator();
+    while (i.hasNext()) {
+      TokenExpiry expiry = i.next();
+      if (expiry.renewDate >= now) {
+        break;
+      }
+      i.remove();
+      synchronized (getTokenLock(expiry.ident)) {
+        tokenExpiries.remove(expiry.ident, expiry);
+        // the token may have been renewed or cancelled since
+        DelegationTokenInformation info = currentTokens.get(expiry.ident);
+        if (info != null && info.getRenewDate() < now) {
+          currentTokens.remove(expiry.ident);
+          expiredTokens.add(expiry.ident);
         }
       }
     }
-    // don't hold lock on 'this' to avoid edit log updates blocking token ops
+    // don't hold any lock to avoid edit log updates blocking token ops
     logExpireTokens(expiredTokens);
   }
 
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A set of IPv4 and IPv6 address prefixes, answering whether an address
+ * falls in any of them. The prefixes are kept in a binary radix trie, one
+ * for each address length, walked one bit of the address at a time. A lookup
+ * stops at the first prefix on its path, so it takes at most as many steps
+ * as the address has bits, however many prefixes there are.
+ *
+ * Prefixes must all be added before the trie is shared; lookups may then
+ * run concurrently.
+ */
+final class AddressPrefixTrie {
+
+  private final Trie ipv4 = new Trie(4);
+  private final Trie ipv6 = new Trie(16);
+
+  /**
+   * Add an address.
+   * @param address the address, 4 or 16 bytes
+   */
+  void add(byte[] address) {
+    add(address, address.length * 8);
+  }
+
+  /**
+   * Add every address starting with the given prefix.
+   * @param address the address, 4 or 16 bytes
+   * @param prefixLength the number of leading bits of the prefix
+   */
+  void add(byte[] address, int prefixLength) {
+    Trie trie = getTrie(address);
+    Preconditions.checkArgument(
+        prefixLength >= 0 && prefixLength <= address.length * 8,
+        "Invalid prefix length %s", prefixLength);
+    trie.add(address, prefixLength);
+  }
+
+  /**
+   * @param address the address, 4 or 16 bytes
+   * @return true if the address starts with any prefix added
+   */
+  boolean contains(byte[] address) {
+    return getTrie(address).contains(address);
+  }
+
+  private Trie getTrie(byte[] address) {
+    if (address.length == ipv4.addressLength) {
+      return ipv4;
+    } else if (address.length == ipv6.addressLength) {
+      return ipv6;
+    }
+    throw new IllegalArgumentException(
+        "Invalid address length " + address.length);
+  }
+
+  /** The prefixes of addresses of one length. */
+  private static final class Trie {
+    private final int addressLength;
+    // the children of node n are at 2n for a 0 bit and 2n + 1 for a 1 bit,
+    // 0 if there is none; the root is node 0
+    private int[] children = new int[32];
+    // whether a prefix ends at the node
+    private boolean[] prefixEnds = new boolean[16];
+    private int nodes = 1;
+
+    Trie(int addressLength) {
+      this.addressLength = addressLength;
+    }
+
+    void add(byte[] address, int prefixLength) {
+      int node = 0;
+      for (int i = 0; i < prefixLength; i++) {
+        if (prefixEnds[node]) {
+          // a shorter prefix covers this one
+          return;
+        }
+        int slot = 2 * node + bit(address, i);
+        int child = children[slot];
+        if (child == 0) {
+          // newNode() may grow the arrays, so call it before storing
+          child = newNode();
+          children[slot] = child;
+        }
+        node = child;
+      }
+      prefixEnds[node] = true;
+    }
+
+    boolean contains(byte[] address) {
+      int bits = address.length * 8;
+      int node = 0;
+      for (int i = 0; ; i++) {
+        if (prefixEnds[node]) {
+          return true;
+        }
+        if (i == bits) {
+          return false;
+        }
+        node = children[2 * node + bit(address, i)];
+        if (node == 0) {
+          return false;
+        }
+      }
+    }
+
+    private int newNode() {
+      if (nodes == prefixEnds.length) {
+        prefixEnds = Arrays.copyOf(prefixEnds, 2 * nodes);
+        children = Arrays.copyOf(children, 4 * nodes);
+      }
+      return nodes++;
+    }
+
+    private static int bit(byte[] address, int index) {
+      return (address[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+  }
+}
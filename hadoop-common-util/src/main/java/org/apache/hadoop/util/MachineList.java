@@ -17,19 +17,23 @@
  */
 package org.apache.hadoop.util;
 
+import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
-
-import org.apache.commons.net.util.SubnetUtils;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +43,13 @@ import org.slf4j.LoggerFactory;
  *
  * Accepts list of ip addresses, ip addreses in CIDR format and/or 
  * host addresses.
+ *
+ * The ip addresses and ranges, IPv4 or IPv6, are compiled to an
+ * {@link AddressPrefixTrie}, so a query parses the address once and takes
+ * at most as many steps as the address has bits. Host names are resolved
+ * when the list is built and again in the background every refresh
+ * interval; queries only look at the addresses last resolved and never wait
+ * for DNS.
  */
 
 public class MachineList {
@@ -46,6 +57,10 @@ public class MachineList {
   public static final Logger LOG = LoggerFactory.getLogger(MachineList.class);
   public static final String WILDCARD_VALUE = "*";
 
+  /** Default interval between two resolutions of the host names. */
+  public static final long DEFAULT_HOST_REFRESH_INTERVAL_MS =
+      TimeUnit.MINUTES.toMillis(5);
+
   /**
    * InetAddressFactory is used to obtain InetAddress from host.
    * This class makes it easy to simulate host to ip mappings during testing.
@@ -58,13 +73,59 @@ public class MachineList {
     public InetAddress getByName (String host) throws UnknownHostException {
       return InetAddress.getByName(host);
     }
+
+    public InetAddress[] getAllByName(String host)
+        throws UnknownHostException {
+      return InetAddress.getAllByName(host);
+    }
+  }
+
+  /** Resolves the host names of every list with host names. */
+  private static ScheduledExecutorService hostResolver;
+
+  private static synchronized ScheduledExecutorService getHostResolver() {
+    if (hostResolver == null) {
+      hostResolver = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("MachineList Host Resolver")
+          .build());
+    }
+    return hostResolver;
+  }
+
+  /**
+   * Resolves the host names of a list until the list is garbage collected.
+   */
+  private static final class HostRefresh implements Runnable {
+    private final WeakReference<MachineList> machineList;
+    private volatile ScheduledFuture<?> future;
+
+    HostRefresh(MachineList machineList) {
+      this.machineList = new WeakReference<MachineList>(machineList);
+    }
+
+    @Override
+    public void run() {
+      MachineList list = machineList.get();
+      if (list != null) {
+        list.refreshHostAddresses();
+      } else if (future != null) {
+        future.cancel(false);
+      }
+    }
   }
 
   private final boolean all;
   private final Set<String> ipAddresses;
-  private final List<SubnetUtils.SubnetInfo> cidrAddresses;
+  private final Set<String> cidrAddresses;
   private final Set<String> hostNames;
   private final InetAddressFactory addressFactory;
+  // the ip addresses and ranges of the list
+  private final AddressPrefixTrie addresses;
+  // the addresses of the host names, only changed by refreshHostAddresses
+  private final Map<String, InetAddress[]> resolvedHosts;
+  private volatile AddressPrefixTrie hostAddresses;
 
   /**
    * 
@@ -89,6 +150,19 @@ public class MachineList {
    * @param addressFactory addressFactory to convert host to InetAddress
    */
   public MachineList(Collection<String> hostEntries, InetAddressFactory addressFactory) {
+    this(hostEntries, addressFactory, DEFAULT_HOST_REFRESH_INTERVAL_MS);
+  }
+
+  /**
+   * Accepts a collection of ip/cidr/host addresses
+   *
+   * @param hostEntries
+   * @param addressFactory addressFactory to convert host to InetAddress
+   * @param hostRefreshIntervalMs interval between two resolutions of the
+   *        host names, not resolved again if not positive
+   */
+  public MachineList(Collection<String> hostEntries,
+      InetAddressFactory addressFactory, long hostRefreshIntervalMs) {
     this.addressFactory = addressFactory;
     if (hostEntries != null) {
       if ((hostEntries.size() == 1) && (hostEntries.contains(WILDCARD_VALUE))) {
@@ -96,23 +170,20 @@ public class MachineList {
         ipAddresses = null; 
         hostNames = null; 
         cidrAddresses = null; 
+        addresses = null;
       } else {
         all = false;
-        Set<String> ips = new HashSet<String>();
-        List<SubnetUtils.SubnetInfo> cidrs = new LinkedList<SubnetUtils.SubnetInfo>();
-        Set<String> hosts = new HashSet<String>();
+        Set<String> ips = new LinkedHashSet<String>();
+        Set<String> cidrs = new LinkedHashSet<String>();
+        Set<String> hosts = new LinkedHashSet<String>();
+        AddressPrefixTrie trie = new AddressPrefixTrie();
         for (String hostEntry : hostEntries) {
           //ip address range
           if (hostEntry.indexOf("/") > -1) {
-            try {
-              SubnetUtils subnet = new SubnetUtils(hostEntry);
-              subnet.setInclusiveHostCount(true);
-              cidrs.add(subnet.getInfo());
-            } catch (IllegalArgumentException e) {
-              LOG.warn("Invalid CIDR syntax : " + hostEntry);
-              throw e;
-            }
+            addCidr(trie, hostEntry);
+            cidrs.add(hostEntry);
           } else if (InetAddresses.isInetAddress(hostEntry)) { //ip address
+            trie.add(InetAddresses.forString(hostEntry).getAddress());
             ips.add(hostEntry);
           } else { //hostname
             hosts.add(hostEntry);
@@ -121,14 +192,64 @@ public class MachineList {
         ipAddresses = (ips.size() > 0) ? ips : null;
         cidrAddresses = (cidrs.size() > 0) ? cidrs : null;
         hostNames = (hosts.size() > 0) ? hosts : null;
+        addresses = trie;
       }
     } else {
       all = false; 
       ipAddresses = null;
       hostNames = null; 
       cidrAddresses = null; 
+      addresses = null;
+    }
+    if (hostNames != null) {
+      resolvedHosts = new HashMap<String, InetAddress[]>();
+      refreshHostAddresses();
+      if (hostRefreshIntervalMs > 0) {
+        HostRefresh refresh = new HostRefresh(this);
+        refresh.future = getHostResolver().scheduleWithFixedDelay(refresh,
+            hostRefreshIntervalMs, hostRefreshIntervalMs,
+            TimeUnit.MILLISECONDS);
+      }
+    } else {
+      resolvedHosts = null;
     }
   }
+
+  private static void addCidr(AddressPrefixTrie trie, String cidr) {
+    int slash = cidr.indexOf('/');
+    String address = cidr.substring(0, slash);
+    try {
+      int prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+      trie.add(InetAddresses.forString(address).getAddress(), prefixLength);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Invalid CIDR syntax : " + cidr);
+      throw e;
+    }
+  }
+
+  /**
+   * Resolve the host names of the list again. A host that cannot be
+   * resolved keeps the addresses it last resolved to.
+   */
+  @VisibleForTesting
+  synchronized void refreshHostAddresses() {
+    AddressPrefixTrie trie = new AddressPrefixTrie();
+    for (String host : hostNames) {
+      try {
+        resolvedHosts.put(host, addressFactory.getAllByName(host));
+      } catch (UnknownHostException e) {
+        LOG.debug("Unable to resolve host {}", host, e);
+      }
+      InetAddress[] hostAddrs = resolvedHosts.get(host);
+      if (hostAddrs != null) {
+        for (InetAddress hostAddr : hostAddrs) {
+          trie.add(hostAddr.getAddress());
+        }
+      }
+    }
+    hostAddresses = trie;
+  }
+
   /**
    * Accepts an ip address and return true if ipAddress is in the list
    * @param ipAddress
@@ -144,48 +265,46 @@ public class MachineList {
       throw new IllegalArgumentException("ipAddress is null.");
     }
 
-    //check in the set of ipAddresses
-    if ((ipAddresses != null) && ipAddresses.contains(ipAddress)) {
-      return true;
-    }
-    
-    //iterate through the ip ranges for inclusion
-    if (cidrAddresses != null) {
-      for(SubnetUtils.SubnetInfo cidrAddress : cidrAddresses) {
-        if(cidrAddress.isInRange(ipAddress)) {
-          return true;
-        }
-      }
+    if (InetAddresses.isInetAddress(ipAddress)) {
+      return includes(InetAddresses.forString(ipAddress).getAddress());
     }
-    
-    //check if the ipAddress matches one of hostnames
+
+    //not an ip address, check if it is one of the hosts
     if (hostNames != null) {
-      //convert given ipAddress to hostname and look for a match
-      InetAddress hostAddr;
       try {
-        hostAddr = addressFactory.getByName(ipAddress);
-        if ((hostAddr != null) && hostNames.contains(hostAddr.getCanonicalHostName())) {
-          return true;
-        }
+        InetAddress hostAddr = addressFactory.getByName(ipAddress);
+        return hostAddr != null && includes(hostAddr.getAddress());
       } catch (UnknownHostException e) {
-        //ignore the exception and proceed to resolve the list of hosts
-      }
-
-      //loop through host addresses and convert them to ip and look for a match
-      for (String host : hostNames) {
-        try {
-          hostAddr = addressFactory.getByName(host);
-        } catch (UnknownHostException e) {
-          continue;
-        }
-        if (hostAddr.getHostAddress().equals(ipAddress)) {
-          return true;
-        }
+        //not a known host, so not in the list
       }
     }
     return false;
   }
 
+  /**
+   * Accepts an address and return true if it is in the list
+   * @param address
+   * @return true if address is part of the list
+   */
+  public boolean includes(InetAddress address) {
+    if (all) {
+      return true;
+    }
+
+    if (address == null) {
+      throw new IllegalArgumentException("address is null.");
+    }
+    return includes(address.getAddress());
+  }
+
+  private boolean includes(byte[] address) {
+    if (addresses != null && addresses.contains(address)) {
+      return true;
+    }
+    AddressPrefixTrie hosts = hostAddresses;
+    return hosts != null && hosts.contains(address);
+  }
+
   /**
    * returns the contents of the MachineList as a Collection&lt;String&gt;
    * This can be used for testing 
@@ -204,9 +323,7 @@ public class MachineList {
         list.addAll(hostNames);
       }
       if (cidrAddresses != null) {
-        for(SubnetUtils.SubnetInfo cidrAddress : cidrAddresses) {
-          list.add(cidrAddress.getCidrSignature());
-        }
+        list.addAll(cidrAddresses);
       }
     }
     return list;